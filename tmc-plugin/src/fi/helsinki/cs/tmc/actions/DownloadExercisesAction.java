@@ -5,14 +5,16 @@ import fi.helsinki.cs.tmc.model.CourseDb;
 import fi.helsinki.cs.tmc.model.ProjectMediator;
 import fi.helsinki.cs.tmc.model.ServerAccess;
 import fi.helsinki.cs.tmc.model.TmcProjectInfo;
+import fi.helsinki.cs.tmc.model.TmcSettings;
 import fi.helsinki.cs.tmc.ui.ConvenientDialogDisplayer;
 import fi.helsinki.cs.tmc.utilities.AggregatingBgTaskListener;
-import fi.helsinki.cs.tmc.utilities.BgTask;
 import fi.helsinki.cs.tmc.utilities.BgTaskListener;
+import fi.helsinki.cs.tmc.utilities.CancellableCallable;
+import fi.helsinki.cs.tmc.utilities.DownloadScheduler;
 import fi.helsinki.cs.tmc.utilities.zip.NbProjectUnzipper;
+import java.io.File;
 import java.util.Collection;
 import java.util.List;
-import java.util.concurrent.Callable;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.swing.SwingUtilities;
@@ -27,6 +29,7 @@ public class DownloadExercisesAction {
     private CourseDb courseDb;
     private ProjectMediator projectMediator;
     private ConvenientDialogDisplayer dialogs;
+    private TmcSettings settings;
 
     private List<Exercise> exercisesToDownload;
 
@@ -35,6 +38,7 @@ public class DownloadExercisesAction {
         this.courseDb = CourseDb.getInstance();
         this.projectMediator = ProjectMediator.getInstance();
         this.dialogs = ConvenientDialogDisplayer.getDefault();
+        this.settings = TmcSettings.getDefault();
 
         this.exercisesToDownload = exercisesToOpen;
     }
@@ -43,49 +47,49 @@ public class DownloadExercisesAction {
         final AggregatingBgTaskListener<TmcProjectInfo> aggregator =
                 new AggregatingBgTaskListener<TmcProjectInfo>(exercisesToDownload.size(), whenAllDownloadsFinished);
 
+        DownloadScheduler scheduler = DownloadScheduler.getInstance();
+        scheduler.setMaxConcurrentDownloads(settings.getMaxConcurrentDownloads());
+        DownloadScheduler.Batch batch = scheduler.newBatch("Downloading exercises");
         for (final Exercise exercise : exercisesToDownload) {
-            startDownloading(exercise, aggregator);
+            batch.add(exercise.getName(), downloadingTask(exercise), aggregator);
         }
+        batch.start();
     }
 
-    private void startDownloading(final Exercise exercise, final BgTaskListener<TmcProjectInfo> listener) {
-        BgTask.start("Downloading " + exercise.getName(), serverAccess.getDownloadingExerciseZipTask(exercise), new BgTaskListener<byte[]>() {
+    private CancellableCallable<TmcProjectInfo> downloadingTask(final Exercise exercise) {
+        final CancellableCallable<File> download = serverAccess.getDownloadingExerciseZipTask(exercise);
+        return new CancellableCallable<TmcProjectInfo>() {
             @Override
-            public void bgTaskReady(final byte[] zipData) {
-                BgTask.start("Extracting project", new Callable<TmcProjectInfo>() {
+            public TmcProjectInfo call() throws Exception {
+                File zipFile = download.call();
+                try {
+                    NbProjectUnzipper unzipper = new NbProjectUnzipper();
+                    unzipper.unzipProject(zipFile, projectMediator.getProjectDirForExercise(exercise));
+                } finally {
+                    zipFile.delete();
+                }
+                TmcProjectInfo proj = projectMediator.tryGetProjectForExercise(exercise);
+
+                if (proj == null) {
+                    throw new RuntimeException("Failed to open project for exercise " + exercise.getName());
+                }
+
+                // Need to invoke courseDb in swing thread to avoid races
+                SwingUtilities.invokeAndWait(new Runnable() {
                     @Override
-                    public TmcProjectInfo call() throws Exception {
-                        NbProjectUnzipper unzipper = new NbProjectUnzipper();
-                        unzipper.unzipProject(zipData, projectMediator.getProjectDirForExercise(exercise));
-                        TmcProjectInfo proj = projectMediator.tryGetProjectForExercise(exercise);
-
-                        if (proj == null) {
-                            throw new RuntimeException("Failed to open project for exercise " + exercise.getName());
-                        }
-
-                        // Need to invoke courseDb in swing thread to avoid races
-                        SwingUtilities.invokeAndWait(new Runnable() {
-                            @Override
-                            public void run() {
-                                courseDb.exerciseDownloaded(exercise);
-                            }
-                        });
-
-                        return proj;
+                    public void run() {
+                        courseDb.exerciseDownloaded(exercise);
                     }
-                }, listener);
-            }
-            
-            @Override
-            public void bgTaskCancelled() {
-                listener.bgTaskCancelled();
+                });
+
+                return proj;
             }
 
             @Override
-            public void bgTaskFailed(Throwable ex) {
-                listener.bgTaskFailed(ex);
+            public boolean cancel() {
+                return download.cancel();
             }
-        });
+        };
     }
 
     private BgTaskListener<Collection<TmcProjectInfo>> whenAllDownloadsFinished = new BgTaskListener<Collection<TmcProjectInfo>>() {
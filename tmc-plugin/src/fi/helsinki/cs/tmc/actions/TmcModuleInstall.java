@@ -93,6 +93,7 @@ public class TmcModuleInstall extends ModuleInstall {
         } catch (Exception e) {
             log.log(Level.WARNING, "Failed to close SpywareFacade.", e);
         }
+        CourseDb.getInstance().flush();
     }
     
     private void doFirstRun() {
@@ -1,15 +1,19 @@
 package fi.helsinki.cs.tmc.actions;
 
 import fi.helsinki.cs.tmc.data.Exercise;
+import fi.helsinki.cs.tmc.model.ConfigFile;
 import fi.helsinki.cs.tmc.model.CourseDb;
 import fi.helsinki.cs.tmc.model.ExerciseUpdateOverwritingDecider;
 import fi.helsinki.cs.tmc.model.ProjectMediator;
 import fi.helsinki.cs.tmc.model.ServerAccess;
 import fi.helsinki.cs.tmc.model.TmcProjectInfo;
+import fi.helsinki.cs.tmc.model.TmcSettings;
 import fi.helsinki.cs.tmc.ui.ConvenientDialogDisplayer;
 import fi.helsinki.cs.tmc.utilities.AggregatingBgTaskListener;
-import fi.helsinki.cs.tmc.utilities.BgTask;
 import fi.helsinki.cs.tmc.utilities.BgTaskListener;
+import fi.helsinki.cs.tmc.utilities.CancellableCallable;
+import fi.helsinki.cs.tmc.utilities.DownloadScheduler;
+import fi.helsinki.cs.tmc.utilities.zip.FileChecksumCache;
 import fi.helsinki.cs.tmc.utilities.zip.NbProjectUnzipper;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
@@ -18,17 +22,21 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class UpdateExercisesAction implements ActionListener {
     
     private static final Logger log = Logger.getLogger(UpdateExercisesAction.class.getName());
 
+    private static FileChecksumCache checksumCache;
+
     private List<Exercise> exercisesToUpdate;
     private CourseDb courseDb;
     private ProjectMediator projectMediator;
     private ServerAccess serverAccess;
     private ConvenientDialogDisplayer dialogDisplayer;
+    private TmcSettings settings;
     
     public UpdateExercisesAction(List<Exercise> exercisesToUpdate) {
         this.exercisesToUpdate = exercisesToUpdate;
@@ -36,6 +44,7 @@ public class UpdateExercisesAction implements ActionListener {
         this.projectMediator = ProjectMediator.getInstance();
         this.serverAccess = new ServerAccess();
         this.dialogDisplayer = ConvenientDialogDisplayer.getDefault();
+        this.settings = TmcSettings.getDefault();
     }
 
     @Override
@@ -69,26 +78,16 @@ public class UpdateExercisesAction implements ActionListener {
         });
         
         
+        DownloadScheduler scheduler = DownloadScheduler.getInstance();
+        scheduler.setMaxConcurrentDownloads(settings.getMaxConcurrentDownloads());
+        DownloadScheduler.Batch batch = scheduler.newBatch("Downloading updated exercises");
         for (final Exercise exercise : exercisesToUpdate) {
-            final File projectDir = projectMediator.getProjectDirForExercise(exercise);
-            
-            BgTask.start("Downloading " + exercise.getName(), serverAccess.getDownloadingExerciseZipTask(exercise), new BgTaskListener<byte[]>() {
-
+            batch.add(exercise.getName(), updatingTask(exercise), new BgTaskListener<Exercise>() {
                 @Override
-                public void bgTaskReady(byte[] data) {
+                public void bgTaskReady(Exercise result) {
                     TmcProjectInfo project = null;
                     try {
-                        try {
-                            ExerciseUpdateOverwritingDecider overwriter = new ExerciseUpdateOverwritingDecider(projectDir);
-                            NbProjectUnzipper unzipper = new NbProjectUnzipper(overwriter);
-                            NbProjectUnzipper.Result result = unzipper.unzipProject(data, projectDir);
-                            log.info("== Exercise unzip result ==\n" + result);
-                        } catch (IOException ex) {
-                            dialogDisplayer.displayError("Failed to update project.", ex);
-                            return;
-                        }
                         courseDb.exerciseDownloaded(exercise);
-                        
                         project = projectMediator.tryGetProjectForExercise(exercise);
                     } finally {
                         projectOpener.bgTaskReady(project);
@@ -108,5 +107,45 @@ public class UpdateExercisesAction implements ActionListener {
                 }
             });
         }
+        batch.start();
+    }
+
+    private static synchronized FileChecksumCache getChecksumCache() {
+        if (checksumCache == null) {
+            try {
+                File storeFile = new File(ConfigFile.getConfigSubdirectory("checksums"), "crc32.txt");
+                checksumCache = new FileChecksumCache(storeFile, FileChecksumCache.DEFAULT_MAX_ENTRIES);
+            } catch (IOException ex) {
+                log.log(Level.WARNING, "Failed to create file checksum folder", ex);
+                checksumCache = new FileChecksumCache();
+            }
+        }
+        return checksumCache;
+    }
+
+    private CancellableCallable<Exercise> updatingTask(final Exercise exercise) {
+        final File projectDir = projectMediator.getProjectDirForExercise(exercise);
+        final CancellableCallable<File> download = serverAccess.getDownloadingExerciseZipTask(exercise);
+        return new CancellableCallable<Exercise>() {
+            @Override
+            public Exercise call() throws Exception {
+                File zipFile = download.call();
+                try {
+                    ExerciseUpdateOverwritingDecider overwriter = new ExerciseUpdateOverwritingDecider(projectDir);
+                    NbProjectUnzipper unzipper = new NbProjectUnzipper(overwriter);
+                    unzipper.setChecksumCache(getChecksumCache());
+                    NbProjectUnzipper.Result result = unzipper.unzipProject(zipFile, projectDir);
+                    log.info("== Exercise unzip result ==\n" + result);
+                } finally {
+                    zipFile.delete();
+                }
+                return exercise;
+            }
+
+            @Override
+            public boolean cancel() {
+                return download.cancel();
+            }
+        };
     }
 }
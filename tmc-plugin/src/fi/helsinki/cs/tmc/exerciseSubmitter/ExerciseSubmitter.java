@@ -20,11 +20,14 @@ import fi.helsinki.cs.tmc.ui.TestResultDisplayer;
 import fi.helsinki.cs.tmc.utilities.BgTask;
 import fi.helsinki.cs.tmc.utilities.BgTaskListener;
 import fi.helsinki.cs.tmc.utilities.CancellableCallable;
+import fi.helsinki.cs.tmc.utilities.http.HttpTasks;
 import fi.helsinki.cs.tmc.utilities.zip.RecursiveZipper;
+import fi.helsinki.cs.tmc.utilities.zip.ZipEntryCache;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.Callable;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -140,34 +143,23 @@ public class ExerciseSubmitter {
             }
         };
 
-        final String errorMsgLocale = settings.getErrorMsgLocale().toString();
+        Map<String, String> extraParams = new HashMap<String, String>();
+        extraParams.put("error_msg_locale", settings.getErrorMsgLocale().toString());
 
-        BgTask.start("Zipping up " + exercise.getName(), new Callable<byte[]>() {
+        // The zip is written straight into the upload as it is produced,
+        // so zipping and sending overlap and the zip is never held in memory.
+        HttpTasks.StreamingBody zip = new HttpTasks.StreamingBody() {
             @Override
-            public byte[] call() throws Exception {
+            public void writeTo(OutputStream out) throws IOException {
                 RecursiveZipper zipper = new RecursiveZipper(project.getProjectDirAsFile(), project.getZippingDecider());
-                return zipper.zipProjectSources();
-            }
-        }, new BgTaskListener<byte[]>() {
-            @Override
-            public void bgTaskReady(byte[] zipData) {
-                Map<String, String> extraParams = new HashMap<String, String>();
-                extraParams.put("error_msg_locale", errorMsgLocale);
-
-                CancellableCallable<ServerAccess.SubmissionResponse> submitTask = serverAccess.getSubmittingExerciseTask(exercise, zipData, extraParams);
-                dialog.setTask(submitTask);
-                BgTask.start("Sending " + exercise.getName(), submitTask, submissionListener);
-            }
-
-            @Override
-            public void bgTaskCancelled() {
-                submissionListener.bgTaskCancelled();
+                zipper.setEntryCache(ZipEntryCache.getInstance());
+                zipper.setParallel(true);
+                zipper.zipProjectSources(out);
             }
+        };
 
-            @Override
-            public void bgTaskFailed(Throwable ex) {
-                submissionListener.bgTaskFailed(ex);
-            }
-        });
+        CancellableCallable<ServerAccess.SubmissionResponse> submitTask = serverAccess.getStreamingSubmittingExerciseTask(exercise, zip, extraParams);
+        dialog.setTask(submitTask);
+        BgTask.start("Sending " + exercise.getName(), submitTask, submissionListener);
     }
 }
@@ -2,6 +2,7 @@ package fi.helsinki.cs.tmc.model;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
@@ -15,27 +16,75 @@ public class ConfigFile {
     private final String name;
     private FileObject fileObject;
     
+    /**
+     * The name may contain slash-separated folders under the TMC config folder.
+     */
     public ConfigFile(String name) {
         this.name = name;
     }
+
+    public String getName() {
+        return name;
+    }
+    
+    /**
+     * Returns the folder under which all TMC config files are kept, creating it if necessary.
+     */
+    public static FileObject getConfigFolder() throws IOException {
+        FileObject root = FileUtil.getConfigRoot();
+        FileObject tmcRoot = root.getFileObject("tmc");
+        if (tmcRoot == null) {
+            tmcRoot = root.createFolder("tmc");
+        }
+        return tmcRoot;
+    }
+
+    /**
+     * Returns a subfolder of the TMC config folder as a {@link File}, creating it if necessary.
+     *
+     * Meant for stores that need random access or appending, which FileObjects don't provide.
+     */
+    public static File getConfigSubdirectory(String name) throws IOException {
+        File tmcRoot = FileUtil.toFile(getConfigFolder());
+        if (tmcRoot == null) {
+            throw new IOException("TMC config folder is not on the local disk");
+        }
+        File dir = new File(tmcRoot, name);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Failed to create " + dir);
+        }
+        return dir;
+    }
     
     public FileObject getFileObject() throws IOException {
         if (fileObject == null) {
-            FileObject root = FileUtil.getConfigRoot();
-            FileObject tmcRoot = root.getFileObject("tmc");
-            if (tmcRoot == null) {
-                tmcRoot = root.createFolder("tmc");
-            }
+            FileObject tmcRoot = getConfigFolder();
             this.fileObject = tmcRoot.getFileObject(name);
             if (this.fileObject == null) {
-                this.fileObject = tmcRoot.createData(name);
+                this.fileObject = FileUtil.createData(tmcRoot, name);
             }
         }
         return fileObject;
     }
     
+    /**
+     * Returns whether the file exists and is not empty. Doesn't create the file.
+     */
     public boolean exists() throws IOException {
-        return getFileObject().getSize() > 0;
+        FileObject fo = fileObject;
+        if (fo == null || !fo.isValid()) {
+            fo = getConfigFolder().getFileObject(name);
+        }
+        return fo != null && fo.getSize() > 0;
+    }
+
+    public void delete() throws IOException {
+        FileObject tmcRoot = getConfigFolder();
+        FileObject fo = tmcRoot.getFileObject(name);
+        if (fo != null) {
+            fo.delete();
+        }
+        fileObject = null;
     }
 
     public Writer getWriter() throws IOException {
@@ -3,24 +3,36 @@ package fi.helsinki.cs.tmc.model;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import fi.helsinki.cs.tmc.data.Course;
-import fi.helsinki.cs.tmc.data.CourseListUtils;
 import fi.helsinki.cs.tmc.data.Exercise;
 import fi.helsinki.cs.tmc.data.ExerciseKey;
 import fi.helsinki.cs.tmc.events.TmcEvent;
 import fi.helsinki.cs.tmc.events.TmcEventBus;
+import fi.helsinki.cs.tmc.utilities.ExceptionUtils;
 import java.io.IOException;
-import java.io.Reader;
-import java.io.Writer;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import org.apache.commons.codec.binary.Hex;
+import org.openide.util.RequestProcessor;
 
 /**
  * Stores the list of available courses, the current course and its exercise list.
+ *
+ * <p>
+ * The current course, the downloaded checksums and the order of the courses are
+ * kept in the main config file. Each course is kept in a file of its own so that
+ * a change to one course doesn't rewrite the others. Changes are written in the
+ * background, a burst of them at a time, but {@link ChangedEvent} is posted right away.
  */
 public class CourseDb {
 
@@ -28,6 +40,10 @@ public class CourseDb {
     
     public static final Logger logger = Logger.getLogger(CourseDb.class.getName());
     private static CourseDb defaultInstance;
+
+    /*package*/ static final int STORE_DELAY = 1000;
+
+    private static final RequestProcessor storeProcessor = new RequestProcessor("TMC course database", 1, true);
     
     public static CourseDb getInstance() {
         if (defaultInstance == null) {
@@ -42,6 +58,73 @@ public class CourseDb {
     private String currentCourseName;
     private Map<ExerciseKey, String> downloadedExerciseChecksums;
 
+    // Courses whose files may be out of date, by name. Guarded by this.
+    private final Set<String> dirtyCourses = new HashSet<String>();
+    private boolean allCoursesDirty = false;
+    private boolean storeScheduled = false;
+    private final RequestProcessor.Task storeTask;
+
+    // What the files on disk currently contain, by file name. Guarded by storeLock.
+    private final Object storeLock = new Object();
+    private final Map<String, String> storedJson = new HashMap<String, String>();
+
+    // Rebuilt when first needed after a change. Guarded by this.
+    private Indexes indexes;
+
+    /**
+     * Hash indexes for lookups that would otherwise scan the course list.
+     *
+     * <p>
+     * Changes made to courses directly are seen after the next {@link CourseDb#save()}.
+     */
+    private static class Indexes {
+        private final Map<String, Course> coursesByName = new HashMap<String, Course>();
+        private final Map<String, Set<String>> unlockablesByCourseName = new HashMap<String, Set<String>>();
+        private final Map<ExerciseKey, Exercise> currentExercisesByKey = new HashMap<ExerciseKey, Exercise>();
+        private final List<Exercise> currentUnlockableExercises = new ArrayList<Exercise>();
+
+        public Indexes(List<Course> courses, String currentCourseName) {
+            for (Course course : courses) {
+                if (course.getName() == null) {
+                    continue;
+                }
+                if (!coursesByName.containsKey(course.getName())) {
+                    coursesByName.put(course.getName(), course);
+                }
+                List<String> unlockables = course.getUnlockables();
+                if (unlockables == null) {
+                    unlockables = Collections.emptyList();
+                }
+                unlockablesByCourseName.put(course.getName(), new HashSet<String>(unlockables));
+            }
+
+            Course current = coursesByName.get(currentCourseName);
+            if (current != null) {
+                Map<String, List<Exercise>> exercisesByName = new HashMap<String, List<Exercise>>();
+                for (Exercise ex : current.getExercises()) {
+                    if (!currentExercisesByKey.containsKey(ex.getKey())) {
+                        currentExercisesByKey.put(ex.getKey(), ex);
+                    }
+                    List<Exercise> sameName = exercisesByName.get(ex.getName());
+                    if (sameName == null) {
+                        sameName = new ArrayList<Exercise>(1);
+                        exercisesByName.put(ex.getName(), sameName);
+                    }
+                    sameName.add(ex);
+                }
+
+                if (current.getUnlockables() != null) {
+                    for (String exerciseName : current.getUnlockables()) {
+                        List<Exercise> exercises = exercisesByName.get(exerciseName);
+                        if (exercises != null) {
+                            currentUnlockableExercises.addAll(exercises);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
     private CourseDb() {
         this(TmcEventBus.getDefault(), new ConfigFile("CourseDb.json"));
     }
@@ -52,6 +135,12 @@ public class CourseDb {
         this.availableCourses = new ArrayList<Course>();
         this.currentCourseName = null;
         this.downloadedExerciseChecksums = new HashMap<ExerciseKey, String>();
+        this.storeTask = storeProcessor.create(new Runnable() {
+            @Override
+            public void run() {
+                store();
+            }
+        });
         try {
             loadFromFile();
         } catch (Exception e) {
@@ -59,45 +148,59 @@ public class CourseDb {
         }
     }
     
-    public List<Course> getAvailableCourses() {
+    public synchronized List<Course> getAvailableCourses() {
         return Collections.unmodifiableList(availableCourses);
     }
 
     public void setAvailableCourses(List<Course> availableCourses) {
-        this.availableCourses = availableCourses;
-        save();
+        synchronized (this) {
+            this.availableCourses = availableCourses;
+            allCoursesDirty = true;
+        }
+        changed();
     }
 
-    public Course getCurrentCourse() {
-        return CourseListUtils.getCourseByName(availableCourses, currentCourseName);
+    public synchronized Course getCurrentCourse() {
+        return getIndexes().coursesByName.get(currentCourseName);
     }
 
-    public String getCurrentCourseName() {
+    public synchronized String getCurrentCourseName() {
         return currentCourseName;
     }
 
     public void setCurrentCourseName(String currentCourseName) {
-        this.currentCourseName = currentCourseName;
-        save();
+        synchronized (this) {
+            this.currentCourseName = currentCourseName;
+        }
+        changed();
     }
 
     public void putDetailedCourse(Course course) {
-        for (int i = 0; i < availableCourses.size(); ++i) {
-            if (availableCourses.get(i).getName().equals(course.getName())) {
-                availableCourses.set(i, course);
-                save();
-                break;
+        synchronized (this) {
+            int i = indexOfCourse(course.getName());
+            if (i < 0) {
+                return;
             }
+            availableCourses.set(i, course);
+            dirtyCourses.add(course.getName());
         }
+        changed();
     }
 
-    public Exercise getExerciseByKey(ExerciseKey key) {
-        for (Exercise ex : getCurrentCourseExercises()) {
-            if (key.equals(ex.getKey())) {
-                return ex;
+    private int indexOfCourse(String name) {
+        for (int i = 0; i < availableCourses.size(); ++i) {
+            if (availableCourses.get(i).getName().equals(name)) {
+                return i;
             }
         }
-        return null;
+        return -1;
+    }
+
+    /**
+     * Returns the exercise of the current course with the given key, or null.
+     */
+    public synchronized Exercise getExerciseByKey(ExerciseKey key) {
+        return getIndexes().currentExercisesByKey.get(key);
     }
 
     /**
@@ -115,47 +218,30 @@ public class CourseDb {
         }
     }
     
-    public Course getCourseByName(String name) {
-        for (Course course : availableCourses) {
-            if (course.getName().equals(name)) {
-                return course;
-            }
-        }
-        return null;
+    public synchronized Course getCourseByName(String name) {
+        return getIndexes().coursesByName.get(name);
     }
     
-    public boolean isUnlockable(Exercise ex) {
-        Course course = getCourseByName(ex.getCourseName());
-        if (course != null) {
-            return course.getUnlockables().contains(ex.getName());
-        } else {
-            return false;
-        }
+    public synchronized boolean isUnlockable(Exercise ex) {
+        Set<String> unlockables = getIndexes().unlockablesByCourseName.get(ex.getCourseName());
+        return unlockables != null && unlockables.contains(ex.getName());
     }
     
     /**
      * Returns all exercises from the current course that can be unlocked (and must be unlocked together).
      */
-    public List<Exercise> getCurrentCourseUnlockableExercises() {
-        List<Exercise> result = new ArrayList<Exercise>();
-        Course course = getCurrentCourse();
-        if (course != null) {
-            List<String> unlockables = course.getUnlockables();
-            if (unlockables == null) {
-                unlockables = Collections.emptyList();
-            }
-            for (String exerciseName : unlockables) {
-                for (Exercise ex : course.getExercises()) {
-                    if (ex.getName().equals(exerciseName)) {
-                        result.add(ex);
-                    }
-                }
-            }
+    public synchronized List<Exercise> getCurrentCourseUnlockableExercises() {
+        return new ArrayList<Exercise>(getIndexes().currentUnlockableExercises);
+    }
+
+    private synchronized Indexes getIndexes() {
+        if (indexes == null) {
+            indexes = new Indexes(availableCourses, currentCourseName);
         }
-        return result;
+        return indexes;
     }
 
-    public String getDownloadedExerciseChecksum(ExerciseKey ex) {
+    public synchronized String getDownloadedExerciseChecksum(ExerciseKey ex) {
         return downloadedExerciseChecksums.get(ex);
     }
     
@@ -166,37 +252,103 @@ public class CourseDb {
      * Sets the downloaded checksum of the exercise to be the one reported by the server.
      */
     public void exerciseDownloaded(Exercise ex) {
-        downloadedExerciseChecksums.put(ex.getKey(), ex.getChecksum());
-        save();
+        synchronized (this) {
+            downloadedExerciseChecksums.put(ex.getKey(), ex.getChecksum());
+        }
+        changed();
     }
     
     //TODO: arrange for downloadedExerciseChecksums.put(..., null) when a project is deleted!
     
+    /**
+     * Saves changes made to the courses or exercises directly.
+     */
     public void save() {
-        try {
-            saveToFile();
-        } catch (Exception e) {
-            logger.log(Level.WARNING, "Failed to save course database", e);
+        synchronized (this) {
+            allCoursesDirty = true;
         }
+        changed();
+    }
+
+    /**
+     * Writes pending changes to disk now.
+     */
+    public void flush() {
+        synchronized (this) {
+            storeScheduled = false;
+        }
+        storeTask.cancel();
+        store();
+    }
+
+    private void changed() {
+        synchronized (this) {
+            indexes = null;
+        }
+        scheduleStore();
         eventBus.post(new ChangedEvent());
     }
+
+    private synchronized void scheduleStore() {
+        if (!storeScheduled) {
+            storeScheduled = true;
+            storeTask.schedule(STORE_DELAY);
+        }
+    }
     
     private static class StoredStuff {
-        public List<Course> availableCourses;
+        public List<String> courseNames;
         public String currentCourseName;
         public Map<ExerciseKey, String> downloadedExerciseChecksums;
+
+        // Written by versions that kept all courses in this file.
+        public List<Course> availableCourses;
     }
-    
-    private void saveToFile() throws IOException {
-        StoredStuff stuff = new StoredStuff();
-        stuff.availableCourses = this.availableCourses;
-        stuff.currentCourseName = this.currentCourseName;
-        stuff.downloadedExerciseChecksums = this.downloadedExerciseChecksums;
-        Writer w = configFile.getWriter();
-        try {
-            getGson().toJson(stuff, w);
-        } finally {
-            w.close();
+
+    private void store() {
+        // Snapshots are taken and written in the same order, so an older snapshot
+        // can't overwrite a newer one.
+        synchronized (storeLock) {
+            Map<String, String> filesToWrite = new LinkedHashMap<String, String>();
+            Set<String> courseFiles = new HashSet<String>();
+            synchronized (this) {
+                storeScheduled = false;
+                StoredStuff stuff = new StoredStuff();
+                stuff.courseNames = new ArrayList<String>();
+                for (Course course : availableCourses) {
+                    String fileName = courseFileName(course.getName());
+                    stuff.courseNames.add(course.getName());
+                    courseFiles.add(fileName);
+                    if (allCoursesDirty || dirtyCourses.contains(course.getName())) {
+                        filesToWrite.put(fileName, getCourseGson().toJson(course));
+                    }
+                }
+                stuff.currentCourseName = this.currentCourseName;
+                stuff.downloadedExerciseChecksums = this.downloadedExerciseChecksums;
+                filesToWrite.put(configFile.getName(), getIndexGson().toJson(stuff));
+                allCoursesDirty = false;
+                dirtyCourses.clear();
+            }
+
+            try {
+                for (Map.Entry<String, String> file : filesToWrite.entrySet()) {
+                    if (!file.getValue().equals(storedJson.get(file.getKey()))) {
+                        configFileNamed(file.getKey()).writeContents(file.getValue());
+                        storedJson.put(file.getKey(), file.getValue());
+                    }
+                }
+                for (String fileName : new ArrayList<String>(storedJson.keySet())) {
+                    if (!fileName.equals(configFile.getName()) && !courseFiles.contains(fileName)) {
+                        configFileNamed(fileName).delete();
+                        storedJson.remove(fileName);
+                    }
+                }
+            } catch (Exception e) {
+                logger.log(Level.WARNING, "Failed to save course database", e);
+                synchronized (this) {
+                    allCoursesDirty = true; // Retried on the next change
+                }
+            }
         }
     }
 
@@ -205,17 +357,23 @@ public class CourseDb {
             return;
         }
         
-        Reader reader = configFile.getReader();
-        StoredStuff stuff;
-        try {
-            stuff = getGson().fromJson(reader, StoredStuff.class);
-        } finally {
-            reader.close();
-        }
+        String indexJson = configFile.readContents();
+        StoredStuff stuff = getIndexGson().fromJson(indexJson, StoredStuff.class);
         if (stuff != null) {
             if (stuff.availableCourses != null) {
                 this.availableCourses.clear();
                 this.availableCourses.addAll(stuff.availableCourses);
+                allCoursesDirty = true;
+                scheduleStore(); // Into the current format
+            } else if (stuff.courseNames != null) {
+                this.availableCourses.clear();
+                for (String name : stuff.courseNames) {
+                    Course course = loadCourse(name);
+                    if (course != null) {
+                        this.availableCourses.add(course);
+                    }
+                }
+                storedJson.put(configFile.getName(), indexJson);
             }
             
             this.currentCourseName = stuff.currentCourseName;
@@ -226,11 +384,53 @@ public class CourseDb {
             }
         }
     }
-    
-    private Gson getGson() {
+
+    private Course loadCourse(String name) {
+        String fileName = courseFileName(name);
+        try {
+            ConfigFile file = configFileNamed(fileName);
+            if (!file.exists()) {
+                logger.log(Level.WARNING, "Course file missing for {0}", name);
+                return null;
+            }
+            String json = file.readContents();
+            Course course = getCourseGson().fromJson(json, Course.class);
+            if (course != null) {
+                storedJson.put(fileName, json);
+            }
+            return course;
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Failed to load course " + name, e);
+            return null;
+        }
+    }
+
+    private ConfigFile configFileNamed(String fileName) {
+        return fileName.equals(configFile.getName()) ? configFile : new ConfigFile(fileName);
+    }
+
+    private String courseFileName(String courseName) {
+        String dir = configFile.getName().replaceFirst("\\.json$", "") + "-courses";
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(courseName.getBytes("UTF-8"));
+            return dir + "/" + new String(Hex.encodeHex(digest)) + ".json";
+        } catch (NoSuchAlgorithmException ex) {
+            throw ExceptionUtils.toRuntimeException(ex);
+        } catch (UnsupportedEncodingException ex) {
+            throw ExceptionUtils.toRuntimeException(ex);
+        }
+    }
+
+    private Gson getIndexGson() {
+        return new GsonBuilder()
+                .registerTypeAdapter(ExerciseKey.class, new ExerciseKey.GsonAdapter())
+                .create();
+    }
+
+    private Gson getCourseGson() {
+        // Nulls are kept so that fields the constructors initialize load back as they were.
         return new GsonBuilder()
                 .serializeNulls()
-                .setPrettyPrinting()
                 .registerTypeAdapter(ExerciseKey.class, new ExerciseKey.GsonAdapter())
                 .create();
     }
@@ -0,0 +1,56 @@
+package fi.helsinki.cs.tmc.model;
+
+import fi.helsinki.cs.tmc.data.Exercise;
+import java.io.File;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maps project directories to the exercises of the current course.
+ *
+ * <p>
+ * Rebuilt when the course database, its current exercise list or the project
+ * root directory differs from last time, or after {@link #invalidate()}.
+ */
+/*package*/ class ExerciseDirectoryIndex {
+    private Map<File, Exercise> exercisesByDir;
+    private CourseDb indexedCourseDb;
+    private List<Exercise> indexedExercises;
+    private String indexedProjectRootDir;
+
+    /**
+     * Returns the intended project directory of an exercise.
+     */
+    public static File getProjectDirForExercise(String projectRootDir, Exercise ex) {
+        String path = 
+                projectRootDir + File.separator +
+                ex.getCourseName() + File.separator +
+                ex.getName().replaceAll("/", "-");
+        return new File(path);
+    }
+
+    public synchronized Exercise get(File projectDir, String projectRootDir, CourseDb courseDb) {
+        List<Exercise> exercises = courseDb.getCurrentCourseExercises();
+        if (exercisesByDir == null ||
+                courseDb != indexedCourseDb ||
+                exercises != indexedExercises ||
+                !projectRootDir.equals(indexedProjectRootDir)) {
+            exercisesByDir = new HashMap<File, Exercise>(exercises.size() * 2);
+            for (Exercise ex : exercises) {
+                File dir = getProjectDirForExercise(projectRootDir, ex);
+                if (!exercisesByDir.containsKey(dir)) {
+                    exercisesByDir.put(dir, ex);
+                }
+            }
+            indexedCourseDb = courseDb;
+            indexedExercises = exercises;
+            indexedProjectRootDir = projectRootDir;
+        }
+        return exercisesByDir.get(projectDir);
+    }
+
+    public synchronized void invalidate() {
+        exercisesByDir = null;
+    }
+}
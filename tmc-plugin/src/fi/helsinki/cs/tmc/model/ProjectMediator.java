@@ -1,7 +1,11 @@
 package fi.helsinki.cs.tmc.model;
 
 import fi.helsinki.cs.tmc.data.Exercise;
+import fi.helsinki.cs.tmc.events.TmcEventBus;
+import fi.helsinki.cs.tmc.events.TmcEventListener;
 import fi.helsinki.cs.tmc.utilities.ExceptionUtils;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
@@ -41,10 +45,30 @@ public class ProjectMediator {
     
     private OpenProjects openProjects;
     private ProjectManager projectManager;
+
+    private final ExerciseDirectoryIndex exerciseIndex = new ExerciseDirectoryIndex();
+    private final ProjectOwnerCache projectOwnerCache = new ProjectOwnerCache();
     
     public ProjectMediator() {
         this.openProjects = OpenProjects.getDefault();
         this.projectManager = ProjectManager.getDefault();
+
+        TmcEventBus.getDefault().subscribeDependent(new TmcEventListener() {
+            public void receive(CourseDb.ChangedEvent event) {
+                exerciseIndex.invalidate();
+            }
+        }, this);
+
+        this.openProjects.addPropertyChangeListener(new PropertyChangeListener() {
+            @Override
+            public void propertyChange(PropertyChangeEvent evt) {
+                if (OpenProjects.PROPERTY_OPEN_PROJECTS.equals(evt.getPropertyName())) {
+                    logger.log(Level.FINE, "Projects opened or closed. Project owner cache had {0} hits and {1} misses.",
+                            new Object[] { projectOwnerCache.getHits(), projectOwnerCache.getMisses() });
+                    projectOwnerCache.clear();
+                }
+            }
+        });
     }
     
     public TmcProjectInfo wrapProject(Project p) {
@@ -112,11 +136,7 @@ public class ProjectMediator {
      * The exercise must have a course name set.
      */
     public File getProjectDirForExercise(Exercise ex) {
-        String path = 
-                getProjectRootDir() + File.separator +
-                ex.getCourseName() + File.separator +
-                ex.getName().replaceAll("/", "-");
-        return new File(path);
+        return ExerciseDirectoryIndex.getProjectDirForExercise(getProjectRootDir(), ex);
     }
     
     /**
@@ -124,33 +144,59 @@ public class ProjectMediator {
      */
     public Exercise tryGetExerciseForProject(TmcProjectInfo project, CourseDb courseDb) {
         File projectDir = FileUtil.toFile(project.getProjectDir());
-        for (Exercise ex : courseDb.getCurrentCourseExercises()) {
-            if (getProjectDirForExercise(ex).equals(projectDir)) {
-                return ex;
-            }
+        if (projectDir == null) {
+            return null;
         }
-        return null;
+        return exerciseIndex.get(projectDir, getProjectRootDir(), courseDb);
     }
     
     /**
      * Attempts to find the project owning the given file object.
      */
     public TmcProjectInfo tryGetProjectOwningFile(FileObject fo) {
+        if (fo != null && !fo.isFolder()) {
+            fo = fo.getParent();
+        }
+        if (fo == null) {
+            return null;
+        }
+
+        TmcProjectInfo cached = projectOwnerCache.get(fo);
+        if (cached != null) {
+            return cached;
+        }
+
+        List<FileObject> visited = new ArrayList<FileObject>();
         while (fo != null) {
-            if (fo.isFolder()) {
-                try {
-                    Project proj = ProjectManager.getDefault().findProject(fo);
-                    if (proj != null) {
-                        return wrapProject(proj);
-                    }
-                } catch (Exception ex) {
-                    logger.log(Level.WARNING, "Error finding project owning file: " + fo, ex);
+            visited.add(fo);
+            try {
+                Project proj = ProjectManager.getDefault().findProject(fo);
+                if (proj != null) {
+                    TmcProjectInfo result = wrapProject(proj);
+                    projectOwnerCache.put(visited, result);
+                    return result;
                 }
+            } catch (Exception ex) {
+                logger.log(Level.WARNING, "Error finding project owning file: " + fo, ex);
             }
             fo = fo.getParent();
         }
         return null;
     }
+
+    /**
+     * How many times {@link #tryGetProjectOwningFile(FileObject)} found the project in its cache.
+     */
+    public long getProjectOwnerCacheHits() {
+        return projectOwnerCache.getHits();
+    }
+
+    /**
+     * How many times {@link #tryGetProjectOwningFile(FileObject)} had to search for the project.
+     */
+    public long getProjectOwnerCacheMisses() {
+        return projectOwnerCache.getMisses();
+    }
     
     /**
      * Returns the project for the exercise, or null if not yet created.
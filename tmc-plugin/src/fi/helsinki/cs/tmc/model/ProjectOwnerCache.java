@@ -0,0 +1,62 @@
+package fi.helsinki.cs.tmc.model;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.openide.filesystems.FileObject;
+
+/**
+ * Remembers which project owns each folder that files have been looked up in.
+ *
+ * <p>
+ * Entries whose folder or project directory has been deleted are dropped when
+ * looked up. Everything else is kept until {@link #clear()}, which should be
+ * called when projects are opened or closed.
+ */
+/*package*/ class ProjectOwnerCache {
+    private final Map<FileObject, TmcProjectInfo> ownersByFolder = new HashMap<FileObject, TmcProjectInfo>();
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * Returns the cached owner of the folder, or null if not known.
+     */
+    public synchronized TmcProjectInfo get(FileObject folder) {
+        TmcProjectInfo owner = ownersByFolder.get(folder);
+        if (owner != null && (!folder.isValid() || !owner.getProjectDir().isValid())) {
+            ownersByFolder.remove(folder);
+            owner = null;
+        }
+        if (owner != null) {
+            hits++;
+        } else {
+            misses++;
+        }
+        return owner;
+    }
+
+    /**
+     * Records the owner of the given folders.
+     */
+    public synchronized void put(List<FileObject> folders, TmcProjectInfo owner) {
+        for (FileObject folder : folders) {
+            ownersByFolder.put(folder, owner);
+        }
+    }
+
+    public synchronized void clear() {
+        ownersByFolder.clear();
+    }
+
+    public synchronized int size() {
+        return ownersByFolder.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+}
@@ -34,7 +34,29 @@ public class PushEventListener {
         }
     }
     
+    /**
+     * Tells that the results of a submission are ready to be fetched.
+     */
+    public static class SubmissionResultAvailableEvent implements TmcEvent {
+        public final String submissionUrl;
+        public SubmissionResultAvailableEvent(String submissionUrl) {
+            this.submissionUrl = submissionUrl;
+        }
+    }
+    
     private static PushEventListener instance;
+
+    /**
+     * Tells whether submission results are currently being pushed to us.
+     *
+     * A successful subscription alone doesn't count, since the server might
+     * not publish on the channel. At least one result must have been pushed.
+     */
+    public static boolean isReceivingSubmissionResults() {
+        PushEventListener listener = instance;
+        return listener != null && listener.isSubscribedToSubmissionResults();
+    }
+
     public static void start() {
         if (instance == null) {
             instance = new PushEventListener();
@@ -48,6 +70,8 @@ public class PushEventListener {
     private TmcEventBus eventBus;
     private BayeuxClient client;
     private boolean shouldReconnect;
+    private volatile boolean subscribedToSubmissionResults;
+    private volatile boolean submissionResultsPushed = false;
 
     PushEventListener() {
         this.settings = TmcSettings.getDefault();
@@ -127,6 +151,7 @@ public class PushEventListener {
         client = new BayeuxClient(cometUrl, transport);
         client.getChannel(Channel.META_HANDSHAKE).addListener(handshakeListener);
         client.getChannel(Channel.META_DISCONNECT).addListener(disconnectListener);
+        client.getChannel(Channel.META_SUBSCRIBE).addListener(subscribeListener);
 
         client.addExtension(getAuthenticationExtension(getAuthFields()));
         client.handshake();
@@ -182,6 +207,7 @@ public class PushEventListener {
         public void onMessage(ClientSessionChannel csc, Message msg) {
             if (msg.isSuccessful()) {
                 subscribeToReviews();
+                subscribeToSubmissionResults();
                 log.fine("Comet handshake successful.");
             } else {
                 log.info("Comet handshake with failed. Will retry.");
@@ -200,7 +226,20 @@ public class PushEventListener {
         }
     };
     
+    private MessageListener subscribeListener = new MessageListener() {
+        @Override
+        public void onMessage(ClientSessionChannel csc, Message msg) {
+            if (getSubmissionResultChannel().equals(msg.get(Message.SUBSCRIPTION_FIELD))) {
+                subscribedToSubmissionResults = msg.isSuccessful();
+                if (!msg.isSuccessful()) {
+                    log.info("Subscribing to submission results failed. Will poll for them.");
+                }
+            }
+        }
+    };
+    
     private synchronized void handleDisconnect() {
+        subscribedToSubmissionResults = false;
         if (shouldReconnect) {
             shouldReconnect = false;
             ensureConnected();
@@ -215,6 +254,30 @@ public class PushEventListener {
         client.getChannel(channel).subscribe(reviewAvailableListener);
     }
     
+    private String getSubmissionResultChannel() {
+        return "/broadcast/user/" + settings.getUsername() + "/submission-result";
+    }
+    
+    private synchronized void subscribeToSubmissionResults() {
+        client.getChannel(getSubmissionResultChannel()).subscribe(submissionResultListener);
+    }
+
+    private boolean isSubscribedToSubmissionResults() {
+        return submissionResultsPushed && subscribedToSubmissionResults && client != null && client.isConnected();
+    }
+    
+    private MessageListener submissionResultListener = new MessageListener() {
+        @Override
+        public void onMessage(ClientSessionChannel csc, Message msg) {
+            log.log(Level.FINE, "Comet message on submission-result: {0}", msg);
+            Object url = msg.getDataAsMap().get("submission_url");
+            if (url != null) {
+                submissionResultsPushed = true;
+                eventBus.post(new SubmissionResultAvailableEvent(url.toString()));
+            }
+        }
+    };
+    
     private MessageListener reviewAvailableListener = new MessageListener() {
         @Override
         public void onMessage(ClientSessionChannel csc, Message msg) {
@@ -12,32 +12,61 @@ import fi.helsinki.cs.tmc.data.Review;
 import fi.helsinki.cs.tmc.data.serialization.CourseInfoParser;
 import fi.helsinki.cs.tmc.data.serialization.CourseListParser;
 import fi.helsinki.cs.tmc.data.serialization.ReviewListParser;
+import fi.helsinki.cs.tmc.spyware.BinaryEventFormat;
 import fi.helsinki.cs.tmc.spyware.LoggableEvent;
 import fi.helsinki.cs.tmc.utilities.ByteArrayGsonSerializer;
 import fi.helsinki.cs.tmc.utilities.CancellableCallable;
-import fi.helsinki.cs.tmc.utilities.ExceptionUtils;
 import fi.helsinki.cs.tmc.utilities.UriUtils;
 import fi.helsinki.cs.tmc.utilities.http.FailedHttpResponseException;
+import fi.helsinki.cs.tmc.utilities.http.HttpCache;
 import fi.helsinki.cs.tmc.utilities.http.HttpTasks;
+import java.io.BufferedWriter;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.net.URI;
 import java.nio.charset.Charset;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import java.util.zip.GZIPOutputStream;
+import org.apache.commons.io.FileUtils;
 import org.openide.modules.Modules;
 
 /**
  * A frontend for the server.
  */
 public class ServerAccess {
+    private static final Logger log = Logger.getLogger(ServerAccess.class.getName());
+
     public static final int API_VERSION = 7;
-    
+
+    // Spyware servers that have rejected the binary event format.
+    private static final Set<String> urlsRejectingBinaryEvents =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    // Servers, by scheme and authority, that have rejected a chunked submission with 411 Length Required.
+    private static final Set<String> serversRequiringContentLength =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private static HttpCache httpCache;
+
+    // Files in the partial download folder that are being downloaded into.
+    private static final Set<File> partialDownloadsInProgress = new HashSet<File>();
+
+    // Partial downloads not touched for this long are deleted, whichever exercise they are for.
+    private static final long PARTIAL_DOWNLOAD_MAX_AGE = 7L * 24 * 60 * 60 * 1000;
+
     private TmcSettings settings;
     private CourseListParser courseListParser;
     private CourseInfoParser courseInfoParser;
@@ -87,7 +116,23 @@ public class ServerAccess {
     private HttpTasks createHttpTasks() {
         return new HttpTasks().setCredentials(settings.getUsername(), settings.getPassword());
     }
-    
+
+    private HttpTasks createCachingHttpTasks() {
+        return createHttpTasks().setCache(getHttpCache());
+    }
+
+    private static synchronized HttpCache getHttpCache() {
+        if (httpCache == null) {
+            try {
+                httpCache = new HttpCache(ConfigFile.getConfigSubdirectory("http-cache"));
+            } catch (IOException ex) {
+                log.log(Level.WARNING, "Failed to create HTTP cache directory", ex);
+                return null;
+            }
+        }
+        return httpCache;
+    }
+
     public boolean hasEnoughSettings() {
         return
                 !settings.getUsername().isEmpty() &&
@@ -103,7 +148,8 @@ public class ServerAccess {
     }
     
     public CancellableCallable<List<Course>> getDownloadingCourseListTask() {
-        final CancellableCallable<String> download = createHttpTasks().getForText(getCourseListUrl());
+        final String url = getCourseListUrl();
+        final CancellableCallable<String> download = createCachingHttpTasks().getForText(url);
         return new CancellableCallable<List<Course>>() {
             @Override
             public List<Course> call() throws Exception {
@@ -123,8 +169,8 @@ public class ServerAccess {
     }
 
     public CancellableCallable<Course> getFullCourseInfoTask(Course courseStub) {
-        String url = addApiCallQueryParameters(courseStub.getDetailsUrl());
-        final CancellableCallable<String> download = createHttpTasks().getForText(url);
+        final String url = addApiCallQueryParameters(courseStub.getDetailsUrl());
+        final CancellableCallable<String> download = createCachingHttpTasks().getForText(url);
         return new CancellableCallable<Course>() {
             @Override
             public Course call() throws Exception {
@@ -168,27 +214,207 @@ public class ServerAccess {
         return addApiCallQueryParameters(course.getUnlockUrl());
     }
     
-    public CancellableCallable<byte[]> getDownloadingExerciseZipTask(Exercise exercise) {
-        String zipUrl = exercise.getDownloadUrl();
-        return createHttpTasks().getForBinary(zipUrl);
+    /**
+     * Downloads the exercise zip into a file.
+     *
+     * An interrupted download is kept in the TMC config folder and resumed by the
+     * next download of the same exercise, as long as its checksum hasn't changed.
+     * The caller should delete the file when done with it.
+     */
+    public CancellableCallable<File> getDownloadingExerciseZipTask(Exercise exercise) {
+        return getResumableDownloadTask(exercise.getDownloadUrl(), partialDownloadPrefix(exercise, "exercise"), exercise.getChecksum());
     }
     
     public CancellableCallable<byte[]> getDownloadingExerciseSolutionZipTask(Exercise exercise) {
-        String zipUrl = exercise.getSolutionDownloadUrl();
-        return createHttpTasks().getForBinary(zipUrl);
+        final CancellableCallable<File> download =
+                getResumableDownloadTask(exercise.getSolutionDownloadUrl(), partialDownloadPrefix(exercise, "solution"), exercise.getChecksum());
+        return new CancellableCallable<byte[]>() {
+            @Override
+            public byte[] call() throws Exception {
+                File file = download.call();
+                try {
+                    return FileUtils.readFileToByteArray(file);
+                } finally {
+                    file.delete();
+                }
+            }
+
+            @Override
+            public boolean cancel() {
+                return download.cancel();
+            }
+        };
+    }
+
+    private CancellableCallable<File> getResumableDownloadTask(final String url, final String prefix, final String version) {
+        return new CancellableCallable<File>() {
+            private CancellableCallable<File> download;
+            private boolean cancelled = false;
+
+            @Override
+            public File call() throws Exception {
+                File partialFile = claimPartialDownload(prefix, version);
+                try {
+                    synchronized (this) {
+                        if (cancelled) {
+                            throw new InterruptedException();
+                        }
+                        if (partialFile != null) {
+                            download = createHttpTasks().getForResumableFile(url, partialFile);
+                        } else {
+                            download = createHttpTasks().getForFile(url, File.createTempFile("tmc-download-", ".zip"));
+                        }
+                    }
+                    return download.call();
+                } finally {
+                    if (partialFile != null) {
+                        releasePartialDownload(partialFile);
+                    }
+                }
+            }
+
+            @Override
+            public synchronized boolean cancel() {
+                cancelled = true;
+                if (download != null) {
+                    return download.cancel();
+                }
+                return true;
+            }
+        };
+    }
+
+    private static String partialDownloadPrefix(Exercise exercise, String kind) {
+        return safeFileName(exercise.getCourseName()) + "-" + safeFileName(exercise.getName()) + "-" + kind + "-";
+    }
+
+    private static String safeFileName(String s) {
+        return s.replaceAll("[^A-Za-z0-9_.]", "_");
+    }
+
+    /**
+     * Returns the file into which to download the given version, deleting
+     * partial downloads of other versions and expired partial downloads.
+     *
+     * Returns null if the file is already being downloaded into or the
+     * partial download folder is unavailable.
+     */
+    private static File claimPartialDownload(String prefix, String version) {
+        File dir;
+        try {
+            dir = ConfigFile.getConfigSubdirectory("partial-downloads");
+        } catch (IOException ex) {
+            log.log(Level.WARNING, "Failed to create partial download folder", ex);
+            return null;
+        }
+        File file = new File(dir, prefix + safeFileName("" + version) + ".zip");
+
+        synchronized (partialDownloadsInProgress) {
+            if (!partialDownloadsInProgress.add(file)) {
+                return null;
+            }
+            Set<File> inUse = new HashSet<File>();
+            for (File inProgress : partialDownloadsInProgress) {
+                inUse.add(inProgress);
+                inUse.add(HttpTasks.getResumeValidatorFile(inProgress));
+            }
+            long expiryTime = System.currentTimeMillis() - PARTIAL_DOWNLOAD_MAX_AGE;
+            File[] files = dir.listFiles();
+            if (files != null) {
+                for (File other : files) {
+                    if (inUse.contains(other)) {
+                        continue;
+                    }
+                    boolean otherVersion = other.getName().startsWith(prefix) && !other.getName().startsWith(file.getName());
+                    if (otherVersion || other.lastModified() < expiryTime) {
+                        other.delete();
+                    }
+                }
+            }
+        }
+        return file;
+    }
+
+    private static void releasePartialDownload(File file) {
+        synchronized (partialDownloadsInProgress) {
+            partialDownloadsInProgress.remove(file);
+        }
     }
 
     public CancellableCallable<SubmissionResponse> getSubmittingExerciseTask(final Exercise exercise, final byte[] sourceZip, Map<String, String> extraParams) {
         final String submitUrl = addApiCallQueryParameters(exercise.getReturnUrl());
+        final CancellableCallable<String> upload =
+                createHttpTasks().uploadFileForTextDownload(submitUrl, makeSubmissionParams(extraParams), "submission[file]", sourceZip);
+        return parseSubmissionResponse(upload);
+    }
+
+    /**
+     * Submits a zip that is written by the given body while it is being uploaded.
+     *
+     * If the server requires a Content-Length, the zip is written into memory
+     * and submitted like with {@link #getSubmittingExerciseTask}.
+     */
+    public CancellableCallable<SubmissionResponse> getStreamingSubmittingExerciseTask(final Exercise exercise, final HttpTasks.StreamingBody sourceZip, Map<String, String> extraParams) {
+        final String submitUrl = addApiCallQueryParameters(exercise.getReturnUrl());
+        final Map<String, String> params = makeSubmissionParams(extraParams);
+        final String server = serverOf(submitUrl);
+
+        CancellableCallable<String> upload = new CancellableCallable<String>() {
+            private CancellableCallable<String> currentUpload;
+            private boolean cancelled = false;
+
+            @Override
+            public String call() throws Exception {
+                if (!serversRequiringContentLength.contains(server)) {
+                    try {
+                        return startUpload(createHttpTasks().streamingUploadFileForTextDownload(submitUrl, params, "submission[file]", sourceZip)).call();
+                    } catch (FailedHttpResponseException ex) {
+                        if (ex.getStatusCode() != 411) {
+                            throw ex;
+                        }
+                        log.log(Level.INFO, "{0} requires a Content-Length for submissions", server);
+                        serversRequiringContentLength.add(server);
+                    }
+                }
+                ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+                sourceZip.writeTo(buffer);
+                return startUpload(createHttpTasks().uploadFileForTextDownload(submitUrl, params, "submission[file]", buffer.toByteArray())).call();
+            }
+
+            private synchronized CancellableCallable<String> startUpload(CancellableCallable<String> upload) throws InterruptedException {
+                if (cancelled) {
+                    throw new InterruptedException();
+                }
+                currentUpload = upload;
+                return upload;
+            }
+
+            @Override
+            public synchronized boolean cancel() {
+                cancelled = true;
+                if (currentUpload != null) {
+                    return currentUpload.cancel();
+                }
+                return true;
+            }
+        };
+        return parseSubmissionResponse(upload);
+    }
+
+    private static String serverOf(String url) {
+        URI uri = URI.create(url);
+        return uri.getScheme() + "://" + uri.getRawAuthority();
+    }
 
+    private Map<String, String> makeSubmissionParams(Map<String, String> extraParams) {
         Map<String, String> params = new LinkedHashMap<String, String>();
         params.put("client_time", "" + (System.currentTimeMillis() / 1000L));
         params.put("client_nanotime", "" + System.nanoTime());
         params.putAll(extraParams);
+        return params;
+    }
 
-        final CancellableCallable<String> upload =
-                createHttpTasks().uploadFileForTextDownload(submitUrl, params, "submission[file]", sourceZip);
-        
+    private CancellableCallable<SubmissionResponse> parseSubmissionResponse(final CancellableCallable<String> upload) {
         return new CancellableCallable<SubmissionResponse>() {
             @Override
             public SubmissionResponse call() throws Exception {
@@ -311,53 +537,108 @@ public class ServerAccess {
         };
     }
     
-    public CancellableCallable<Object> getSendEventLogJob(String spywareServerUrl, List<LoggableEvent> events) {
-        String url = addApiCallQueryParameters(spywareServerUrl);
-
-        Map<String, String> extraHeaders = new LinkedHashMap<String, String>();
-        extraHeaders.put("X-Tmc-Version", "1");
-        extraHeaders.put("X-Tmc-Username", settings.getUsername());
-        extraHeaders.put("X-Tmc-Password", settings.getPassword());
-
-        byte[] data;
-        try {
-            data = eventListToPostBody(events);
-        } catch (IOException e) {
-            throw ExceptionUtils.toRuntimeException(e);
-        }
-
-        final CancellableCallable<String> upload = createHttpTasks().rawPostForText(url, data, extraHeaders);
+    /**
+     * Sends events to a spyware server.
+     *
+     * <p>
+     * The events are offered in {@link BinaryEventFormat} first. If the server
+     * rejects that format with 400 Bad Request or 415 Unsupported Media Type,
+     * the same events are resent as JSON and the server is sent only JSON from
+     * then on. Other errors, such as 413 or 5xx, are thrown as is so that
+     * the caller can split or retry the batch.
+     */
+    public CancellableCallable<Object> getSendEventLogJob(final String spywareServerUrl, final List<LoggableEvent> events) {
+        final String url = addApiCallQueryParameters(spywareServerUrl);
 
         return new CancellableCallable<Object>() {
+            private CancellableCallable<String> upload;
+            private boolean cancelled = false;
+
             @Override
             public Object call() throws Exception {
-                upload.call();
+                if (!urlsRejectingBinaryEvents.contains(spywareServerUrl)) {
+                    try {
+                        startUpload(true).call();
+                        return null;
+                    } catch (FailedHttpResponseException ex) {
+                        if (ex.getStatusCode() != 400 && ex.getStatusCode() != 415) {
+                            throw ex;
+                        }
+                        log.log(Level.INFO, "Spyware server responded to binary events with {0}. Sending JSON instead.", ex.getStatusCode());
+                        urlsRejectingBinaryEvents.add(spywareServerUrl);
+                    }
+                }
+                startUpload(false).call();
                 return null;
             }
 
+            private synchronized CancellableCallable<String> startUpload(boolean binary) throws InterruptedException {
+                if (cancelled) {
+                    throw new InterruptedException();
+                }
+                upload = createEventUpload(url, events, binary);
+                return upload;
+            }
+
             @Override
-            public boolean cancel() {
-                return upload.cancel();
+            public synchronized boolean cancel() {
+                cancelled = true;
+                if (upload != null) {
+                    return upload.cancel();
+                }
+                return true;
             }
         };
     }
 
-    private byte[] eventListToPostBody(List<LoggableEvent> events) throws IOException {
-        ByteArrayOutputStream bufferBos = new ByteArrayOutputStream();
-        GZIPOutputStream gzos = new GZIPOutputStream(bufferBos);
-        OutputStreamWriter bufferWriter = new OutputStreamWriter(gzos, Charset.forName("UTF-8"));
+    private CancellableCallable<String> createEventUpload(String url, final List<LoggableEvent> events, final boolean binary) {
+        Map<String, String> extraHeaders = new LinkedHashMap<String, String>();
+        if (binary) {
+            extraHeaders.put("X-Tmc-Version", "2");
+            extraHeaders.put("Content-Type", BinaryEventFormat.CONTENT_TYPE);
+        } else {
+            extraHeaders.put("X-Tmc-Version", "1");
+        }
+        extraHeaders.put("X-Tmc-Username", settings.getUsername());
+        extraHeaders.put("X-Tmc-Password", settings.getPassword());
+
+        // Serialized and gzipped straight onto the connection so that
+        // the whole body never needs to be held in memory.
+        HttpTasks.StreamingBody body = new HttpTasks.StreamingBody() {
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                GZIPOutputStream gzos = new GZIPOutputStream(out, 8192);
+                if (binary) {
+                    writeBinaryPostBody(events, gzos);
+                } else {
+                    writePostBody(events, gzos);
+                }
+                gzos.finish();
+                gzos.flush();
+            }
+        };
+        return createHttpTasks().streamingPostForText(url, body, extraHeaders);
+    }
+
+    private void writeBinaryPostBody(List<LoggableEvent> events, OutputStream out) throws IOException {
+        BinaryEventFormat.Writer writer = new BinaryEventFormat.Writer(out);
+        for (LoggableEvent event : events) {
+            writer.write(event);
+        }
+        writer.finish();
+    }
+
+    private void writePostBody(List<LoggableEvent> events, OutputStream out) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, Charset.forName("UTF-8")));
 
         Gson gson = new GsonBuilder()
                 .registerTypeAdapter(byte[].class, new ByteArrayGsonSerializer())
                 .create();
 
-        gson.toJson(events, new TypeToken<List<LoggableEvent>>(){}.getType(), bufferWriter);
-        bufferWriter.close();
-        gzos.close();
-
-        return bufferBos.toByteArray();
+        gson.toJson(events, new TypeToken<List<LoggableEvent>>(){}.getType(), writer);
+        writer.flush();
     }
-    
+
     private <T> T checkForObsoleteClient(FailedHttpResponseException ex) throws ObsoleteClientException, FailedHttpResponseException {
         if (ex.getStatusCode() == 404) {
             boolean obsolete;
@@ -0,0 +1,89 @@
+package fi.helsinki.cs.tmc.model;
+
+/**
+ * Decides how long {@link SubmissionResultWaiter} waits between polls.
+ *
+ * <p>
+ * The delay is about half of the expected remaining wait, estimated from the
+ * submission's position in the queue and how quickly the server has been observed
+ * to process submissions. Once the server has been seen to push results to us,
+ * polling is only a fallback in case a push message is lost, so it is done rarely.
+ */
+/*package*/ class SubmissionPollingPolicy {
+    /*package*/ static final long MIN_POLL_DELAY = 1000;
+    /*package*/ static final long MAX_POLL_DELAY = 20 * 1000;
+    /*package*/ static final long PUSH_FALLBACK_POLL_DELAY = 30 * 1000;
+    /*package*/ static final long DEFAULT_TIME_PER_SUBMISSION = 4000;
+
+    /**
+     * A moving average of how long the server takes per submission in its queue.
+     */
+    /*package*/ static class ProcessingTimeEstimate {
+        private static final double WEIGHT_OF_NEW_SAMPLE = 0.3;
+
+        private double millisPerSubmission;
+
+        public ProcessingTimeEstimate(long initialMillisPerSubmission) {
+            this.millisPerSubmission = initialMillisPerSubmission;
+        }
+
+        public synchronized void addSample(double millis) {
+            millisPerSubmission = (1 - WEIGHT_OF_NEW_SAMPLE) * millisPerSubmission + WEIGHT_OF_NEW_SAMPLE * millis;
+        }
+
+        public synchronized long getMillisPerSubmission() {
+            return (long)millisPerSubmission;
+        }
+    }
+
+    // Shared so that later submissions start with what earlier ones observed.
+    private static final ProcessingTimeEstimate sharedEstimate = new ProcessingTimeEstimate(DEFAULT_TIME_PER_SUBMISSION);
+
+    private final ProcessingTimeEstimate estimate;
+    private int submissionsBefore = 0;
+    private long positionChangedAt = -1;
+    private long reachedFrontAt = -1;
+
+    public SubmissionPollingPolicy() {
+        this(sharedEstimate);
+    }
+
+    public SubmissionPollingPolicy(ProcessingTimeEstimate estimate) {
+        this.estimate = estimate;
+    }
+
+    /**
+     * Records the queue position reported by a poll.
+     */
+    public void positionObserved(long now, int submissionsBefore) {
+        if (positionChangedAt < 0) {
+            positionChangedAt = now;
+        } else if (submissionsBefore < this.submissionsBefore) {
+            estimate.addSample((double)(now - positionChangedAt) / (this.submissionsBefore - submissionsBefore));
+            positionChangedAt = now;
+        }
+        this.submissionsBefore = submissionsBefore;
+
+        if (submissionsBefore == 0 && reachedFrontAt < 0) {
+            reachedFrontAt = now;
+        }
+    }
+
+    /**
+     * Records that the results arrived.
+     */
+    public void resultReceived(long now) {
+        if (reachedFrontAt >= 0) {
+            estimate.addSample(now - reachedFrontAt);
+        }
+    }
+
+    public long getNextDelay(boolean resultsArePushed) {
+        long expectedWait = (submissionsBefore + 1) * estimate.getMillisPerSubmission();
+        long delay = Math.max(MIN_POLL_DELAY, Math.min(expectedWait / 2, MAX_POLL_DELAY));
+        if (resultsArePushed) {
+            delay = Math.max(delay, PUSH_FALLBACK_POLL_DELAY);
+        }
+        return delay;
+    }
+}
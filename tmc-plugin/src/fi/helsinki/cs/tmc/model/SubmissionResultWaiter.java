@@ -4,6 +4,8 @@ import com.google.gson.JsonElement;
 import com.google.gson.JsonParser;
 import fi.helsinki.cs.tmc.data.SubmissionResult;
 import fi.helsinki.cs.tmc.data.serialization.SubmissionResultParser;
+import fi.helsinki.cs.tmc.events.TmcEventBus;
+import fi.helsinki.cs.tmc.events.TmcEventListener;
 import fi.helsinki.cs.tmc.ui.SubmissionProgressView;
 import fi.helsinki.cs.tmc.utilities.CancellableCallable;
 import java.util.logging.Logger;
@@ -13,35 +15,60 @@ import org.openide.util.Cancellable;
  * Sends a submission to the server and polls for results for a time.
  *
  * Reports approximate progress.
+ *
+ * If the server pushes a notice that the results are ready, they are fetched
+ * immediately. Otherwise the delay between polls adapts to the submission's
+ * position in the queue, as decided by {@link SubmissionPollingPolicy}.
  */
 public class SubmissionResultWaiter implements CancellableCallable<SubmissionResult> {
     private static final Logger log = Logger.getLogger(SubmissionResultWaiter.class.getName());
 
-    private final long DEFAULT_POLL_DELAY = 2 * 1000;
-
     private final String submissionUrl;
     private final SubmissionProgressView view;
 
     private final SubmissionResultParser resultParser;
     private final ServerAccess serverAccess;
-    private final long pollDelay;
+    private final TmcEventBus eventBus;
+    private final SubmissionPollingPolicy pollingPolicy;
 
-    // Concurrency control on cancel
+    // Concurrency control on cancel and on pushed results
     private final Object lock = new Object();
     private boolean canceled = false;
+    private boolean resultAvailable = false;
     private Cancellable cancellableDownloadTask = null;
-    private Thread sleepingThread = null;
+
+    private final TmcEventListener pushListener = new TmcEventListener() {
+        public void receive(PushEventListener.SubmissionResultAvailableEvent e) {
+            if (stripQuery(e.submissionUrl).equals(stripQuery(submissionUrl))) {
+                log.fine("Submission results pushed");
+                synchronized (lock) {
+                    resultAvailable = true;
+                    lock.notifyAll();
+                }
+            }
+        }
+    };
 
     public SubmissionResultWaiter(String submissionUrl, SubmissionProgressView view) {
         this.submissionUrl = submissionUrl;
         this.view = view;
         this.resultParser = new SubmissionResultParser();
         this.serverAccess = new ServerAccess();
-        this.pollDelay = DEFAULT_POLL_DELAY;
+        this.eventBus = TmcEventBus.getDefault();
+        this.pollingPolicy = new SubmissionPollingPolicy();
     }
 
     @Override
     public SubmissionResult call() throws Exception {
+        eventBus.subscribeStrongly(pushListener);
+        try {
+            return waitForResult();
+        } finally {
+            eventBus.unsubscribe(pushListener);
+        }
+    }
+
+    private SubmissionResult waitForResult() throws Exception {
         while (true) {
             CancellableCallable<String> downloadTask = serverAccess.getSubmissionFetchTask(submissionUrl);
 
@@ -52,6 +79,7 @@ public class SubmissionResultWaiter implements CancellableCallable<SubmissionRes
                     throw new InterruptedException(msg);
                 }
                 cancellableDownloadTask = downloadTask;
+                resultAvailable = false;
             }
 
             log.fine("Requesting submission results");
@@ -60,27 +88,29 @@ public class SubmissionResultWaiter implements CancellableCallable<SubmissionRes
 
             if (isProcessing(json)) {
                 updateProgress(json);
-                sleepInterruptably(pollDelay);
+                waitInterruptably(pollingPolicy.getNextDelay(PushEventListener.isReceivingSubmissionResults()));
             } else {
+                pollingPolicy.resultReceived(System.currentTimeMillis());
                 return resultParser.parseFromJson(jsonText);
             }
         }
     }
 
-    private void sleepInterruptably(long delay) {
+    /**
+     * Waits for the delay or until results are pushed or the task is cancelled.
+     */
+    private void waitInterruptably(long delay) {
+        long deadline = System.currentTimeMillis() + delay;
         synchronized (lock) {
-            if (canceled) {
-                return;
+            long remaining = delay;
+            while (!canceled && !resultAvailable && remaining > 0) {
+                try {
+                    lock.wait(remaining);
+                } catch (InterruptedException ex) {
+                    canceled = true;
+                }
+                remaining = deadline - System.currentTimeMillis();
             }
-            sleepingThread = Thread.currentThread(); // Prepare to receive interrupt.
-        }
-        try {
-            Thread.sleep(delay);
-        } catch (InterruptedException ex) {
-        }
-        synchronized (lock) {
-            sleepingThread = null;
-            Thread.interrupted(); // Consume any interrupt.
         }
     }
 
@@ -91,15 +121,21 @@ public class SubmissionResultWaiter implements CancellableCallable<SubmissionRes
 
     private void updateProgress(JsonElement responseRoot) {
         int submissionsBefore = responseRoot.getAsJsonObject().get("submissions_before_this").getAsInt();
+        pollingPolicy.positionObserved(System.currentTimeMillis(), submissionsBefore);
         view.setPositionInQueueFromAnyThread(submissionsBefore + 1);
     }
 
+    private static String stripQuery(String url) {
+        int i = url.indexOf('?');
+        return (i >= 0) ? url.substring(0, i) : url;
+    }
+
     @Override
     public boolean cancel() {
         /*
          * One of three conditions always hold:
          * 1. cancellableDownloadTask is set to an active download task.
-         * 2. sleepingThread is set and may be sent an interrupt.
+         * 2. The calling thread is waiting on lock and will be notified.
          * 3. canceled will be checked soon.
          */
         synchronized (lock) {
@@ -107,9 +143,7 @@ public class SubmissionResultWaiter implements CancellableCallable<SubmissionRes
             if (cancellableDownloadTask != null) {
                 cancellableDownloadTask.cancel();
             }
-            if (sleepingThread != null) {
-                sleepingThread.interrupt();
-            }
+            lock.notifyAll();
         }
         return true;
     }
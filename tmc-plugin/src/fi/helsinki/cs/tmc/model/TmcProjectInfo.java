@@ -2,6 +2,7 @@ package fi.helsinki.cs.tmc.model;
 
 import fi.helsinki.cs.tmc.utilities.zip.RecursiveZipper;
 import java.io.File;
+import java.util.List;
 import java.util.regex.Pattern;
 import org.netbeans.api.project.Project;
 import org.netbeans.api.project.ProjectUtils;
@@ -85,11 +86,27 @@ public class TmcProjectInfo {
     private abstract static class AbstractZippingDecider implements RecursiveZipper.ZippingDecider {
 
         protected TmcProjectInfo projectInfo;
+        private File projectParentDir; // Looked up once per zipping
+        private List<String> extraStudentFiles; // Parsed once per zipping
 
         public AbstractZippingDecider(TmcProjectInfo projectInfo) {
             this.projectInfo = projectInfo;
         }
 
+        private File getProjectParentDir() {
+            if (projectParentDir == null) {
+                projectParentDir = projectInfo.getProjectDirAsFile().getParentFile();
+            }
+            return projectParentDir;
+        }
+
+        private List<String> getExtraStudentFiles() {
+            if (extraStudentFiles == null) {
+                extraStudentFiles = projectInfo.getTmcProjectFile().getExtraStudentFiles();
+            }
+            return extraStudentFiles;
+        }
+
         protected String withoutRootDir(String zipPath) {
             int i = zipPath.indexOf('/');
             if (i != -1) {
@@ -101,7 +118,7 @@ public class TmcProjectInfo {
 
         protected boolean isExplicitlyStudentFile(String zipPath) {
             // TODO: make glob patterns like 'foo/bar/*/baz/**/xoox.*' possible
-            return projectInfo.getTmcProjectFile().getExtraStudentFiles().contains(withoutRootDir(zipPath));
+            return getExtraStudentFiles().contains(withoutRootDir(zipPath));
         }
 
         protected boolean hasNoSubmitFile(File dir) {
@@ -112,12 +129,12 @@ public class TmcProjectInfo {
 
         @Override
         public boolean shouldZip(String zipPath) {
-            File file = new File(projectInfo.getProjectDirAsFile().getParentFile(), zipPath);
             if (isExplicitlyStudentFile(zipPath)) {
                 return true;
             }
 
-            if (file.isDirectory()) {
+            if (zipPath.endsWith("/")) {
+                File file = new File(getProjectParentDir(), zipPath);
                 if (hasNoSubmitFile(file)) {
                     return false;
                 }
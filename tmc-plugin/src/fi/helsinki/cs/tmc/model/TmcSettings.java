@@ -4,6 +4,7 @@ import fi.helsinki.cs.tmc.events.TmcEvent;
 import fi.helsinki.cs.tmc.events.TmcEventBus;
 import fi.helsinki.cs.tmc.tailoring.SelectedTailoring;
 import fi.helsinki.cs.tmc.tailoring.Tailoring;
+import fi.helsinki.cs.tmc.utilities.DownloadScheduler;
 import java.util.Locale;
 
 /**
@@ -19,6 +20,7 @@ public class TmcSettings {
     private static final String PREF_SPYWARE_ENABLED = "spywareEnabled";
     private static final String PREF_DETAILED_SPYWARE_ENABLED = "detailedSpywareEnabled";
     private static final String PREF_ERROR_MSG_LOCALE = "errorMsgLocale";
+    private static final String PREF_MAX_CONCURRENT_DOWNLOADS = "maxConcurrentDownloads";
     
     private static final TmcSettings defaultInstance =
             new TmcSettings(
@@ -164,6 +166,21 @@ public class TmcSettings {
         settings.put(PREF_ERROR_MSG_LOCALE, locale.toString());
     }
     
+    public int getMaxConcurrentDownloads() {
+        String dflt = "" + DownloadScheduler.DEFAULT_MAX_CONCURRENT_DOWNLOADS;
+        int value;
+        try {
+            value = Integer.parseInt(settings.get(PREF_MAX_CONCURRENT_DOWNLOADS, dflt));
+        } catch (NumberFormatException ex) {
+            value = DownloadScheduler.DEFAULT_MAX_CONCURRENT_DOWNLOADS;
+        }
+        return Math.max(1, Math.min(value, DownloadScheduler.MAX_CONCURRENT_DOWNLOADS));
+    }
+    
+    public void setMaxConcurrentDownloads(int value) {
+        settings.put(PREF_MAX_CONCURRENT_DOWNLOADS, "" + value);
+    }
+    
     private Locale parseLocale(String s, Locale dflt) {
         if (s.isEmpty()) {
             return dflt;
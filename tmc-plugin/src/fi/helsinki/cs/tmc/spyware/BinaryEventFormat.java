@@ -0,0 +1,240 @@
+package fi.helsinki.cs.tmc.spyware;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compact binary encoding for batches of {@link LoggableEvent}s.
+ *
+ * <p>
+ * A batch starts with the magic bytes {@code "TMCE"} and a version byte.
+ * Each event is preceded by a tag byte of 1 and the batch ends with a tag byte of 0.
+ * Integers are varints (longs zigzag-encoded). Course names, exercise names
+ * and event types are interned into a per-batch dictionary: a reference of 0
+ * is followed by a new string, and {@code n > 0} refers to the n'th string seen.
+ * Data and metadata are written as a length of {@code n + 1} followed by
+ * {@code n} raw bytes, or a length of 0 for null.
+ *
+ * <p>
+ * Unlike the JSON format, the data bytes are not base64-encoded.
+ */
+public class BinaryEventFormat {
+    public static final String CONTENT_TYPE = "application/x-tmc-events";
+    public static final int VERSION = 1;
+
+    private static final byte[] MAGIC = new byte[] { 'T', 'M', 'C', 'E' };
+    private static final int TAG_END = 0;
+    private static final int TAG_EVENT = 1;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    public static byte[] encode(List<LoggableEvent> events) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        Writer writer = new Writer(bos);
+        for (LoggableEvent event : events) {
+            writer.write(event);
+        }
+        writer.finish();
+        return bos.toByteArray();
+    }
+
+    public static List<LoggableEvent> decode(byte[] bytes) throws IOException {
+        Reader reader = new Reader(new ByteArrayInputStream(bytes));
+        ArrayList<LoggableEvent> result = new ArrayList<LoggableEvent>();
+        LoggableEvent event;
+        while ((event = reader.read()) != null) {
+            result.add(event);
+        }
+        return result;
+    }
+
+    /**
+     * Tells whether the given bytes start with the header of this format.
+     */
+    public static boolean hasHeader(byte[] bytes) {
+        return bytes.length > MAGIC.length && Arrays.equals(MAGIC, Arrays.copyOf(bytes, MAGIC.length));
+    }
+
+    /**
+     * Writes a batch of events to a stream.
+     *
+     * The header is written on construction and {@link #finish()} must be called
+     * after the last event. The underlying stream is not closed.
+     */
+    public static class Writer {
+        private final OutputStream out;
+        private final Map<String, Integer> dictionary = new HashMap<String, Integer>();
+
+        public Writer(OutputStream out) throws IOException {
+            this.out = out;
+            out.write(MAGIC);
+            out.write(VERSION);
+        }
+
+        public void write(LoggableEvent event) throws IOException {
+            out.write(TAG_EVENT);
+            writeInterned(event.getCourseName());
+            writeInterned(event.getExerciseName());
+            writeInterned(event.getEventType());
+            writeVarLong(zigzag(event.getHappenedAt()));
+            writeVarLong(zigzag(event.getSystemNanotime()));
+            writeBytes(event.getMetadata() != null ? event.getMetadata().getBytes(UTF8) : null);
+            writeBytes(event.getData());
+        }
+
+        public void finish() throws IOException {
+            out.write(TAG_END);
+            out.flush();
+        }
+
+        private void writeInterned(String s) throws IOException {
+            Integer index = dictionary.get(s);
+            if (index != null) {
+                writeVarLong(index + 1);
+            } else {
+                writeVarLong(0);
+                writeBytes(s != null ? s.getBytes(UTF8) : null);
+                dictionary.put(s, dictionary.size());
+            }
+        }
+
+        private void writeBytes(byte[] bytes) throws IOException {
+            if (bytes == null) {
+                writeVarLong(0);
+            } else {
+                writeVarLong(bytes.length + 1L);
+                out.write(bytes);
+            }
+        }
+
+        private void writeVarLong(long value) throws IOException {
+            while ((value & ~0x7FL) != 0) {
+                out.write((int)((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            out.write((int)value);
+        }
+    }
+
+    /**
+     * Reads a batch of events written by {@link Writer}.
+     */
+    public static class Reader {
+        private final InputStream in;
+        private final List<String> dictionary = new ArrayList<String>();
+
+        public Reader(InputStream in) throws IOException {
+            this.in = in;
+            byte[] magic = readFully(MAGIC.length);
+            if (!Arrays.equals(MAGIC, magic)) {
+                throw new IOException("Not a binary event batch");
+            }
+            int version = readByte();
+            if (version != VERSION) {
+                throw new IOException("Unsupported binary event format version: " + version);
+            }
+        }
+
+        /**
+         * Returns the next event or null at the end of the batch.
+         */
+        public LoggableEvent read() throws IOException {
+            int tag = readByte();
+            if (tag == TAG_END) {
+                return null;
+            } else if (tag != TAG_EVENT) {
+                throw new IOException("Unexpected tag in binary event batch: " + tag);
+            }
+
+            String courseName = readInterned();
+            String exerciseName = readInterned();
+            String eventType = readInterned();
+            long happenedAt = unzigzag(readVarLong());
+            long systemNanotime = unzigzag(readVarLong());
+            byte[] metadata = readBytes();
+            byte[] data = readBytes();
+            return new LoggableEvent(
+                    courseName,
+                    exerciseName,
+                    eventType,
+                    data,
+                    metadata != null ? new String(metadata, UTF8) : null,
+                    happenedAt,
+                    systemNanotime);
+        }
+
+        private String readInterned() throws IOException {
+            long ref = readVarLong();
+            if (ref == 0) {
+                byte[] bytes = readBytes();
+                String s = (bytes != null) ? new String(bytes, UTF8) : null;
+                dictionary.add(s);
+                return s;
+            } else if (ref <= dictionary.size()) {
+                return dictionary.get((int)ref - 1);
+            } else {
+                throw new IOException("Invalid string reference in binary event batch: " + ref);
+            }
+        }
+
+        private byte[] readBytes() throws IOException {
+            long length = readVarLong();
+            if (length == 0) {
+                return null;
+            } else if (length - 1 > Integer.MAX_VALUE) {
+                throw new IOException("Too long field in binary event batch");
+            }
+            return readFully((int)(length - 1));
+        }
+
+        private long readVarLong() throws IOException {
+            long result = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                result |= (long)(b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return result;
+                }
+            }
+            throw new IOException("Malformed varint in binary event batch");
+        }
+
+        private byte[] readFully(int length) throws IOException {
+            byte[] result = new byte[length];
+            int offset = 0;
+            while (offset < length) {
+                int n = in.read(result, offset, length - offset);
+                if (n < 0) {
+                    throw new EOFException("Truncated binary event batch");
+                }
+                offset += n;
+            }
+            return result;
+        }
+
+        private int readByte() throws IOException {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException("Truncated binary event batch");
+            }
+            return b;
+        }
+    }
+
+    private static long zigzag(long n) {
+        return (n << 1) ^ (n >> 63);
+    }
+
+    private static long unzigzag(long n) {
+        return (n >>> 1) ^ -(n & 1);
+    }
+}
@@ -0,0 +1,175 @@
+package fi.helsinki.cs.tmc.spyware;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import fi.helsinki.cs.tmc.utilities.JsonMaker;
+import java.nio.charset.Charset;
+import org.openide.util.RequestProcessor;
+
+/**
+ * Forwards events to another receiver but merges consecutive text edits
+ * into edit sessions.
+ *
+ * <p>
+ * Consecutive {@code text_insert} events on the same file, and likewise
+ * consecutive {@code text_remove} events, are merged into one event once no edits have arrived for the idle window,
+ * or at the latest after the maximum session length. The patches of the merged
+ * event are those of its edits in order, and apply one after the other like the
+ * patches of a single event. {@code edit_count} tells how many edits were merged.
+ * The event has the type and time of its first edit.
+ *
+ * <p>
+ * Any other event, including {@code text_paste}, ends the session and
+ * is forwarded as is.
+ */
+public class EditSessionCoalescer implements EventReceiver {
+    public static final int DEFAULT_IDLE_WINDOW = 2000; // milliseconds
+    public static final int DEFAULT_MAX_SESSION_LENGTH = 30 * 1000; // milliseconds
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private class Session {
+        private final LoggableEvent firstEvent;
+        private final String file;
+        private final boolean fullDocument;
+        private final StringBuilder patches = new StringBuilder();
+        private int editCount = 0;
+
+        public Session(LoggableEvent firstEvent, JsonObject data) {
+            this.firstEvent = firstEvent;
+            this.file = data.get("file").getAsString();
+            this.fullDocument = data.has("full_document") && data.get("full_document").getAsBoolean();
+        }
+
+        public boolean accepts(LoggableEvent event, JsonObject data) {
+            return event.getEventType().equals(firstEvent.getEventType())
+                    && event.getCourseName().equals(firstEvent.getCourseName())
+                    && event.getExerciseName().equals(firstEvent.getExerciseName())
+                    && file.equals(data.get("file").getAsString())
+                    && !(data.has("full_document") && data.get("full_document").getAsBoolean());
+        }
+
+        public void add(JsonObject data) {
+            patches.append(data.get("patches").getAsString());
+            editCount++;
+        }
+
+        public LoggableEvent toEvent() {
+            if (editCount == 1) {
+                return firstEvent;
+            }
+            String merged = JsonMaker.create()
+                    .add("file", file)
+                    .add("patches", patches.toString())
+                    .add("full_document", fullDocument)
+                    .add("edit_count", editCount)
+                    .toString();
+            return new LoggableEvent(
+                    firstEvent.getCourseName(),
+                    firstEvent.getExerciseName(),
+                    firstEvent.getEventType(),
+                    merged.getBytes(UTF8),
+                    firstEvent.getMetadata(),
+                    firstEvent.getHappenedAt(),
+                    firstEvent.getSystemNanotime());
+        }
+    }
+
+    private final EventReceiver nextReceiver;
+    private final RequestProcessor.Task flushTask;
+    private volatile int idleWindow = DEFAULT_IDLE_WINDOW;
+    private volatile int maxSessionLength = DEFAULT_MAX_SESSION_LENGTH;
+
+    private Session session; // guarded by this
+    private long sessionStartTime; // guarded by this
+
+    public EditSessionCoalescer(EventReceiver nextReceiver) {
+        this(new RequestProcessor("TMC edit sessions", 1, true), nextReceiver);
+    }
+
+    public EditSessionCoalescer(RequestProcessor processor, EventReceiver nextReceiver) {
+        this.nextReceiver = nextReceiver;
+        this.flushTask = processor.create(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        });
+    }
+
+    public void setIdleWindow(int idleWindow) {
+        this.idleWindow = idleWindow;
+    }
+
+    public void setMaxSessionLength(int maxSessionLength) {
+        this.maxSessionLength = maxSessionLength;
+    }
+
+    @Override
+    public synchronized void receiveEvent(LoggableEvent event) {
+        JsonObject data = isEdit(event) ? parseEditData(event) : null;
+
+        if (session != null && (data == null || !session.accepts(event, data))) {
+            flush();
+        }
+
+        if (data == null) {
+            nextReceiver.receiveEvent(event);
+            return;
+        }
+
+        if (session == null) {
+            session = new Session(event, data);
+            sessionStartTime = System.currentTimeMillis();
+        }
+        session.add(data);
+
+        long deadline = sessionStartTime + maxSessionLength;
+        long delay = Math.min(idleWindow, deadline - System.currentTimeMillis());
+        if (delay <= 0) {
+            flush();
+        } else {
+            flushTask.schedule((int)delay);
+        }
+    }
+
+    /**
+     * Forwards the current edit session, if any.
+     */
+    public synchronized void flush() {
+        if (session != null) {
+            LoggableEvent event = session.toEvent();
+            session = null;
+            nextReceiver.receiveEvent(event);
+        }
+    }
+
+    private boolean isEdit(LoggableEvent event) {
+        return event.getEventType().equals("text_insert") || event.getEventType().equals("text_remove");
+    }
+
+    // Returns null if the event doesn't describe patches to a file.
+    private JsonObject parseEditData(LoggableEvent event) {
+        try {
+            JsonElement json = new JsonParser().parse(new String(event.getData(), UTF8));
+            if (!json.isJsonObject()) {
+                return null;
+            }
+            JsonObject data = json.getAsJsonObject();
+            if (!data.has("file") || !data.has("patches")) {
+                return null;
+            }
+            return data;
+        } catch (JsonParseException ex) {
+            return null;
+        }
+    }
+
+    @Override
+    public void close() {
+        flushTask.cancel();
+        flush();
+    }
+}
@@ -1,6 +1,7 @@
 package fi.helsinki.cs.tmc.spyware;
 
 import fi.helsinki.cs.tmc.utilities.ExceptionUtils;
+import java.nio.charset.Charset;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
@@ -10,8 +11,18 @@ import java.util.Map;
 /**
  * Forwards events to another receiver but discards consecutive events with the same key and data.
  * Only applied to certain event sources.
+ *
+ * <p>
+ * An event type ending in {@value #DELTA_SUFFIX} is considered part of the same
+ * sequence as the type without the suffix, e.g. {@code code_snapshot_delta} and
+ * {@code code_snapshot}. A full event is then only discarded if it equals the
+ * previous event of the sequence, not merely the previous full event,
+ * since the deltas in between may have changed the state.
+ * Deltas are compared including their metadata, which may describe deletions.
  */
 public class EventDeduplicater implements EventReceiver {
+    public static final String DELTA_SUFFIX = "_delta";
+
     private EventReceiver nextReceiver;
 
     private Map<String, byte[]> lastHashByKey = new HashMap<String, byte[]>();
@@ -22,23 +33,42 @@ public class EventDeduplicater implements EventReceiver {
 
     @Override
     public synchronized void receiveEvent(LoggableEvent event) {
-        byte[] prevHash = lastHashByKey.get(event.getKey());
-        byte[] newHash = hash(event.getData());
+        String sequenceKey = sequenceKey(event);
+        boolean delta = !sequenceKey.equals(event.getKey());
+        byte[] prevHash = lastHashByKey.get(sequenceKey);
+        byte[] newHash = hash(event, delta);
         boolean changed = (prevHash == null || !Arrays.equals(prevHash, newHash));
         if (changed) {
             nextReceiver.receiveEvent(event);
-            lastHashByKey.put(event.getKey(), newHash);
+            lastHashByKey.put(sequenceKey, newHash);
         }
     }
 
-    private byte[] hash(byte[] data) {
+    private String sequenceKey(LoggableEvent event) {
+        String key = event.getKey();
+        if (key.endsWith(DELTA_SUFFIX)) {
+            return key.substring(0, key.length() - DELTA_SUFFIX.length());
+        } else {
+            return key;
+        }
+    }
+
+    private byte[] hash(LoggableEvent event, boolean includeMetadata) {
         MessageDigest md;
         try {
             md = MessageDigest.getInstance("MD5");
         } catch (NoSuchAlgorithmException ex) {
             throw ExceptionUtils.toRuntimeException(ex);
         }
-        return md.digest(data);
+        // Full events and deltas with equal data are not equal.
+        Charset utf8 = Charset.forName("UTF-8");
+        md.update(event.getEventType().getBytes(utf8));
+        md.update((byte)0);
+        if (includeMetadata && event.getMetadata() != null) {
+            md.update(event.getMetadata().getBytes(utf8));
+        }
+        md.update((byte)0);
+        return md.digest(event.getData());
     }
 
     @Override
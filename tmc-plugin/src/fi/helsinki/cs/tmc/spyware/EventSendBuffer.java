@@ -1,14 +1,15 @@
 package fi.helsinki.cs.tmc.spyware;
 
-import com.google.common.collect.Iterables;
 import fi.helsinki.cs.tmc.data.Course;
 import fi.helsinki.cs.tmc.model.CourseDb;
 import fi.helsinki.cs.tmc.model.ServerAccess;
 import fi.helsinki.cs.tmc.utilities.BgTask;
 import fi.helsinki.cs.tmc.utilities.CancellableCallable;
 import fi.helsinki.cs.tmc.utilities.Cooldown;
+import fi.helsinki.cs.tmc.utilities.MpscRingBuffer;
 import fi.helsinki.cs.tmc.utilities.SingletonTask;
 import fi.helsinki.cs.tmc.utilities.TmcRequestProcessor;
+import fi.helsinki.cs.tmc.utilities.http.FailedHttpResponseException;
 import java.io.IOException;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
@@ -19,6 +20,7 @@ import java.util.Random;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -33,6 +35,12 @@ public class EventSendBuffer implements EventReceiver {
     public static final int DEFAULT_MAX_EVENTS = 64 * 1024;
     public static final int DEFAULT_AUTOSEND_THREHSOLD = DEFAULT_MAX_EVENTS / 2;
     public static final int DEFAULT_AUTOSEND_COOLDOWN = 30*1000;
+    public static final int DEFAULT_MAX_EVENTS_PER_SEND = 5000;
+    // Sending too much at once may go over the server's POST size limit.
+    public static final int DEFAULT_MAX_BYTES_PER_SEND = 1024 * 1024;
+    public static final int MIN_BYTES_PER_SEND = 16 * 1024;
+    public static final long DEFAULT_TARGET_SEND_LATENCY = 5*1000;
+    public static final int INTAKE_CAPACITY = 8192;
 
     private Random random = new Random();
     private SpywareSettings settings;
@@ -40,12 +48,29 @@ public class EventSendBuffer implements EventReceiver {
     private CourseDb courseDb;
     private EventStore eventStore;
 
+    // Producers add events here without locking. They are moved to sendQueue
+    // by whoever next takes the lock on sendQueue.
+    private final MpscRingBuffer<LoggableEvent> intake = new MpscRingBuffer<LoggableEvent>(INTAKE_CAPACITY);
+    private final AtomicBoolean intakeDrainScheduled = new AtomicBoolean(false);
+    private volatile int queuedEventCount = 0; // sendQueue.size() for reading without the lock
+    private volatile int autosendThreshold = DEFAULT_AUTOSEND_THREHSOLD;
+
     // The following variables must only be accessed with a lock on sendQueue.
     private final ArrayDeque<LoggableEvent> sendQueue = new ArrayDeque<LoggableEvent>();
     private int eventsToRemoveAfterSend = 0;
+    private int unsavedEvents = 0; // Number of events at the tail of sendQueue not yet appended to eventStore
+    private int eventsToDiscardFromStore = 0; // Number of events removed from sendQueue but not yet from eventStore
+    private boolean eventStoreOutOfSync = false;
     private int maxEvents = DEFAULT_MAX_EVENTS;
-    private int autosendThreshold = DEFAULT_AUTOSEND_THREHSOLD;
-    private Cooldown autosendCooldown;
+    private final Cooldown autosendCooldown; // Accessed with a lock on itself
+    private int maxEventsPerSend = DEFAULT_MAX_EVENTS_PER_SEND;
+    private int maxBytesPerSend = DEFAULT_MAX_BYTES_PER_SEND;
+    private long targetSendLatency = DEFAULT_TARGET_SEND_LATENCY;
+
+    // Adapted by the sending task up to maxEventsPerSend and maxBytesPerSend.
+    // Only accessed with a lock on sendQueue.
+    private int currentEventsPerSend = DEFAULT_MAX_EVENTS_PER_SEND;
+    private int currentBytesPerSend = DEFAULT_MAX_BYTES_PER_SEND;
 
 
     public EventSendBuffer(SpywareSettings settings, ServerAccess serverAccess, CourseDb courseDb, EventStore eventStore) {
@@ -57,12 +82,16 @@ public class EventSendBuffer implements EventReceiver {
 
         try {
             List<LoggableEvent> initialEvents = Arrays.asList(eventStore.load());
-            initialEvents = initialEvents.subList(0, Math.min(maxEvents, initialEvents.size()));
-            this.sendQueue.addAll(initialEvents);
+            int excess = Math.max(0, initialEvents.size() - maxEvents);
+            this.sendQueue.addAll(initialEvents.subList(excess, initialEvents.size()));
+            this.queuedEventCount = sendQueue.size();
+            this.eventsToDiscardFromStore = excess;
         } catch (IOException ex) {
             log.log(Level.WARNING, "Failed to read events from event store", ex);
+            this.eventStoreOutOfSync = true;
         } catch (RuntimeException ex) {
             log.log(Level.WARNING, "Failed to read events from event store", ex);
+            this.eventStoreOutOfSync = true;
         }
 
         this.sendingTask.setInterval(DEFAULT_SEND_INTERVAL);
@@ -83,12 +112,10 @@ public class EventSendBuffer implements EventReceiver {
         }
 
         synchronized (sendQueue) {
-            if (newMaxEvents < maxEvents) {
-                int diff = newMaxEvents - maxEvents;
-                for (int i = 0; i < diff; ++i) {
-                    sendQueue.pop();
-                }
-                eventsToRemoveAfterSend -= diff;
+            drainIntake();
+            while (sendQueue.size() > newMaxEvents) {
+                removeOldestEvent();
+                eventsToRemoveAfterSend--;
             }
 
             maxEvents = newMaxEvents;
@@ -96,18 +123,57 @@ public class EventSendBuffer implements EventReceiver {
     }
 
     public void setAutosendThreshold(int autosendThreshold) {
+        if (autosendThreshold <= 0) {
+            throw new IllegalArgumentException();
+        }
+        this.autosendThreshold = autosendThreshold;
+
+        maybeAutosend();
+    }
+
+    public void setMaxEventsPerSend(int maxEventsPerSend) {
+        if (maxEventsPerSend <= 0) {
+            throw new IllegalArgumentException();
+        }
         synchronized (sendQueue) {
-            if (autosendThreshold <= 0) {
-                throw new IllegalArgumentException();
-            }
-            this.autosendThreshold = autosendThreshold;
+            this.maxEventsPerSend = maxEventsPerSend;
+            this.currentEventsPerSend = maxEventsPerSend;
+        }
+    }
+
+    /**
+     * Sets the upper limit for the estimated size of a single send.
+     *
+     * The actual batch size starts at this limit and at {@link #setMaxEventsPerSend the event limit}.
+     * It shrinks when the server is slow to respond or rejects a request as
+     * too large, and grows back towards the limits when sends are fast.
+     */
+    public void setMaxBytesPerSend(int maxBytesPerSend) {
+        if (maxBytesPerSend < MIN_BYTES_PER_SEND) {
+            throw new IllegalArgumentException();
+        }
+        synchronized (sendQueue) {
+            this.maxBytesPerSend = maxBytesPerSend;
+            this.currentBytesPerSend = maxBytesPerSend;
+        }
+    }
 
-            maybeAutosend();
+    /**
+     * Sets the send duration above which the batch size is reduced.
+     */
+    public void setTargetSendLatency(long targetSendLatency) {
+        if (targetSendLatency <= 0) {
+            throw new IllegalArgumentException();
+        }
+        synchronized (sendQueue) {
+            this.targetSendLatency = targetSendLatency;
         }
     }
 
     public void setAutosendCooldown(long durationMillis) {
-        this.autosendCooldown.setDurationMillis(durationMillis);
+        synchronized (autosendCooldown) {
+            this.autosendCooldown.setDurationMillis(durationMillis);
+        }
     }
 
     public void sendNow() {
@@ -123,27 +189,84 @@ public class EventSendBuffer implements EventReceiver {
         sendingTask.waitUntilFinished(timeout);
     }
 
+    /**
+     * Takes an event without blocking, unless the intake buffer is full.
+     *
+     * This is called on the EDT for every keystroke, so it must not wait for
+     * a save or send in progress.
+     */
     @Override
     public void receiveEvent(LoggableEvent event) {
         if (!settings.isSpywareEnabled()) {
             return;
         }
 
-        synchronized (sendQueue) {
-            if (sendQueue.size() >= maxEvents) {
-                sendQueue.pop();
-                eventsToRemoveAfterSend--;
+        if (!intake.offer(event)) {
+            // Nobody has drained the intake in a while. Do it ourselves.
+            synchronized (sendQueue) {
+                drainIntake();
+                addToQueue(event);
             }
-            sendQueue.add(event);
+        } else if (intake.size() >= intake.capacity() / 2) {
+            scheduleIntakeDrain();
+        }
 
-            maybeAutosend();
+        maybeAutosend();
+    }
+
+    // Must be called with a lock on sendQueue.
+    private void drainIntake() {
+        LoggableEvent event;
+        while ((event = intake.poll()) != null) {
+            addToQueue(event);
+        }
+    }
+
+    // Must be called with a lock on sendQueue.
+    private void addToQueue(LoggableEvent event) {
+        if (sendQueue.size() >= maxEvents) {
+            removeOldestEvent();
+            eventsToRemoveAfterSend--;
+        }
+        sendQueue.add(event);
+        unsavedEvents++;
+        queuedEventCount = sendQueue.size();
+    }
+
+    private void scheduleIntakeDrain() {
+        if (intakeDrainScheduled.compareAndSet(false, true)) {
+            TmcRequestProcessor.instance.post(new Runnable() {
+                @Override
+                public void run() {
+                    intakeDrainScheduled.set(false);
+                    synchronized (sendQueue) {
+                        drainIntake();
+                    }
+                }
+            });
+        }
+    }
+
+    // Must be called with a lock on sendQueue.
+    private void removeOldestEvent() {
+        sendQueue.pop();
+        queuedEventCount = sendQueue.size();
+        if (unsavedEvents > sendQueue.size()) {
+            // It never made it to the event store.
+            unsavedEvents--;
+        } else {
+            eventsToDiscardFromStore++;
         }
     }
 
     private void maybeAutosend() {
-        if (sendQueue.size() >= autosendThreshold && autosendCooldown.isExpired()) {
-            autosendCooldown.start();
-            sendNow();
+        if (queuedEventCount + intake.size() >= autosendThreshold) {
+            synchronized (autosendCooldown) {
+                if (autosendCooldown.isExpired()) {
+                    autosendCooldown.start();
+                    sendNow();
+                }
+            }
         }
     }
 
@@ -173,9 +296,11 @@ public class EventSendBuffer implements EventReceiver {
     }
 
 
+    private enum SendResult { SENT, TOO_LARGE, FAILED }
+
     private SingletonTask sendingTask = new SingletonTask(new Runnable() {
-        // Sending too many at once may go over the server's POST size limit.
-        private static final int MAX_EVENTS_PER_SEND = 500;
+        // Rough per-event overhead of the encoding and gzip.
+        private static final int EVENT_SIZE_OVERHEAD = 32;
 
         @Override
         public void run() {
@@ -188,7 +313,7 @@ public class EventSendBuffer implements EventReceiver {
                 }
 
                 synchronized (sendQueue) {
-                    shouldSendMore = sendQueue.size() > eventsToSend.size();
+                    shouldSendMore = sendQueue.size() > eventsToSend.size() || !intake.isEmpty();
                 }
 
                 String url = pickDestinationUrl();
@@ -198,17 +323,30 @@ public class EventSendBuffer implements EventReceiver {
 
                 log.log(Level.INFO, "Sending {0} events to {1}", new Object[] { eventsToSend.size(), url });
 
-                doSend(eventsToSend, url);
+                SendResult result = doSend(eventsToSend, url);
+                if (result == SendResult.TOO_LARGE) {
+                    shouldSendMore = true;
+                } else if (result == SendResult.FAILED) {
+                    return;
+                }
             } while (shouldSendMore);
         }
 
         private ArrayList<LoggableEvent> copyEventsToSendFromQueue() {
             synchronized (sendQueue) {
-                ArrayList<LoggableEvent> eventsToSend = new ArrayList<LoggableEvent>(sendQueue.size());
+                drainIntake();
+                ArrayList<LoggableEvent> eventsToSend = new ArrayList<LoggableEvent>();
 
+                long bytes = 0;
                 Iterator<LoggableEvent> i = sendQueue.iterator();
-                while (i.hasNext() && eventsToSend.size() < MAX_EVENTS_PER_SEND) {
-                    eventsToSend.add(i.next());
+                while (i.hasNext() && eventsToSend.size() < currentEventsPerSend) {
+                    LoggableEvent event = i.next();
+                    bytes += estimateSize(event);
+                    // Always send at least one event, even if it's over the limit by itself.
+                    if (bytes > currentBytesPerSend && !eventsToSend.isEmpty()) {
+                        break;
+                    }
+                    eventsToSend.add(event);
                 }
 
                 eventsToRemoveAfterSend = eventsToSend.size();
@@ -217,6 +355,22 @@ public class EventSendBuffer implements EventReceiver {
             }
         }
 
+        private int estimateSize(LoggableEvent event) {
+            int size = EVENT_SIZE_OVERHEAD;
+            size += lengthOf(event.getCourseName());
+            size += lengthOf(event.getExerciseName());
+            size += lengthOf(event.getEventType());
+            size += lengthOf(event.getMetadata());
+            if (event.getData() != null) {
+                size += event.getData().length;
+            }
+            return size;
+        }
+
+        private int lengthOf(String s) {
+            return (s != null) ? s.length() : 0;
+        }
+
         private String pickDestinationUrl() {
             Course course = courseDb.getCurrentCourse();
             if (course == null) {
@@ -235,34 +389,81 @@ public class EventSendBuffer implements EventReceiver {
             return url;
         }
 
-        private void doSend(final ArrayList<LoggableEvent> eventsToSend, final String url) {
+        private SendResult doSend(final ArrayList<LoggableEvent> eventsToSend, final String url) {
             CancellableCallable<Object> task = serverAccess.getSendEventLogJob(url, eventsToSend);
+            long startTime = System.currentTimeMillis();
             Future<Object> future = BgTask.start("Sending stats", task);
 
             try {
                 future.get();
             } catch (InterruptedException ex) {
                 future.cancel(true);
+                return SendResult.FAILED;
             } catch (ExecutionException ex) {
+                if (isTooLargeResponse(ex)) {
+                    return handleTooLarge(eventsToSend);
+                }
                 log.log(Level.INFO, "Sending failed", ex);
-                return;
+                return SendResult.FAILED;
             }
 
             log.log(Level.INFO, "Sent {0} events successfully to {1}", new Object[] { eventsToSend.size(), url });
 
+            adaptToLatency(System.currentTimeMillis() - startTime);
             removeSentEventsFromQueue();
 
             // If saving fails now (or is already running and fails later)
             // then we may end up sending duplicate events later.
             // This will hopefully be very rare.
             savingTask.start();
+            return SendResult.SENT;
+        }
+
+        private boolean isTooLargeResponse(ExecutionException ex) {
+            // BgTask may wrap the exception
+            for (Throwable t = ex.getCause(); t != null; t = t.getCause()) {
+                if (t instanceof FailedHttpResponseException) {
+                    return ((FailedHttpResponseException)t).getStatusCode() == 413;
+                }
+            }
+            return false;
+        }
+
+        private SendResult handleTooLarge(ArrayList<LoggableEvent> eventsToSend) {
+            if (eventsToSend.size() == 1) {
+                log.log(Level.WARNING, "Server rejected a single event as too large. Discarding it: {0}", eventsToSend.get(0));
+                removeSentEventsFromQueue();
+                savingTask.start();
+                return SendResult.TOO_LARGE;
+            }
+
+            synchronized (sendQueue) {
+                // Halving the event count guarantees progress even when the size estimates are off.
+                currentEventsPerSend = Math.max(1, eventsToSend.size() / 2);
+                currentBytesPerSend = Math.max(MIN_BYTES_PER_SEND, currentBytesPerSend / 2);
+                log.log(Level.INFO, "Server rejected {0} events as too large. Reducing batch size to {1} events.", new Object[] { eventsToSend.size(), currentEventsPerSend });
+                eventsToRemoveAfterSend = 0;
+            }
+            return SendResult.TOO_LARGE;
+        }
+
+        private void adaptToLatency(long latency) {
+            synchronized (sendQueue) {
+                if (latency > targetSendLatency) {
+                    currentEventsPerSend = Math.max(1, currentEventsPerSend / 2);
+                    currentBytesPerSend = Math.max(MIN_BYTES_PER_SEND, currentBytesPerSend / 2);
+                } else if (latency < targetSendLatency / 2) {
+                    currentEventsPerSend = (int)Math.min(maxEventsPerSend, currentEventsPerSend * 3L / 2 + 1);
+                    currentBytesPerSend = (int)Math.min(maxBytesPerSend, currentBytesPerSend * 3L / 2);
+                }
+            }
         }
 
         private void removeSentEventsFromQueue() {
             synchronized (sendQueue) {
                 assert(eventsToRemoveAfterSend <= sendQueue.size());
                 while (eventsToRemoveAfterSend > 0) {
-                    sendQueue.pop();
+                    removeOldestEvent();
                     eventsToRemoveAfterSend--;
                 }
             }
@@ -271,18 +472,55 @@ public class EventSendBuffer implements EventReceiver {
     }, TmcRequestProcessor.instance);
 
 
+    /**
+     * Brings the event store up to date with sendQueue.
+     *
+     * Normally only the events received since the last save are appended
+     * and the events removed since then are discarded. If a save fails, the next
+     * one rewrites the store with the whole queue.
+     */
     private SingletonTask savingTask = new SingletonTask(new Runnable() {
         @Override
         public void run() {
+            LoggableEvent[] eventsToAppend;
+            int eventsToDiscard;
+            boolean rewrite;
+            synchronized (sendQueue) {
+                drainIntake();
+                rewrite = eventStoreOutOfSync;
+                if (rewrite) {
+                    eventsToAppend = sendQueue.toArray(new LoggableEvent[sendQueue.size()]);
+                } else {
+                    eventsToAppend = copyUnsavedEvents();
+                }
+                eventsToDiscard = eventsToDiscardFromStore;
+                unsavedEvents = 0;
+                eventsToDiscardFromStore = 0;
+                eventStoreOutOfSync = false;
+            }
+
             try {
-                LoggableEvent[] eventsToSave;
-                synchronized (sendQueue) {
-                    eventsToSave = Iterables.toArray(sendQueue, LoggableEvent.class);
+                if (rewrite) {
+                    eventStore.clear();
+                } else {
+                    eventStore.discard(eventsToDiscard);
                 }
-                eventStore.save(eventsToSave);
+                eventStore.append(eventsToAppend);
             } catch (IOException ex) {
                 log.log(Level.WARNING, "Failed to save events", ex);
+                synchronized (sendQueue) {
+                    eventStoreOutOfSync = true;
+                }
+            }
+        }
+
+        private LoggableEvent[] copyUnsavedEvents() {
+            LoggableEvent[] result = new LoggableEvent[unsavedEvents];
+            Iterator<LoggableEvent> i = sendQueue.descendingIterator();
+            for (int j = unsavedEvents - 1; j >= 0; --j) {
+                result[j] = i.next();
             }
+            return result;
         }
     }, TmcRequestProcessor.instance);
 
@@ -4,42 +4,371 @@ import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import fi.helsinki.cs.tmc.model.ConfigFile;
 import fi.helsinki.cs.tmc.utilities.ByteArrayGsonSerializer;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.CRC32;
 
+/**
+ * An append-only on-disk journal of events that have not yet been sent.
+ *
+ * <p>
+ * Events are appended as records to segment files. A segment is closed once it
+ * grows past {@link #DEFAULT_SEGMENT_SIZE} and a new one is started.
+ * Each record is framed as {@code [int length][int crc32][payload]} so that
+ * a torn write at the end of a segment is detected and ignored on load.
+ * The payload is a single-event batch in {@link BinaryEventFormat}.
+ *
+ * <p>
+ * Every record has a sequence number. A segment file is named after the
+ * sequence number of its first record. A separate marker file holds the
+ * sequence number up to which events have been acknowledged.
+ * Segments whose records are all acknowledged are deleted.
+ *
+ * <p>
+ * Not thread-safe. {@link EventSendBuffer} only calls this from its saving task.
+ */
 public class EventStore {
     private static final Logger log = Logger.getLogger(EventStore.class.getName());
-    
-    private ConfigFile configFile;
+
+    public static final int DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String COMMITTED_MARKER = "committed";
+    private static final int MAX_RECORD_SIZE = 64 * 1024 * 1024;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private File dir; // Resolved lazily if null
+    private final int segmentSize;
+    private ConfigFile legacyFile; // May be null
+
+    // Set up by load()
+    private boolean loaded = false;
+    private TreeMap<Long, File> segments = new TreeMap<Long, File>();
+    private long activeSegmentLength = 0;
+    private long committedSeq = 0;
+    private long nextSeq = 0;
 
     public EventStore() {
-        this.configFile = new ConfigFile("Events.json");
+        this(null, DEFAULT_SEGMENT_SIZE);
+        this.legacyFile = new ConfigFile("Events.json");
     }
 
-    public void save(LoggableEvent[] events) throws IOException {
-        String text = getGson().toJson(events);
-        configFile.writeContents(text);
-        log.log(Level.INFO, "Saved {0} events", events.length);
+    public EventStore(File dir, int segmentSize) {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
     }
-    
+
+    /**
+     * Returns all events that have been appended but not yet discarded, oldest first.
+     */
     public LoggableEvent[] load() throws IOException {
-        String text = configFile.readContents();
-        LoggableEvent[] result = getGson().fromJson(text, LoggableEvent[].class);
+        segments.clear();
+        activeSegmentLength = 0;
+        committedSeq = readCommittedMarker();
+        nextSeq = committedSeq;
+
+        ArrayList<LoggableEvent> result = new ArrayList<LoggableEvent>();
+        for (File file : listSegmentFiles()) {
+            long firstSeq = parseSegmentName(file);
+            long seq = firstSeq;
+            for (LoggableEvent event : readSegment(file)) {
+                if (event != null && seq >= committedSeq) {
+                    result.add(event);
+                }
+                seq++;
+            }
+            segments.put(firstSeq, file);
+            activeSegmentLength = file.length();
+            nextSeq = Math.max(nextSeq, seq);
+        }
+        loaded = true;
+        deleteAcknowledgedSegments();
+
+        if (legacyFile != null && legacyFile.exists()) {
+            LoggableEvent[] legacyEvents = loadLegacyEvents();
+            append(legacyEvents);
+            legacyFile.delete();
+            result.addAll(Arrays.asList(legacyEvents));
+        }
+
+        log.log(Level.INFO, "Loaded {0} events", result.size());
+        return result.toArray(new LoggableEvent[result.size()]);
+    }
+
+    /**
+     * Appends events to the end of the journal.
+     */
+    public void append(LoggableEvent[] events) throws IOException {
+        ensureLoaded();
+        if (events.length == 0) {
+            return;
+        }
+
+        int i = 0;
+        while (i < events.length) {
+            if (segments.isEmpty() || activeSegmentLength >= segmentSize) {
+                startNewSegment();
+            }
+            File file = segments.lastEntry().getValue();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+            try {
+                while (i < events.length && activeSegmentLength < segmentSize) {
+                    activeSegmentLength += writeRecord(out, encode(events[i]));
+                    nextSeq++;
+                    i++;
+                }
+            } finally {
+                out.close();
+            }
+        }
+        log.log(Level.FINE, "Appended {0} events", events.length);
+    }
+
+    /**
+     * Marks the given number of oldest events as acknowledged.
+     *
+     * They will not be returned by subsequent loads.
+     */
+    public void discard(int count) throws IOException {
+        ensureLoaded();
+        if (count <= 0) {
+            return;
+        }
+        committedSeq = Math.min(committedSeq + count, nextSeq);
+        writeCommittedMarker(committedSeq);
+        deleteAcknowledgedSegments();
+    }
+
+    /**
+     * Removes all events from the journal.
+     */
+    public void clear() throws IOException {
+        ensureLoaded();
+        discard((int)Math.min(Integer.MAX_VALUE, nextSeq - committedSeq));
+    }
+
+    private void ensureLoaded() throws IOException {
+        if (!loaded) {
+            load();
+        }
+    }
+
+    private File getDir() throws IOException {
+        if (dir == null) {
+            dir = ConfigFile.getConfigSubdirectory("events");
+        } else if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Failed to create " + dir);
+        }
+        return dir;
+    }
+
+    private void startNewSegment() throws IOException {
+        File file = new File(getDir(), String.format("%019d%s", nextSeq, SEGMENT_SUFFIX));
+        segments.put(nextSeq, file);
+        activeSegmentLength = file.length();
+    }
+
+    private void deleteAcknowledgedSegments() {
+        while (!segments.isEmpty()) {
+            Map.Entry<Long, File> first = segments.firstEntry();
+            Long nextFirstSeq = segments.higherKey(first.getKey());
+            long endSeq = (nextFirstSeq != null) ? nextFirstSeq : nextSeq;
+            if (endSeq > committedSeq) {
+                break;
+            }
+            if (!first.getValue().delete() && first.getValue().exists()) {
+                log.log(Level.WARNING, "Failed to delete acknowledged event segment {0}", first.getValue());
+                break;
+            }
+            segments.remove(first.getKey());
+            if (segments.isEmpty()) {
+                activeSegmentLength = 0;
+            }
+        }
+    }
+
+    private File[] listSegmentFiles() throws IOException {
+        File[] files = getDir().listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        if (files == null) {
+            return new File[0];
+        }
+        TreeMap<Long, File> sorted = new TreeMap<Long, File>();
+        for (File file : files) {
+            try {
+                sorted.put(parseSegmentName(file), file);
+            } catch (NumberFormatException ex) {
+                log.log(Level.WARNING, "Ignoring unrecognized file in event store: {0}", file);
+            }
+        }
+        return sorted.values().toArray(new File[sorted.size()]);
+    }
+
+    private long parseSegmentName(File file) {
+        String name = file.getName();
+        return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    /**
+     * Reads all intact records of a segment and truncates any torn or corrupted tail.
+     *
+     * Undecodable records are returned as nulls since they still take up a sequence number.
+     */
+    private ArrayList<LoggableEvent> readSegment(File file) throws IOException {
+        ArrayList<LoggableEvent> result = new ArrayList<LoggableEvent>();
+        long validLength = 0;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            while (true) {
+                byte[] payload;
+                try {
+                    payload = readRecord(in);
+                } catch (EOFException ex) {
+                    break;
+                }
+                if (payload == null) {
+                    break;
+                }
+                try {
+                    result.add(decode(payload));
+                } catch (IOException ex) {
+                    log.log(Level.WARNING, "Skipping undecodable event in " + file, ex);
+                    result.add(null);
+                } catch (RuntimeException ex) {
+                    log.log(Level.WARNING, "Skipping undecodable event in " + file, ex);
+                    result.add(null);
+                }
+                validLength += 8 + payload.length;
+            }
+        } finally {
+            in.close();
+        }
+
+        if (validLength < file.length()) {
+            log.log(Level.WARNING, "Truncating corrupted tail of event segment {0} at {1}", new Object[] { file, validLength });
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(validLength);
+            } finally {
+                raf.close();
+            }
+        }
+
+        return result;
+    }
+
+    private int writeRecord(DataOutputStream out, byte[] payload) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        out.writeInt(payload.length);
+        out.writeInt((int)crc.getValue());
+        out.write(payload);
+        return 8 + payload.length;
+    }
+
+    /**
+     * Returns the payload of the next record or null if the record is corrupted.
+     */
+    private byte[] readRecord(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        int expectedCrc = in.readInt();
+        if (length < 0 || length > MAX_RECORD_SIZE) {
+            return null;
+        }
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        if ((int)crc.getValue() != expectedCrc) {
+            return null;
+        }
+        return payload;
+    }
+
+    private long readCommittedMarker() throws IOException {
+        File file = new File(getDir(), COMMITTED_MARKER);
+        if (!file.exists()) {
+            return 0;
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            return raf.readLong();
+        } catch (EOFException ex) {
+            log.log(Level.WARNING, "Event store commit marker is corrupted. Events may be resent.");
+            return 0;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private void writeCommittedMarker(long seq) throws IOException {
+        // A single 8-byte write in place, so the marker is never seen half-written.
+        RandomAccessFile raf = new RandomAccessFile(new File(getDir(), COMMITTED_MARKER), "rw");
+        try {
+            raf.seek(0);
+            raf.writeLong(seq);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private byte[] encode(LoggableEvent event) throws IOException {
+        return BinaryEventFormat.encode(Collections.singletonList(event));
+    }
+
+    private LoggableEvent decode(byte[] payload) throws IOException {
+        if (BinaryEventFormat.hasHeader(payload)) {
+            List<LoggableEvent> events = BinaryEventFormat.decode(payload);
+            if (events.size() != 1) {
+                throw new IOException("Expected one event per record but got " + events.size());
+            }
+            return events.get(0);
+        } else {
+            // Records written before the binary format was introduced
+            return getGson().fromJson(new String(payload, UTF8), LoggableEvent.class);
+        }
+    }
+
+    private LoggableEvent[] loadLegacyEvents() throws IOException {
+        LoggableEvent[] result;
+        try {
+            result = getGson().fromJson(legacyFile.readContents(), LoggableEvent[].class);
+        } catch (RuntimeException ex) {
+            log.log(Level.WARNING, "Discarding unreadable Events.json", ex);
+            result = null;
+        }
         if (result == null) {
             result = new LoggableEvent[0];
         }
-        log.log(Level.INFO, "Loaded {0} events", result.length);
+        log.log(Level.INFO, "Migrating {0} events from Events.json", result.length);
         return result;
     }
-    
+
     private Gson getGson() {
         return new GsonBuilder()
             .registerTypeAdapter(byte[].class, new ByteArrayGsonSerializer())
             .create();
     }
-    
-    public void clear() throws IOException {
-        configFile.writeContents("");
-    }
 }
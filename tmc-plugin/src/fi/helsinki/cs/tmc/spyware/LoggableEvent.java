@@ -28,13 +28,20 @@ public class LoggableEvent implements TmcEvent {
     }
 
     public LoggableEvent(String courseName, String exerciseName, String eventType, byte[] data, String metadata) {
+        this(courseName, exerciseName, eventType, data, metadata, System.currentTimeMillis(), System.nanoTime());
+    }
+
+    /**
+     * Recreates a previously recorded event, e.g. when deserializing.
+     */
+    /*package*/ LoggableEvent(String courseName, String exerciseName, String eventType, byte[] data, String metadata, long happenedAt, long systemNanotime) {
         this.courseName = courseName;
         this.exerciseName = exerciseName;
         this.eventType = eventType;
         this.data = data;
         this.metadata = metadata;
-        this.happenedAt = System.currentTimeMillis();
-        this.systemNanotime = System.nanoTime();
+        this.happenedAt = happenedAt;
+        this.systemNanotime = systemNanotime;
 
         this.key = courseName + "|" + exerciseName + "|" + eventType;
     }
@@ -36,6 +36,7 @@ public class SpywareFacade implements SpywareSettings {
     private EventSendBuffer sender;
     
     private EventDeduplicater sourceSnapshotDedup;
+    private EditSessionCoalescer editSessionCoalescer;
     
     private SourceSnapshotEventSource sourceSnapshotSource;
     private ProjectActionEventSource projectActionSource;
@@ -52,6 +53,8 @@ public class SpywareFacade implements SpywareSettings {
         sourceSnapshotSource = new SourceSnapshotEventSource(this, sourceSnapshotDedup);
         sourceSnapshotSource.startListeningToFileChanges();
         
+        editSessionCoalescer = new EditSessionCoalescer(sender);
+
         projectActionSource = new ProjectActionEventSource(sender);
         tmcEventBusSource = new TmcEventBusEventSource(sender);
         TmcSwingUtilities.ensureEdt(new Runnable() {
@@ -59,7 +62,7 @@ public class SpywareFacade implements SpywareSettings {
             public void run() {
                 ProjectActionCaptor.addListener(projectActionSource);
                 TmcEventBus.getDefault().subscribeStrongly(tmcEventBusSource);
-                textInsertEventSource = new TextInsertEventSource(sender);
+                textInsertEventSource = new TextInsertEventSource(editSessionCoalescer);
             }
         });
     }
@@ -79,6 +82,7 @@ public class SpywareFacade implements SpywareSettings {
         sourceSnapshotSource.close();
         
         sourceSnapshotDedup.close();
+        editSessionCoalescer.close();
         sender.close();
     }
     
@@ -0,0 +1,197 @@
+package fi.helsinki.cs.tmc.spyware.eventsources;
+
+import fi.helsinki.cs.tmc.data.Exercise;
+import fi.helsinki.cs.tmc.spyware.EventReceiver;
+import fi.helsinki.cs.tmc.spyware.LoggableEvent;
+import fi.helsinki.cs.tmc.utilities.ExceptionUtils;
+import fi.helsinki.cs.tmc.utilities.JsonMaker;
+import fi.helsinki.cs.tmc.utilities.zip.RecursiveZipper;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.commons.codec.binary.Hex;
+
+/**
+ * Sends code snapshots of projects, either as full zips or as deltas.
+ *
+ * <p>
+ * A full snapshot (a keyframe) is a {@code code_snapshot} event with all project sources,
+ * as before. A delta is a {@code code_snapshot_delta} event whose data is a zip of only the
+ * files that were added or changed since the previous snapshot of the project.
+ * Its metadata lists removed files in {@code deleted_files} and names the keyframe
+ * it builds on by the MD5 of its data in {@code base_keyframe}.
+ *
+ * <p>
+ * Changes are found by comparing against a manifest of content hashes kept per project.
+ * A file is only rehashed if its size or modification time has changed.
+ * A keyframe is sent on the first snapshot of a project and after every
+ * {@link #setKeyframeInterval(int) keyframe interval} deltas.
+ *
+ * <p>
+ * Snapshots of one project are taken and sent one at a time so that
+ * deltas reach the receiver in the order they were computed.
+ */
+public class DeltaSnapshotter {
+    public static final String FULL_SNAPSHOT_EVENT_TYPE = "code_snapshot";
+    public static final String DELTA_SNAPSHOT_EVENT_TYPE = "code_snapshot_delta";
+    public static final int DEFAULT_KEYFRAME_INTERVAL = 20;
+
+    // A modification time this close to when the file was hashed may not catch a later write.
+    private static final long MTIME_GRANULARITY = 2000;
+
+    private static class FileState {
+        private final long size;
+        private final long lastModified;
+        private final long hashedAt;
+        private final byte[] hash;
+
+        public FileState(long size, long lastModified, long hashedAt, byte[] hash) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.hashedAt = hashedAt;
+            this.hash = hash;
+        }
+
+        public boolean isKnownUnchanged(File file) {
+            return file.length() == size &&
+                    file.lastModified() == lastModified &&
+                    lastModified + MTIME_GRANULARITY < hashedAt;
+        }
+    }
+
+    private static class Manifest {
+        private Map<String, FileState> files = null; // null until the first keyframe
+        private String keyframeHash;
+        private int deltasSinceKeyframe;
+    }
+
+    private final Map<File, Manifest> manifests = new HashMap<File, Manifest>();
+    private volatile int keyframeInterval = DEFAULT_KEYFRAME_INTERVAL;
+
+    /**
+     * Sets how many deltas may be sent between full snapshots.
+     *
+     * Zero disables deltas.
+     */
+    public void setKeyframeInterval(int keyframeInterval) {
+        if (keyframeInterval < 0) {
+            throw new IllegalArgumentException();
+        }
+        this.keyframeInterval = keyframeInterval;
+    }
+
+    /**
+     * Sends a full snapshot or a delta of the project in {@code projectDir} to the receiver.
+     *
+     * Sends nothing if a delta would be empty.
+     *
+     * @param metadata Metadata for the event. Delta-specific fields are added to it.
+     */
+    public void sendSnapshot(Exercise exercise, File projectDir, RecursiveZipper zipper, JsonMaker metadata, EventReceiver receiver) throws IOException {
+        Manifest manifest = getManifest(projectDir);
+        synchronized (manifest) {
+            Map<String, File> currentFiles = zipper.listFilesToZip();
+            Map<String, FileState> newStates = new HashMap<String, FileState>(currentFiles.size());
+            List<String> changedFiles = new ArrayList<String>();
+            for (Map.Entry<String, File> entry : currentFiles.entrySet()) {
+                FileState oldState = (manifest.files != null) ? manifest.files.get(entry.getKey()) : null;
+                FileState newState;
+                if (oldState != null && oldState.isKnownUnchanged(entry.getValue())) {
+                    newState = oldState;
+                } else {
+                    newState = hashFile(entry.getValue());
+                    if (oldState == null || !Arrays.equals(oldState.hash, newState.hash)) {
+                        changedFiles.add(entry.getKey());
+                    }
+                }
+                newStates.put(entry.getKey(), newState);
+            }
+
+            boolean keyframe = (manifest.files == null || manifest.deltasSinceKeyframe >= keyframeInterval);
+            LoggableEvent event;
+            if (keyframe) {
+                byte[] data = zipper.zipProjectSources();
+                event = new LoggableEvent(exercise, FULL_SNAPSHOT_EVENT_TYPE, data, metadata.toString());
+                manifest.keyframeHash = md5Hex(data);
+                manifest.deltasSinceKeyframe = 0;
+            } else {
+                List<String> deletedFiles = new ArrayList<String>();
+                for (String path : manifest.files.keySet()) {
+                    if (!newStates.containsKey(path)) {
+                        deletedFiles.add(path);
+                    }
+                }
+                if (changedFiles.isEmpty() && deletedFiles.isEmpty()) {
+                    manifest.files = newStates;
+                    return;
+                }
+
+                byte[] data = zipper.zipSelectedFiles(changedFiles);
+                if (!deletedFiles.isEmpty()) {
+                    metadata.add("deleted_files", deletedFiles);
+                }
+                metadata.add("base_keyframe", manifest.keyframeHash);
+                event = new LoggableEvent(exercise, DELTA_SNAPSHOT_EVENT_TYPE, data, metadata.toString());
+                manifest.deltasSinceKeyframe++;
+            }
+            manifest.files = newStates;
+
+            receiver.receiveEvent(event);
+        }
+    }
+
+    /**
+     * Forgets the manifest of a project so that its next snapshot is a keyframe.
+     */
+    public synchronized void forgetProject(File projectDir) {
+        manifests.remove(projectDir);
+    }
+
+    private synchronized Manifest getManifest(File projectDir) {
+        Manifest manifest = manifests.get(projectDir);
+        if (manifest == null) {
+            manifest = new Manifest();
+            manifests.put(projectDir, manifest);
+        }
+        return manifest;
+    }
+
+    private FileState hashFile(File file) throws IOException {
+        long hashedAt = System.currentTimeMillis();
+        long size = file.length();
+        long lastModified = file.lastModified();
+
+        MessageDigest md = newMd5();
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = in.read(buf)) != -1) {
+                md.update(buf, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+        return new FileState(size, lastModified, hashedAt, md.digest());
+    }
+
+    private static String md5Hex(byte[] data) {
+        return new String(Hex.encodeHex(newMd5().digest(data)));
+    }
+
+    private static MessageDigest newMd5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException ex) {
+            throw ExceptionUtils.toRuntimeException(ex);
+        }
+    }
+}
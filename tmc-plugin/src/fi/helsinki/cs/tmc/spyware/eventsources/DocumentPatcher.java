@@ -0,0 +1,128 @@
+package fi.helsinki.cs.tmc.spyware.eventsources;
+
+import java.util.LinkedList;
+import name.fraser.neil.plaintext.diff_match_patch;
+import name.fraser.neil.plaintext.diff_match_patch.Diff;
+import name.fraser.neil.plaintext.diff_match_patch.Operation;
+import name.fraser.neil.plaintext.diff_match_patch.Patch;
+
+/**
+ * Keeps a copy of a document's text and makes patches from its edits.
+ *
+ * <p>
+ * A patch is built from the offset and text of the edit and a few characters
+ * of context around it, so the cost depends on the size of the edit rather
+ * than the document. Unlike {@link diff_match_patch#patch_make(String, String)},
+ * the context isn't grown until it is unique in the document. The patches have
+ * exact offsets, so they still apply.
+ *
+ * <p>
+ * The copy should be compared against the document every
+ * {@link #CONSISTENCY_CHECK_INTERVAL} edits, in case an edit went unnoticed.
+ */
+/*package*/ class DocumentPatcher {
+    /*package*/ static final int CONSISTENCY_CHECK_INTERVAL = 100;
+
+    private static final int CONTEXT_LENGTH = 4;
+
+    private final StringBuilder text;
+    private int editsSinceCheck = 0;
+
+    public DocumentPatcher(String text) {
+        this.text = new StringBuilder(text);
+    }
+
+    public int length() {
+        return text.length();
+    }
+
+    public String getText() {
+        return text.toString();
+    }
+
+    /**
+     * Records an insert and returns a patch describing it.
+     */
+    public LinkedList<Patch> insert(int offset, String inserted) {
+        checkOffset(offset, 0);
+        LinkedList<Patch> result = makePatch(offset, "", inserted);
+        text.insert(offset, inserted);
+        editsSinceCheck++;
+        return result;
+    }
+
+    /**
+     * Records a removal and returns a patch describing it.
+     */
+    public LinkedList<Patch> remove(int offset, int length) {
+        checkOffset(offset, length);
+        String removed = text.substring(offset, offset + length);
+        LinkedList<Patch> result = makePatch(offset, removed, "");
+        text.delete(offset, offset + length);
+        editsSinceCheck++;
+        return result;
+    }
+
+    public boolean needsConsistencyCheck() {
+        return editsSinceCheck >= CONSISTENCY_CHECK_INTERVAL;
+    }
+
+    /**
+     * Compares the copy to the actual text of the document and replaces it if they differ.
+     *
+     * @return Whether the copy was up to date.
+     */
+    public boolean checkConsistency(String actualText) {
+        editsSinceCheck = 0;
+        if (text.length() == actualText.length() && text.toString().equals(actualText)) {
+            return true;
+        }
+        text.setLength(0);
+        text.append(actualText);
+        return false;
+    }
+
+    private void checkOffset(int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > text.length()) {
+            throw new IndexOutOfBoundsException("Edit at " + offset + "+" + length + " outside text of length " + text.length());
+        }
+    }
+
+    private LinkedList<Patch> makePatch(int offset, String removed, String inserted) {
+        int prefixStart = Math.max(0, offset - CONTEXT_LENGTH);
+        if (prefixStart > 0 && Character.isLowSurrogate(text.charAt(prefixStart))) {
+            prefixStart--;
+        }
+        int suffixStart = offset + removed.length();
+        int suffixEnd = Math.min(text.length(), suffixStart + CONTEXT_LENGTH);
+        if (suffixEnd < text.length() && Character.isLowSurrogate(text.charAt(suffixEnd))) {
+            suffixEnd++;
+        }
+        String prefix = text.substring(prefixStart, offset);
+        String suffix = text.substring(suffixStart, suffixEnd);
+
+        Patch patch = new Patch();
+        if (!prefix.isEmpty()) {
+            patch.diffs.add(new Diff(Operation.EQUAL, prefix));
+        }
+        if (!removed.isEmpty()) {
+            patch.diffs.add(new Diff(Operation.DELETE, removed));
+        }
+        if (!inserted.isEmpty()) {
+            patch.diffs.add(new Diff(Operation.INSERT, inserted));
+        }
+        if (!suffix.isEmpty()) {
+            patch.diffs.add(new Diff(Operation.EQUAL, suffix));
+        }
+        patch.start1 = prefixStart;
+        patch.start2 = prefixStart;
+        patch.length1 = prefix.length() + removed.length() + suffix.length();
+        patch.length2 = prefix.length() + inserted.length() + suffix.length();
+
+        LinkedList<Patch> result = new LinkedList<Patch>();
+        if (!removed.isEmpty() || !inserted.isEmpty()) {
+            result.add(patch);
+        }
+        return result;
+    }
+}
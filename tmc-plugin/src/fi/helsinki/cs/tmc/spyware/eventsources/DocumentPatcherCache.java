@@ -0,0 +1,159 @@
+package fi.helsinki.cs.tmc.spyware.eventsources;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.swing.text.Document;
+
+/**
+ * The copies of documents that {@link TextInsertEventSource} makes patches from.
+ *
+ * <p>
+ * Documents are referenced weakly, so a copy is dropped once its document is
+ * garbage collected. The copies may have at most a given number of characters in
+ * total. When they exceed it, the least recently used copies are evicted, except
+ * for the most recently used one, which is kept even if it's larger than the budget.
+ */
+/*package*/ class DocumentPatcherCache {
+    public static final long DEFAULT_MAX_CHARACTERS = 4 * 1024 * 1024;
+
+    public static interface EvictionListener {
+        public void evicted(Document doc);
+    }
+
+    private static class Key extends WeakReference<Document> {
+        private final int hash;
+
+        public Key(Document doc) {
+            super(doc);
+            this.hash = System.identityHashCode(doc);
+        }
+
+        public Key(Document doc, ReferenceQueue<Document> queue) {
+            super(doc, queue);
+            this.hash = System.identityHashCode(doc);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Document doc = get();
+            return doc != null && doc == ((Key)obj).get();
+        }
+    }
+
+    private final long maxCharacters;
+    private final EvictionListener evictionListener;
+    private final ReferenceQueue<Document> collectedKeys = new ReferenceQueue<Document>();
+    private final LinkedHashMap<Key, DocumentPatcher> entries = new LinkedHashMap<Key, DocumentPatcher>(16, 0.75f, true);
+    private long evictions = 0;
+    private long collections = 0;
+
+    public DocumentPatcherCache(EvictionListener evictionListener) {
+        this(DEFAULT_MAX_CHARACTERS, evictionListener);
+    }
+
+    public DocumentPatcherCache(long maxCharacters, EvictionListener evictionListener) {
+        this.maxCharacters = maxCharacters;
+        this.evictionListener = evictionListener;
+    }
+
+    /**
+     * Returns the copy of the document, or null if there is none.
+     */
+    public synchronized DocumentPatcher get(Document doc) {
+        expungeCollected();
+        return entries.get(new Key(doc));
+    }
+
+    public void put(Document doc, DocumentPatcher patcher) {
+        synchronized (this) {
+            expungeCollected();
+            entries.put(new Key(doc, collectedKeys), patcher);
+        }
+        trim();
+    }
+
+    /**
+     * Removes the copy of the document without notifying the eviction listener.
+     */
+    public synchronized void remove(Document doc) {
+        expungeCollected();
+        entries.remove(new Key(doc));
+    }
+
+    /**
+     * Evicts least recently used copies until the total size is within the budget.
+     *
+     * Should be called after the copies have grown.
+     */
+    public void trim() {
+        Document evicted;
+        while ((evicted = evictEldestIfOverBudget()) != null) {
+            evictionListener.evicted(evicted);
+        }
+    }
+
+    private synchronized Document evictEldestIfOverBudget() {
+        while (entries.size() > 1 && getTotalCharacters() > maxCharacters) {
+            Iterator<Map.Entry<Key, DocumentPatcher>> it = entries.entrySet().iterator();
+            Document doc = it.next().getKey().get();
+            it.remove();
+            if (doc != null) {
+                evictions++;
+                return doc;
+            }
+        }
+        return null;
+    }
+
+    public synchronized int size() {
+        expungeCollected();
+        return entries.size();
+    }
+
+    public synchronized long getTotalCharacters() {
+        long total = 0;
+        for (DocumentPatcher patcher : entries.values()) {
+            total += patcher.length();
+        }
+        return total;
+    }
+
+    /**
+     * The number of copies evicted to stay within the budget.
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * The number of copies dropped because their document was garbage collected.
+     */
+    public synchronized long getCollections() {
+        expungeCollected();
+        return collections;
+    }
+
+    private void expungeCollected() {
+        Reference<? extends Document> ref;
+        while ((ref = collectedKeys.poll()) != null) {
+            if (entries.remove(ref) != null) {
+                collections++;
+            }
+        }
+    }
+}
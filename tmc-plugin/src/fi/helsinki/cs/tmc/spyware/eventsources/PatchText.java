@@ -0,0 +1,117 @@
+package fi.helsinki.cs.tmc.spyware.eventsources;
+
+import java.util.List;
+import name.fraser.neil.plaintext.diff_match_patch;
+import name.fraser.neil.plaintext.diff_match_patch.Diff;
+import name.fraser.neil.plaintext.diff_match_patch.Patch;
+
+/**
+ * Writes patches in the same text form as {@link diff_match_patch#patch_toText(List)}.
+ *
+ * <p>
+ * The output is identical, but it is written into one {@link StringBuilder}
+ * a character at a time. {@code diff_match_patch} encodes each diff with
+ * {@link java.net.URLEncoder} and then makes 16 passes of string replacement
+ * over the whole patch to decode the characters JavaScript's {@code encodeURI}
+ * leaves as is.
+ */
+/*package*/ class PatchText {
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    // Characters written as is. Everything else is written as %XX escapes of its UTF-8 bytes.
+    private static final boolean[] LITERAL = new boolean[128];
+    static {
+        for (char c = 'a'; c <= 'z'; ++c) {
+            LITERAL[c] = true;
+        }
+        for (char c = 'A'; c <= 'Z'; ++c) {
+            LITERAL[c] = true;
+        }
+        for (char c = '0'; c <= '9'; ++c) {
+            LITERAL[c] = true;
+        }
+        for (char c : " -_.*!~'();/?:@&=+$,#".toCharArray()) {
+            LITERAL[c] = true;
+        }
+    }
+
+    private PatchText() {
+    }
+
+    public static String toText(List<Patch> patches) {
+        StringBuilder out = new StringBuilder();
+        for (Patch patch : patches) {
+            appendPatch(out, patch);
+        }
+        return out.toString();
+    }
+
+    private static void appendPatch(StringBuilder out, Patch patch) {
+        out.append("@@ -");
+        appendCoords(out, patch.start1, patch.length1);
+        out.append(" +");
+        appendCoords(out, patch.start2, patch.length2);
+        out.append(" @@\n");
+        for (Diff diff : patch.diffs) {
+            switch (diff.operation) {
+            case INSERT:
+                out.append('+');
+                break;
+            case DELETE:
+                out.append('-');
+                break;
+            case EQUAL:
+                out.append(' ');
+                break;
+            }
+            appendEncoded(out, diff.text);
+            out.append('\n');
+        }
+    }
+
+    // Indices are 1-based except for empty ranges, as in GNU diff.
+    private static void appendCoords(StringBuilder out, int start, int length) {
+        if (length == 0) {
+            out.append(start).append(",0");
+        } else if (length == 1) {
+            out.append(start + 1);
+        } else {
+            out.append(start + 1).append(',').append(length);
+        }
+    }
+
+    private static void appendEncoded(StringBuilder out, String text) {
+        int length = text.length();
+        for (int i = 0; i < length; ++i) {
+            char c = text.charAt(i);
+            if (c < 128) {
+                if (LITERAL[c]) {
+                    out.append(c);
+                } else {
+                    appendByte(out, c);
+                }
+            } else if (c < 0x800) {
+                appendByte(out, 0xC0 | (c >> 6));
+                appendByte(out, 0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, text.charAt(i + 1));
+                i++;
+                appendByte(out, 0xF0 | (codePoint >> 18));
+                appendByte(out, 0x80 | ((codePoint >> 12) & 0x3F));
+                appendByte(out, 0x80 | ((codePoint >> 6) & 0x3F));
+                appendByte(out, 0x80 | (codePoint & 0x3F));
+            } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                // URLEncoder turns unpaired surrogates into '?'.
+                out.append('?');
+            } else {
+                appendByte(out, 0xE0 | (c >> 12));
+                appendByte(out, 0x80 | ((c >> 6) & 0x3F));
+                appendByte(out, 0x80 | (c & 0x3F));
+            }
+        }
+    }
+
+    private static void appendByte(StringBuilder out, int b) {
+        out.append('%').append(HEX_DIGITS[(b >> 4) & 0xF]).append(HEX_DIGITS[b & 0xF]);
+    }
+}
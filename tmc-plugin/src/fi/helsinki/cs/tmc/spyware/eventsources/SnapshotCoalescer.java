@@ -0,0 +1,160 @@
+package fi.helsinki.cs.tmc.spyware.eventsources;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import fi.helsinki.cs.tmc.utilities.JsonMaker;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.openide.util.RequestProcessor;
+
+/**
+ * Collects file changes into at most one pending snapshot per project
+ * and takes the snapshots in a bounded request processor.
+ *
+ * <p>
+ * A snapshot is taken once no new changes to its project have arrived for the
+ * coalescing delay, or at the latest after the maximum delay since its first change.
+ *
+ * <p>
+ * The metadata of a snapshot is that of its latest change. If several changes were
+ * coalesced, {@code change_count} tells how many and {@code changes} lists the metadata
+ * of up to {@value #MAX_LISTED_CHANGES} of them in order.
+ */
+public class SnapshotCoalescer<K> {
+    private static final Logger log = Logger.getLogger(SnapshotCoalescer.class.getName());
+
+    public static final int DEFAULT_MAX_CONCURRENT_SNAPSHOTS = 2;
+    public static final int DEFAULT_COALESCING_DELAY = 500; // milliseconds
+    public static final int DEFAULT_MAX_COALESCING_DELAY = 5000; // milliseconds
+    public static final int MAX_LISTED_CHANGES = 100;
+
+    public static interface SnapshotTaker<K> {
+        public void takeSnapshot(K key, JsonMaker metadata);
+    }
+
+    private class PendingSnapshot implements Runnable {
+        private final K key;
+        private final long firstChangeTime;
+        private final List<JsonObject> changes = new ArrayList<JsonObject>();
+        private JsonObject latestChange;
+        private int changeCount;
+        private RequestProcessor.Task task;
+
+        public PendingSnapshot(K key) {
+            this.key = key;
+            this.firstChangeTime = System.currentTimeMillis();
+        }
+
+        public void addChange(JsonObject change) {
+            latestChange = change;
+            changeCount++;
+            if (changes.size() < MAX_LISTED_CHANGES) {
+                changes.add(change);
+            }
+        }
+
+        public JsonMaker buildMetadata() {
+            JsonObject result = new JsonObject();
+            for (Map.Entry<String, JsonElement> field : latestChange.entrySet()) {
+                result.add(field.getKey(), field.getValue());
+            }
+            if (changeCount > 1) {
+                result.addProperty("change_count", changeCount);
+                JsonArray list = new JsonArray();
+                for (JsonObject change : changes) {
+                    list.add(change);
+                }
+                result.add("changes", list);
+            }
+            return new JsonMaker(result);
+        }
+
+        @Override
+        public void run() {
+            synchronized (pendingSnapshots) {
+                if (pendingSnapshots.get(key) != this) {
+                    return; // Already taken by an earlier run of this task
+                }
+                pendingSnapshots.remove(key);
+            }
+            try {
+                taker.takeSnapshot(key, buildMetadata());
+            } catch (RuntimeException ex) {
+                log.log(Level.WARNING, "Failed to take snapshot", ex);
+            } finally {
+                synchronized (pendingSnapshots) {
+                    unfinishedSnapshots.remove(this);
+                }
+            }
+        }
+    }
+
+    private final RequestProcessor processor;
+    private final SnapshotTaker<K> taker;
+    private final Map<K, PendingSnapshot> pendingSnapshots = new HashMap<K, PendingSnapshot>();
+    private final Set<PendingSnapshot> unfinishedSnapshots = new HashSet<PendingSnapshot>(); // guarded by pendingSnapshots
+    private volatile int coalescingDelay = DEFAULT_COALESCING_DELAY;
+    private volatile int maxCoalescingDelay = DEFAULT_MAX_COALESCING_DELAY;
+
+    public SnapshotCoalescer(SnapshotTaker<K> taker) {
+        this(new RequestProcessor("Source snapshots", DEFAULT_MAX_CONCURRENT_SNAPSHOTS, true), taker);
+    }
+
+    public SnapshotCoalescer(RequestProcessor processor, SnapshotTaker<K> taker) {
+        this.processor = processor;
+        this.taker = taker;
+    }
+
+    public void setCoalescingDelay(int coalescingDelay) {
+        this.coalescingDelay = coalescingDelay;
+    }
+
+    public void setMaxCoalescingDelay(int maxCoalescingDelay) {
+        this.maxCoalescingDelay = maxCoalescingDelay;
+    }
+
+    /**
+     * Records a change and schedules a snapshot of the project identified by {@code key}.
+     *
+     * @param change The change's metadata. Must not be modified afterwards.
+     */
+    public void changed(K key, JsonObject change) {
+        synchronized (pendingSnapshots) {
+            PendingSnapshot pending = pendingSnapshots.get(key);
+            if (pending == null) {
+                pending = new PendingSnapshot(key);
+                pending.task = processor.create(pending);
+                pendingSnapshots.put(key, pending);
+                unfinishedSnapshots.add(pending);
+            }
+            pending.addChange(change);
+
+            long deadline = pending.firstChangeTime + maxCoalescingDelay;
+            long delay = Math.min(coalescingDelay, deadline - System.currentTimeMillis());
+            pending.task.schedule((int)Math.max(0, delay));
+        }
+    }
+
+    /**
+     * Takes all pending snapshots immediately and waits for them to finish.
+     */
+    public void flush() {
+        List<PendingSnapshot> toWaitFor;
+        synchronized (pendingSnapshots) {
+            for (PendingSnapshot pending : pendingSnapshots.values()) {
+                pending.task.schedule(0);
+            }
+            toWaitFor = new ArrayList<PendingSnapshot>(unfinishedSnapshots);
+        }
+        for (PendingSnapshot pending : toWaitFor) {
+            pending.task.waitFinished();
+        }
+    }
+}
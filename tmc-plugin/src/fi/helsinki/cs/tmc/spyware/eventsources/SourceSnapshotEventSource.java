@@ -1,23 +1,29 @@
 package fi.helsinki.cs.tmc.spyware.eventsources;
 
+import com.google.gson.JsonObject;
 import fi.helsinki.cs.tmc.data.Exercise;
 import fi.helsinki.cs.tmc.model.CourseDb;
 import fi.helsinki.cs.tmc.model.ProjectMediator;
 import fi.helsinki.cs.tmc.model.TmcProjectInfo;
 import fi.helsinki.cs.tmc.spyware.EventReceiver;
-import fi.helsinki.cs.tmc.spyware.LoggableEvent;
 import fi.helsinki.cs.tmc.spyware.SpywareSettings;
-import fi.helsinki.cs.tmc.utilities.ActiveThreadSet;
 import fi.helsinki.cs.tmc.utilities.JsonMaker;
 import fi.helsinki.cs.tmc.utilities.TmcFileUtils;
 import fi.helsinki.cs.tmc.utilities.TmcSwingUtilities;
 import fi.helsinki.cs.tmc.utilities.zip.RecursiveZipper;
+import fi.helsinki.cs.tmc.utilities.zip.ZipEntryCache;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
 import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.swing.SwingUtilities;
+import org.netbeans.api.project.Project;
+import org.netbeans.api.project.ui.OpenProjects;
 import org.openide.filesystems.*;
 
 public class SourceSnapshotEventSource implements FileChangeListener, Closeable {
@@ -29,18 +35,52 @@ public class SourceSnapshotEventSource implements FileChangeListener, Closeable
     
     private SpywareSettings settings;
     private EventReceiver receiver;
-    private ActiveThreadSet snapshotterThreads;
+    private SnapshotCoalescer<SnapshotTarget> coalescer;
+    private DeltaSnapshotter snapshotter;
     private boolean closed;
 
+    private PropertyChangeListener openProjectsListener = new PropertyChangeListener() {
+        @Override
+        public void propertyChange(PropertyChangeEvent evt) {
+            if (OpenProjects.PROPERTY_OPEN_PROJECTS.equals(evt.getPropertyName())
+                    && evt.getOldValue() instanceof Project[] && evt.getNewValue() instanceof Project[]) {
+                List<Project> stillOpen = Arrays.asList((Project[])evt.getNewValue());
+                for (Project project : (Project[])evt.getOldValue()) {
+                    if (!stillOpen.contains(project)) {
+                        projectClosed(project);
+                    }
+                }
+            }
+        }
+    };
+
     public SourceSnapshotEventSource(SpywareSettings settings, EventReceiver receiver) {
         this.settings = settings;
         this.receiver = receiver;
         
-        this.snapshotterThreads = new ActiveThreadSet();
+        this.coalescer = new SnapshotCoalescer<SnapshotTarget>(new ProjectSnapshotTaker());
+        this.snapshotter = new DeltaSnapshotter();
+    }
+
+    /**
+     * Sets how many delta snapshots may be sent between full snapshots of a project.
+     *
+     * Zero makes every snapshot a full one.
+     */
+    public void setKeyframeInterval(int keyframeInterval) {
+        snapshotter.setKeyframeInterval(keyframeInterval);
+    }
+
+    /**
+     * Sets how long to wait for more changes to a project before snapshotting it.
+     */
+    public void setCoalescingDelay(int coalescingDelay) {
+        coalescer.setCoalescingDelay(coalescingDelay);
     }
     
     public void startListeningToFileChanges() {
         FileUtil.addFileChangeListener(this);
+        OpenProjects.getDefault().addPropertyChangeListener(openProjectsListener);
     }
     
     /**
@@ -51,16 +91,22 @@ public class SourceSnapshotEventSource implements FileChangeListener, Closeable
         TmcSwingUtilities.ensureEdt(new Runnable() {
             @Override
             public void run() {
-                try {
-                    closed = true;
-                    FileUtil.removeFileChangeListener(SourceSnapshotEventSource.this);
-                    snapshotterThreads.joinAll();
-                } catch (InterruptedException ex) {
-                }
+                closed = true;
+                FileUtil.removeFileChangeListener(SourceSnapshotEventSource.this);
+                OpenProjects.getDefault().removePropertyChangeListener(openProjectsListener);
+                coalescer.flush();
             }
         });
     }
     
+    // The next snapshot of the project, if it is opened again, is a full one.
+    private void projectClosed(Project project) {
+        File projectDir = FileUtil.toFile(project.getProjectDirectory());
+        if (projectDir != null) {
+            snapshotter.forgetProject(projectDir);
+        }
+    }
+
     @Override
     public void fileFolderCreated(FileEvent fe) {
         reactToChange(ChangeType.FOLDER_CREATE, fe.getFile());
@@ -96,11 +142,10 @@ public class SourceSnapshotEventSource implements FileChangeListener, Closeable
             return;
         }
         
-        String metadata = JsonMaker.create()
-                .add("cause", changeType.name().toLowerCase())
-                .add("file", filePath)
-                .toString();
-        invokeSnapshotThreadViaEdt(fileObject, metadata);
+        JsonObject metadata = new JsonObject();
+        metadata.addProperty("cause", changeType.name().toLowerCase());
+        metadata.addProperty("file", filePath);
+        invokeSnapshotViaEdt(fileObject, metadata);
     }    
     
     private void reactToRename(final ChangeType changeType, final FileRenameEvent renameEvent) {
@@ -109,17 +154,16 @@ public class SourceSnapshotEventSource implements FileChangeListener, Closeable
             return;
         }
         
-        String metadata = JsonMaker.create()
-                .add("cause", changeType.name().toLowerCase())
-                .add("file", filePath)
-                .add("previous_name", renameEvent.getName() + "." + renameEvent.getExt())
-                .toString();
-        invokeSnapshotThreadViaEdt(renameEvent.getFile(), metadata);
+        JsonObject metadata = new JsonObject();
+        metadata.addProperty("cause", changeType.name().toLowerCase());
+        metadata.addProperty("file", filePath);
+        metadata.addProperty("previous_name", renameEvent.getName() + "." + renameEvent.getExt());
+        invokeSnapshotViaEdt(renameEvent.getFile(), metadata);
     }
     
     // I have no idea what thread FileUtil callbacks are made in,
     // so I'll go to the EDT to safely read the global state.
-    private void invokeSnapshotThreadViaEdt(final FileObject fileObject, final String metadata) {
+    private void invokeSnapshotViaEdt(final FileObject fileObject, final JsonObject metadata) {
         SwingUtilities.invokeLater(new Runnable() {
             @Override
             public void run() {
@@ -128,15 +172,15 @@ public class SourceSnapshotEventSource implements FileChangeListener, Closeable
                 }
                 
                 try {
-                    startSnapshotThread(fileObject, metadata);
+                    scheduleSnapshot(fileObject, metadata);
                 } catch (Exception e) {
-                    log.log(Level.WARNING, "Failed to start snapshot thread", e);
+                    log.log(Level.WARNING, "Failed to schedule snapshot", e);
                 }
             }
         });
     }
     
-    private void startSnapshotThread(FileObject changedFile, String metadata) {
+    private void scheduleSnapshot(FileObject changedFile, JsonObject metadata) {
         if (!settings.isSpywareEnabled()) {
             return;
         }
@@ -154,40 +198,50 @@ public class SourceSnapshotEventSource implements FileChangeListener, Closeable
             if (exercise != null) {
                 log.log(Level.FINER, "Exercise: {0}", exercise);
                 
-                SnapshotThread thread = new SnapshotThread(receiver, exercise, project, metadata);
-                snapshotterThreads.addThread(thread);
-                thread.setDaemon(true);
-                thread.start();
+                coalescer.changed(new SnapshotTarget(exercise, project), metadata);
             }
         }
     }
     
-    private static class SnapshotThread extends Thread {
-        private final EventReceiver receiver;
+    /**
+     * Identifies a project to snapshot. Equal if the projects are.
+     */
+    private static class SnapshotTarget {
         private final Exercise exercise;
         private final TmcProjectInfo projectInfo;
-        private final String metadata;
 
-        private SnapshotThread(EventReceiver receiver, Exercise exercise, TmcProjectInfo projectInfo, String metadata) {
-            super("Source snapshot");
-            this.receiver = receiver;
+        public SnapshotTarget(Exercise exercise, TmcProjectInfo projectInfo) {
             this.exercise = exercise;
             this.projectInfo = projectInfo;
-            this.metadata = metadata;
         }
 
         @Override
-        public void run() {
-            // Note that, being in a thread, this is inherently prone to races that modify the project.
+        public boolean equals(Object obj) {
+            return obj instanceof SnapshotTarget && projectInfo.equals(((SnapshotTarget)obj).projectInfo);
+        }
+
+        @Override
+        public int hashCode() {
+            return projectInfo.hashCode();
+        }
+    }
+
+    private class ProjectSnapshotTaker implements SnapshotCoalescer.SnapshotTaker<SnapshotTarget> {
+        @Override
+        public void takeSnapshot(SnapshotTarget target, JsonMaker metadata) {
+            // Note that, being in a background thread, this is inherently prone to races that modify the project.
             // For now we just accept that. Not sure if the FileObject API would allow some sort of
             // global locking of the project.
+            TmcProjectInfo projectInfo = target.projectInfo;
             File projectDir = projectInfo.getProjectDirAsFile();
+            if (projectDir == null) {
+                return; // Deleted since the change
+            }
             RecursiveZipper.ZippingDecider zippingDecider = new ZippingDeciderWrapper(projectInfo, projectInfo.getZippingDecider());
             RecursiveZipper zipper = new RecursiveZipper(projectDir, zippingDecider);
+            zipper.setEntryCache(ZipEntryCache.getInstance());
             try {
-                byte[] data = zipper.zipProjectSources();
-                LoggableEvent event = new LoggableEvent(exercise, "code_snapshot", data, metadata);
-                receiver.receiveEvent(event);
+                snapshotter.sendSnapshot(target.exercise, projectDir, zipper, metadata, receiver);
             } catch (IOException ex) {
                 // Warning might be also appropriate, but this often races with project closing
                 // during integration tests, and there warning would cause a dialog to appear,
@@ -216,11 +270,11 @@ public class SourceSnapshotEventSource implements FileChangeListener, Closeable
             ".woff"
         };
 
-        private final TmcProjectInfo projectInfo;
+        private final File projectParentDir;
         private final RecursiveZipper.ZippingDecider subdecider;
 
         public ZippingDeciderWrapper(TmcProjectInfo projectInfo, RecursiveZipper.ZippingDecider subdecider) {
-            this.projectInfo = projectInfo;
+            this.projectParentDir = projectInfo.getProjectDirAsFile().getParentFile();
             this.subdecider = subdecider;
         }
 
@@ -243,8 +297,8 @@ public class SourceSnapshotEventSource implements FileChangeListener, Closeable
 
         @Override
         public boolean shouldZip(String zipPath) {
-            File file = new File(projectInfo.getProjectDirAsFile().getParentFile(), zipPath);
-            if (file.isDirectory()) {
+            File file = new File(projectParentDir, zipPath);
+            if (zipPath.endsWith("/")) {
                 if (hasNoSnapshotFile(file)) {
                     return false;
                 }
@@ -0,0 +1,257 @@
+package fi.helsinki.cs.tmc.spyware.eventsources;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentEvent.EventType;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import org.openide.util.RequestProcessor;
+
+/**
+ * Hands document edits from a document listener over to a background thread.
+ *
+ * <p>
+ * The listener only records the offset, length and inserted text of an edit
+ * into a lock-free queue. The full text of the document is read only on the
+ * first edit of a document and when the processor asks for it with
+ * {@link #requestFullText(Document)}. The processor may also read it itself
+ * with {@link #readFullText(Document)}.
+ *
+ * <p>
+ * Edits are processed in order in a single thread. Edits that queued up while
+ * the thread was busy are coalesced where one continues the other: consecutive
+ * typed characters become one insert and consecutive backspaces or deletes one
+ * removal. Inserts that may be pastes are never coalesced.
+ */
+/*package*/ class TextEditQueue {
+    private static final Logger log = Logger.getLogger(TextEditQueue.class.getName());
+
+    public static interface EditProcessor {
+        public void process(Edit edit);
+    }
+
+    /*package*/ static class Edit {
+        private final Document document;
+        private final boolean insert;
+        private int offset;
+        private int length;
+        private String text; // Inserted text, or null for removals
+        private final String fullText; // Text of the whole document after the edit, or null
+        private final boolean mayBePaste;
+        private long sequence; // Of the last edit merged into this one
+
+        /*package*/ Edit(Document document, boolean insert, int offset, int length, String text, String fullText) {
+            this.document = document;
+            this.insert = insert;
+            this.offset = offset;
+            this.length = length;
+            this.text = text;
+            this.fullText = fullText;
+            this.mayBePaste = insert && text.length() > 2 && !isWhiteSpace(text);
+        }
+
+        public Document getDocument() {
+            return document;
+        }
+
+        public boolean isInsert() {
+            return insert;
+        }
+
+        public int getOffset() {
+            return offset;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        public String getText() {
+            return text;
+        }
+
+        public String getFullText() {
+            return fullText;
+        }
+
+        /**
+         * Whether the inserted text is long enough to be checked against the clipboard.
+         * Short inserts and whitespace, which is probably autoindent, are not.
+         */
+        public boolean mayBePaste() {
+            return mayBePaste;
+        }
+
+        /**
+         * Merges the next edit into this one if it continues this one.
+         */
+        /*package*/ boolean tryAppend(Edit next) {
+            if (next.document != document || fullText != null || next.fullText != null || mayBePaste || next.mayBePaste) {
+                return false;
+            }
+            if (insert && next.insert && next.offset == offset + length) {
+                text = text + next.text;
+                length += next.length;
+                sequence = next.sequence;
+                return true;
+            }
+            if (!insert && !next.insert) {
+                if (next.offset + next.length == offset) { // Backspace
+                    offset = next.offset;
+                    length += next.length;
+                    sequence = next.sequence;
+                    return true;
+                }
+                if (next.offset == offset) { // Delete
+                    length += next.length;
+                    sequence = next.sequence;
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static boolean isWhiteSpace(String text) {
+            for (int i = 0; i < text.length(); ++i) {
+                if (!Character.isWhitespace(text.charAt(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private final EditProcessor processor;
+    private final Queue<Edit> queue = new ConcurrentLinkedQueue<Edit>();
+    private final AtomicBoolean drainScheduled = new AtomicBoolean(false);
+    private final RequestProcessor.Task drainTask;
+    // TRUE if the next edit should carry the full text. Documents not seen yet are missing.
+    private final Map<Document, Boolean> fullTextWanted = Collections.synchronizedMap(new WeakHashMap<Document, Boolean>());
+    private final AtomicLong recordedEdits = new AtomicLong(0);
+    // Sequence number of the last edit included in text read by readFullText. Used only in the processing thread.
+    private final Map<Document, Long> textReadUpTo = new WeakHashMap<Document, Long>();
+
+    public TextEditQueue(EditProcessor processor) {
+        this(new RequestProcessor("TMC text events", 1, true), processor);
+    }
+
+    public TextEditQueue(RequestProcessor requestProcessor, EditProcessor processor) {
+        this.processor = processor;
+        this.drainTask = requestProcessor.create(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        });
+    }
+
+    /**
+     * Records an insert or removal. Called in the document listener.
+     */
+    public void record(DocumentEvent e) throws BadLocationException {
+        Document doc = e.getDocument();
+        boolean insert = (e.getType() == EventType.INSERT);
+        String text = insert ? doc.getText(e.getOffset(), e.getLength()) : null;
+
+        String fullText = null;
+        Boolean wanted = fullTextWanted.get(doc);
+        if (wanted == null || wanted) {
+            fullText = doc.getText(0, doc.getLength());
+            fullTextWanted.put(doc, Boolean.FALSE);
+        }
+
+        Edit edit = new Edit(doc, insert, e.getOffset(), e.getLength(), text, fullText);
+        edit.sequence = recordedEdits.incrementAndGet();
+        queue.add(edit);
+        if (drainScheduled.compareAndSet(false, true)) {
+            drainTask.schedule(0);
+        }
+    }
+
+    /**
+     * Makes the next recorded edit of the document carry its full text.
+     */
+    public void requestFullText(Document doc) {
+        fullTextWanted.put(doc, Boolean.TRUE);
+    }
+
+    /**
+     * Reads the current text of the document. Called by the processor.
+     *
+     * <p>
+     * Edits of the document recorded before the read and not processed yet
+     * are then skipped, since the text already includes them.
+     *
+     * @return the text, or null if it could not be read
+     */
+    public String readFullText(final Document doc) {
+        final String[] text = new String[1];
+        doc.render(new Runnable() {
+            @Override
+            public void run() {
+                // Edits are recorded while the document is locked for writing, so none are recorded here.
+                try {
+                    text[0] = doc.getText(0, doc.getLength());
+                } catch (BadLocationException ex) {
+                    log.log(Level.WARNING, "Failed to read document text", ex);
+                    return;
+                }
+                textReadUpTo.put(doc, recordedEdits.get());
+                fullTextWanted.put(doc, Boolean.FALSE);
+            }
+        });
+        return text[0];
+    }
+
+    /**
+     * Waits until the edits recorded so far have been processed.
+     */
+    public void waitUntilIdle() {
+        drainTask.waitFinished();
+    }
+
+    private void drain() {
+        drainScheduled.set(false);
+
+        List<Edit> edits = new ArrayList<Edit>();
+        Edit edit;
+        while ((edit = queue.poll()) != null) {
+            edits.add(edit);
+        }
+
+        Edit pending = null;
+        for (Edit next : edits) {
+            if (pending == null || !pending.tryAppend(next)) {
+                if (pending != null) {
+                    process(pending);
+                }
+                pending = next;
+            }
+        }
+        if (pending != null) {
+            process(pending);
+        }
+    }
+
+    private void process(Edit edit) {
+        Long readUpTo = textReadUpTo.get(edit.getDocument());
+        if (readUpTo != null && edit.sequence <= readUpTo) {
+            return; // Already in text read by readFullText
+        }
+        try {
+            processor.process(edit);
+        } catch (RuntimeException ex) {
+            log.log(Level.WARNING, "Failed to process document edit", ex);
+        }
+    }
+}
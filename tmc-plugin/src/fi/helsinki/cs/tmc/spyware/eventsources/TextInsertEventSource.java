@@ -14,13 +14,10 @@ import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
 import java.io.Closeable;
 import java.nio.charset.Charset;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.swing.event.DocumentEvent;
-import javax.swing.event.DocumentEvent.EventType;
 import javax.swing.event.DocumentListener;
 import javax.swing.text.BadLocationException;
 import javax.swing.text.Document;
@@ -36,6 +33,10 @@ import org.openide.util.datatransfer.ExClipboard;
 /**
  * Records large inserts into documents. These are often, but not always,
  * pastes.
+ *
+ * <p>
+ * The document listener only queues the edits. Patches and events are made
+ * in the background by {@link TextEditQueue}, so typing isn't slowed down.
  */
 public class TextInsertEventSource implements Closeable {
     
@@ -43,7 +44,8 @@ public class TextInsertEventSource implements Closeable {
     private static final diff_match_patch PATCH_GENERATOR = new diff_match_patch();
     private EventReceiver receiver;
     private JTextComponent currentComponent;
-    private Map<Document, String> documentCache;
+    private DocumentPatcherCache documentCache;
+    private TextEditQueue editQueue;
     private DocumentListener docListener = new DocumentListener() {
         @Override
         public void insertUpdate(DocumentEvent e) {
@@ -59,13 +61,25 @@ public class TextInsertEventSource implements Closeable {
         public void changedUpdate(DocumentEvent e) {
             // These are attribute changes and don't interest us.
         }
-        
+
+        private void handleEvent(DocumentEvent e) {
+            try {
+                editQueue.record(e);
+            } catch (BadLocationException exp) {
+                log.log(Level.WARNING, "Document {0} event with bad location. ", e.getType());
+            }
+        }
+    };
+
+    // Everything from here on runs in the edit queue's thread.
+    private TextEditQueue.EditProcessor editProcessor = new TextEditQueue.EditProcessor() {
         private FileObject cachedFile = null;
         private Exercise cachedExercise = null;
 
         private Exercise exerciseContainingFile(FileObject fo) {
             if (cachedFile == null || !cachedFile.equals(fo)) {
                 cachedFile = fo;
+                cachedExercise = null;
                 ProjectMediator pm = ProjectMediator.getInstance();
                 TmcProjectInfo project = pm.tryGetProjectOwningFile(fo);
                 if (project != null) {
@@ -76,8 +90,9 @@ public class TextInsertEventSource implements Closeable {
             return cachedExercise;
         }
 
-        private void handleEvent(DocumentEvent e) {
-            Document doc = e.getDocument();
+        @Override
+        public void process(TextEditQueue.Edit edit) {
+            Document doc = edit.getDocument();
 
             FileObject fo = NbEditorUtilities.getFileObject(doc);
             if (fo == null) {
@@ -91,46 +106,40 @@ public class TextInsertEventSource implements Closeable {
                 return;
             }
 
-            createAndSendPatchEvent(e, fo, doc, ex);
+            createAndSendPatchEvent(edit, fo, doc, ex);
         }
 
-        private void createAndSendPatchEvent(DocumentEvent e, FileObject fo, Document doc, Exercise ex) {
-            List<Patch> patches;
-            
-            // if the document is not in cache, the patch will
-            // contain the full document
-            boolean patchContainsFullDocument = !documentCache.containsKey(doc);
+        private void createAndSendPatchEvent(TextEditQueue.Edit edit, FileObject fo, Document doc, Exercise ex) {
+            List<Patch> patches = null;
 
             try {
-                // generatePatches will cache the current version for future
-                // patches; if the document was not in the cache previously, the patch will
-                // contain the full document content
-                patches = generatePatches(doc);
-            } catch (BadLocationException exp) {
-                log.log(Level.WARNING, "Unable to generate patches from {0}.", fo.getName());
-                return;
+                patches = generateIncrementalPatches(edit, doc);
+            } catch (IndexOutOfBoundsException exp) {
+                log.log(Level.FINE, "Cached copy of {0} was out of date.", fo.getName());
             }
 
-            // Remove event is handled here as the getText-method can cause
-            // an error as the document state is the state after the event. As 
-            // the offsets are from the actual event, they may reference content 
-            // that is no longer in the current document.
-            if (e.getType().equals(EventType.REMOVE)) {
-                sendEvent(ex, "text_remove", generatePatchDescription(fo, patches, patchContainsFullDocument));
-                return;
+            // If the document was not cached (or the copy was out of date),
+            // the patch will contain the full document.
+            boolean patchContainsFullDocument = (patches == null);
+            if (patchContainsFullDocument) {
+                String fullText = edit.getFullText();
+                if (fullText == null) {
+                    // Also covers the edits queued after this one.
+                    fullText = editQueue.readFullText(doc);
+                }
+                if (fullText == null) {
+                    documentCache.remove(doc);
+                    editQueue.requestFullText(doc);
+                    return;
+                }
+                patches = generateFullPatches(doc, fullText);
             }
 
-            String text;
-            try {
-                text = doc.getText(e.getOffset(), e.getLength());
-            } catch (BadLocationException exp) {
-                log.log(Level.WARNING, "Document {0} event with bad location. ", e.getType());
-                return;
-            }
-            
-            if (isPasteEvent(text)) {
+            if (!edit.isInsert()) {
+                sendEvent(ex, "text_remove", generatePatchDescription(fo, patches, patchContainsFullDocument));
+            } else if (edit.mayBePaste() && isPasteEvent(edit.getText())) {
                 sendEvent(ex, "text_paste", generatePatchDescription(fo, patches, patchContainsFullDocument));
-            } else if (e.getType() == EventType.INSERT) {
+            } else {
                 sendEvent(ex, "text_insert", generatePatchDescription(fo, patches, patchContainsFullDocument));
             }
         }
@@ -145,7 +154,7 @@ public class TextInsertEventSource implements Closeable {
             if (filePath != null) {
                 return JsonMaker.create()
                     .add("file", filePath)
-                    .add("patches", PATCH_GENERATOR.patch_toText(patches))
+                    .add("patches", PatchText.toText(patches))
                     .add("full_document", patchContainsFullDocument)
                     .toString();
             } else {
@@ -154,12 +163,6 @@ public class TextInsertEventSource implements Closeable {
         }
 
         private boolean isPasteEvent(String text) throws HeadlessException {
-            if (text.length() <= 2 || isWhiteSpace(text)) {
-                // if a short text or whitespace is inserted,
-                // we skip checking for paste
-                return false;
-            }
-
             try {
                 String clipboardData = (String) Lookup.getDefault().
                         lookup(ExClipboard.class).getData(DataFlavor.stringFlavor);
@@ -170,36 +173,51 @@ public class TextInsertEventSource implements Closeable {
             return false;
         }
 
-        private boolean isWhiteSpace(String text) {
-            // If an insert is just whitespace, it's probably an autoindent
+        /**
+         * Makes patches from the edit's offsets and the cached copy of the document.
+         *
+         * Returns null if the document is not cached or the copy turned out to be out of date.
+         */
+        private List<Patch> generateIncrementalPatches(TextEditQueue.Edit edit, Document doc) {
+            DocumentPatcher patcher = documentCache.get(doc);
+            if (patcher == null) {
+                return null;
+            }
 
-            for (int i = 0; i < text.length(); ++i) {
-                if (!Character.isWhitespace(text.charAt(i))) {
-                    return false;
-                }
+            List<Patch> patches;
+            if (edit.isInsert()) {
+                patches = patcher.insert(edit.getOffset(), edit.getText());
+            } else {
+                patches = patcher.remove(edit.getOffset(), edit.getLength());
             }
 
-            return true;
-        }
+            documentCache.trim();
 
-        // currently, if a document is not existing, the patch will
-        // contain the full file
-        private List<Patch> generatePatches(Document doc) throws BadLocationException {
-            String previous = "";
-            if (documentCache.containsKey(doc)) {
-                previous = documentCache.get(doc);
+            if (edit.getFullText() != null) {
+                if (!patcher.checkConsistency(edit.getFullText())) {
+                    log.log(Level.FINE, "Cached copy of a document was out of date.");
+                    return null;
+                }
+            } else if (patcher.needsConsistencyCheck()) {
+                editQueue.requestFullText(doc);
             }
+            return patches;
+        }
 
-            documentCache.put(doc, doc.getText(0, doc.getLength()));
-            String current = documentCache.get(doc);
-
-            return PATCH_GENERATOR.patch_make(previous, current);
+        // The patch will contain the full document.
+        private List<Patch> generateFullPatches(Document doc, String fullText) {
+            documentCache.put(doc, new DocumentPatcher(fullText));
+            return PATCH_GENERATOR.patch_make("", fullText);
         }
     };
     
     private PropertyChangeListener propListener = new PropertyChangeListener() {
         @Override
         public void propertyChange(PropertyChangeEvent evt) {
+            if (EditorRegistry.COMPONENT_REMOVED_PROPERTY.equals(evt.getPropertyName())
+                    && evt.getOldValue() instanceof JTextComponent) {
+                editorClosed(((JTextComponent) evt.getOldValue()).getDocument());
+            }
             deregister();
             register();
         }
@@ -208,7 +226,14 @@ public class TextInsertEventSource implements Closeable {
     public TextInsertEventSource(EventReceiver receiver) {
         this.receiver = receiver;
         this.currentComponent = null;
-        this.documentCache = new HashMap<Document, String>();
+        this.editQueue = new TextEditQueue(editProcessor);
+        this.documentCache = new DocumentPatcherCache(new DocumentPatcherCache.EvictionListener() {
+            @Override
+            public void evicted(Document doc) {
+                // So that the next edit can be sent as a full-document patch.
+                editQueue.requestFullText(doc);
+            }
+        });
         EditorRegistry.addPropertyChangeListener(propListener);
     }
 
@@ -226,6 +251,19 @@ public class TextInsertEventSource implements Closeable {
         }
     }
 
+    private void editorClosed(Document doc) {
+        for (JTextComponent component : EditorRegistry.componentList()) {
+            if (component.getDocument() == doc) {
+                return; // Still open in another editor
+            }
+        }
+        documentCache.remove(doc);
+        editQueue.requestFullText(doc);
+        log.log(Level.FINE, "Document text cache has {0} documents with {1} characters after {2} evictions and {3} collections.",
+                new Object[] { documentCache.size(), documentCache.getTotalCharacters(),
+                               documentCache.getEvictions(), documentCache.getCollections() });
+    }
+
     @Override
     public void close() {
         deregister();
@@ -6,7 +6,10 @@ import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.apache.http.ConnectionClosedException;
 import org.apache.http.HttpResponseInterceptor;
 import org.apache.http.impl.DefaultConnectionReuseStrategy;
@@ -28,7 +31,8 @@ import org.apache.http.protocol.ResponseServer;
 import org.openide.util.Exceptions;
 
 /**
- * A HTTP server running on a random port in a single background thread.
+ * A HTTP server running on a random port in background threads,
+ * one for accepting connections and one for each connection.
  * 
  * An exception in a request handler will cause the server to shut down.
  * The exception will be propagated when {@link #stop()} is called.
@@ -40,8 +44,10 @@ public class AdHocHttpServer {
     private HttpService httpService;
     private Thread thread;
     
-    private Exception inThreadException; // Set by thread, read in stop()
+    private volatile Exception inThreadException; // Set by threads, read in stop()
     private Semaphore requestCounter = new Semaphore(0);
+    private AtomicInteger connectionCount = new AtomicInteger(0);
+    private final Set<Socket> openSockets = new HashSet<Socket>();
     
     private volatile boolean debugEnabled = false;
 
@@ -115,6 +121,13 @@ public class AdHocHttpServer {
         thread.start();
     }
     
+    /**
+     * Returns the number of connections accepted so far.
+     */
+    public int getConnectionCount() {
+        return connectionCount.get();
+    }
+    
     public void waitForRequestToComplete() throws Exception {
         requestCounter.acquire();
     }
@@ -128,6 +141,11 @@ public class AdHocHttpServer {
         thread.interrupt();
         serverSocket.close();
         thread.join();
+        synchronized (openSockets) {
+            for (Socket socket : openSockets) {
+                socket.close();
+            }
+        }
         debug("Stopped");
         
         if (inThreadException != null) {
@@ -139,7 +157,7 @@ public class AdHocHttpServer {
         @Override
         public void run() {
             while (!Thread.interrupted()) {
-                Socket socket = null;
+                Socket socket;
                 try {
                     debug("Accepting at port " + serverSocket.getLocalPort());
                     try {
@@ -151,38 +169,64 @@ public class AdHocHttpServer {
                             throw ex;
                         }
                     }
-
-                    debug("Got connection");
-                    DefaultHttpServerConnection conn = new DefaultHttpServerConnection();
-                    conn.bind(socket, httpService.getParams());
-                    HttpContext ctx = new BasicHttpContext(null);
-                    while (!Thread.currentThread().isInterrupted() && conn.isOpen()) {
-                        httpService.handleRequest(conn, ctx);
-                        requestCounter.release();
-                    }
-                    debug("Connection processed");
-                } catch (ConnectionClosedException ex) {
-                    // No problem I think
-                } catch (InterruptedIOException ex) {
-                    debug("InterruptedIOException: " + ex);
-                    break;
                 } catch (Exception ex) {
                     inThreadException = ex;
                     debug("Exception: " + ex);
                     break;
-                } finally {
-                    try {
-                        if (socket != null) {
-                            socket.close();
-                        }
-                    } catch (IOException ex) {
-                        Exceptions.printStackTrace(ex);
-                    }
                 }
+
+                debug("Got connection");
+                connectionCount.incrementAndGet();
+                synchronized (openSockets) {
+                    openSockets.add(socket);
+                }
+                Thread connThread = new Thread(new ConnectionHandler(socket), "FakeServer connection");
+                connThread.setDaemon(true);
+                connThread.start();
             }
         }
     };
     
+    private class ConnectionHandler implements Runnable {
+        private final Socket socket;
+
+        public ConnectionHandler(Socket socket) {
+            this.socket = socket;
+        }
+
+        @Override
+        public void run() {
+            try {
+                DefaultHttpServerConnection conn = new DefaultHttpServerConnection();
+                conn.bind(socket, httpService.getParams());
+                HttpContext ctx = new BasicHttpContext(null);
+                while (!Thread.currentThread().isInterrupted() && conn.isOpen()) {
+                    httpService.handleRequest(conn, ctx);
+                    requestCounter.release();
+                }
+                debug("Connection processed");
+            } catch (ConnectionClosedException ex) {
+                // No problem I think
+            } catch (SocketException ex) {
+                debug("SocketException: " + ex); // Usually closed by stop()
+            } catch (InterruptedIOException ex) {
+                debug("InterruptedIOException: " + ex);
+            } catch (Exception ex) {
+                inThreadException = ex;
+                debug("Exception: " + ex);
+            } finally {
+                synchronized (openSockets) {
+                    openSockets.remove(socket);
+                }
+                try {
+                    socket.close();
+                } catch (IOException ex) {
+                    Exceptions.printStackTrace(ex);
+                }
+            }
+        }
+    }
+    
     protected void debug(Object msg) {
         if (debugEnabled) {
             System.out.println(this.getClass().getSimpleName() + ": " + msg.toString());
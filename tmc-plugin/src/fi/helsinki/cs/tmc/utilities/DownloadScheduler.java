@@ -0,0 +1,300 @@
+package fi.helsinki.cs.tmc.utilities;
+
+import fi.helsinki.cs.tmc.utilities.http.FailedHttpResponseException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.swing.SwingUtilities;
+import org.netbeans.api.progress.ProgressHandle;
+import org.netbeans.api.progress.ProgressHandleFactory;
+import org.openide.util.Cancellable;
+import org.openide.util.RequestProcessor;
+
+/**
+ * Runs downloads in the background, a bounded number at a time.
+ *
+ * <p>
+ * Downloads run in their own request processor at a low thread priority so that
+ * a large batch does not hold up other background tasks. A download that fails
+ * with an I/O error or a server error is retried with exponential backoff.
+ *
+ * <p>
+ * Downloads are added in {@link Batch batches}. A batch shows a single progress
+ * indicator for all of its downloads and can be cancelled as a whole.
+ * As with {@link BgTask}, listeners are called in the Swing thread.
+ */
+public class DownloadScheduler {
+    private static final Logger log = Logger.getLogger(DownloadScheduler.class.getName());
+
+    public static final int DEFAULT_MAX_CONCURRENT_DOWNLOADS = 3;
+    public static final int DEFAULT_MAX_ATTEMPTS = 3;
+    public static final int DEFAULT_INITIAL_BACKOFF = 1000; // milliseconds
+    public static final int MAX_CONCURRENT_DOWNLOADS = 16;
+
+    private static DownloadScheduler instance;
+
+    public static synchronized DownloadScheduler getInstance() {
+        if (instance == null) {
+            instance = new DownloadScheduler();
+        }
+        return instance;
+    }
+
+    private final RequestProcessor processor;
+    private final LinkedList<Item<?>> queue = new LinkedList<Item<?>>(); // guarded by this
+    private int running = 0; // guarded by this
+    private int maxConcurrentDownloads = DEFAULT_MAX_CONCURRENT_DOWNLOADS; // guarded by this
+    private volatile int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+    private volatile int initialBackoff = DEFAULT_INITIAL_BACKOFF;
+
+    public DownloadScheduler() {
+        this(new RequestProcessor("TMC downloads", MAX_CONCURRENT_DOWNLOADS, true));
+    }
+
+    public DownloadScheduler(RequestProcessor processor) {
+        this.processor = processor;
+    }
+
+    public void setMaxConcurrentDownloads(int maxConcurrentDownloads) {
+        if (maxConcurrentDownloads < 1 || maxConcurrentDownloads > MAX_CONCURRENT_DOWNLOADS) {
+            throw new IllegalArgumentException("Concurrent downloads must be between 1 and " + MAX_CONCURRENT_DOWNLOADS);
+        }
+        synchronized (this) {
+            this.maxConcurrentDownloads = maxConcurrentDownloads;
+        }
+        startQueuedDownloads();
+    }
+
+    /**
+     * Sets how many times a download is tried in total before it fails.
+     */
+    public void setMaxAttempts(int maxAttempts) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException();
+        }
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * Sets the delay before the first retry. Each further retry waits twice as long.
+     */
+    public void setInitialBackoff(int initialBackoff) {
+        this.initialBackoff = initialBackoff;
+    }
+
+    public Batch newBatch(String label) {
+        return new Batch(label);
+    }
+
+    /**
+     * Tells whether a failed download should be tried again.
+     */
+    protected boolean isRetryable(Throwable ex) {
+        if (ex instanceof FailedHttpResponseException) {
+            return ((FailedHttpResponseException)ex).getStatusCode() >= 500;
+        }
+        return ex instanceof IOException;
+    }
+
+    public class Batch implements Cancellable {
+        private final String label;
+        private final List<Item<?>> items = new ArrayList<Item<?>>();
+        private ProgressHandle progressHandle;
+        private boolean started = false; // guarded by this
+        private boolean cancelled = false; // guarded by this
+        private int finishedCount = 0; // guarded by this
+
+        private Batch(String label) {
+            this.label = label;
+        }
+
+        /**
+         * Adds a download to the batch.
+         *
+         * The task's {@code call} is called again on each retry.
+         * If the task is {@link Cancellable} then cancelling the batch cancels it,
+         * otherwise a running task is interrupted.
+         */
+        public synchronized <V> void add(String name, Callable<V> task, BgTaskListener<? super V> listener) {
+            if (started) {
+                throw new IllegalStateException("Batch already started");
+            }
+            items.add(new Item<V>(this, name, task, listener));
+        }
+
+        public void start() {
+            synchronized (this) {
+                if (started) {
+                    throw new IllegalStateException("Batch already started");
+                }
+                started = true;
+                if (items.isEmpty()) {
+                    return;
+                }
+                progressHandle = ProgressHandleFactory.createHandle(label, this);
+                progressHandle.start(items.size());
+            }
+            synchronized (DownloadScheduler.this) {
+                queue.addAll(items);
+            }
+            startQueuedDownloads();
+        }
+
+        @Override
+        public boolean cancel() {
+            List<Item<?>> toCancel;
+            synchronized (this) {
+                if (cancelled) {
+                    return true;
+                }
+                cancelled = true;
+                toCancel = new ArrayList<Item<?>>(items);
+            }
+            for (Item<?> item : toCancel) {
+                item.cancel();
+            }
+            return true;
+        }
+
+        public synchronized boolean isCancelled() {
+            return cancelled;
+        }
+
+        private synchronized void itemFinished(Item<?> item) {
+            finishedCount++;
+            if (finishedCount == items.size()) {
+                progressHandle.finish();
+            } else {
+                progressHandle.progress(item.name, finishedCount);
+            }
+        }
+    }
+
+    private class Item<V> implements Runnable, Cancellable {
+        private final Batch batch;
+        private final String name;
+        private final Callable<V> task;
+        private final BgTaskListener<? super V> listener;
+        private int attempts = 0;
+        private Thread executingThread; // guarded by this
+
+        public Item(Batch batch, String name, Callable<V> task, BgTaskListener<? super V> listener) {
+            this.batch = batch;
+            this.name = name;
+            this.task = task;
+            this.listener = listener;
+        }
+
+        @Override
+        public void run() {
+            boolean requeued = false;
+            try {
+                requeued = runAttempt();
+            } finally {
+                synchronized (DownloadScheduler.this) {
+                    running--;
+                }
+                if (!requeued) {
+                    batch.itemFinished(this);
+                }
+                startQueuedDownloads();
+            }
+        }
+
+        /**
+         * Returns whether the item was put back into the queue for a retry.
+         */
+        private boolean runAttempt() {
+            synchronized (this) {
+                if (batch.isCancelled()) {
+                    notifyCancelled();
+                    return false;
+                }
+                executingThread = Thread.currentThread();
+            }
+
+            attempts++;
+            try {
+                final V result = task.call();
+                SwingUtilities.invokeLater(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.bgTaskReady(result);
+                    }
+                });
+                return false;
+            } catch (InterruptedException ex) {
+                notifyCancelled();
+                return false;
+            } catch (final Exception ex) {
+                if (batch.isCancelled()) {
+                    notifyCancelled();
+                    return false;
+                }
+                if (attempts < maxAttempts && isRetryable(ex)) {
+                    int delay = initialBackoff << (attempts - 1);
+                    log.log(Level.INFO, "Download of " + name + " failed. Retrying in " + delay + "ms.", ex);
+                    processor.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            enqueue(Item.this);
+                        }
+                    }, delay);
+                    return true;
+                }
+                SwingUtilities.invokeLater(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.bgTaskFailed(ex);
+                    }
+                });
+                return false;
+            } finally {
+                synchronized (this) {
+                    executingThread = null;
+                }
+                Thread.interrupted(); // Clear any interrupt sent by cancel()
+            }
+        }
+
+        @Override
+        public synchronized boolean cancel() {
+            if (task instanceof Cancellable) {
+                return ((Cancellable)task).cancel();
+            } else if (executingThread != null) {
+                executingThread.interrupt();
+            }
+            return true;
+        }
+
+        private void notifyCancelled() {
+            SwingUtilities.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    listener.bgTaskCancelled();
+                }
+            });
+        }
+    }
+
+    private void enqueue(Item<?> item) {
+        synchronized (this) {
+            queue.add(item);
+        }
+        startQueuedDownloads();
+    }
+
+    private void startQueuedDownloads() {
+        synchronized (this) {
+            while (running < maxConcurrentDownloads && !queue.isEmpty()) {
+                Item<?> item = queue.removeFirst();
+                running++;
+                processor.post(item, 0, Thread.MIN_PRIORITY);
+            }
+        }
+    }
+}
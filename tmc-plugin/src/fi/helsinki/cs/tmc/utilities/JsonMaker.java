@@ -1,6 +1,8 @@
 package fi.helsinki.cs.tmc.utilities;
 
+import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
 
 /**
  * A convenient way to build ad-hoc JSON objects.
@@ -35,6 +37,15 @@ public class JsonMaker {
         return this;
     }
     
+    public JsonMaker add(String name, Iterable<String> values) {
+        JsonArray array = new JsonArray();
+        for (String value : values) {
+            array.add(new JsonPrimitive(value));
+        }
+        toplevel.add(name, array);
+        return this;
+    }
+    
     // Will add more methods as needed
     
     /**
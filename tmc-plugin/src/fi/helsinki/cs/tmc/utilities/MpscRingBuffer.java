@@ -0,0 +1,124 @@
+package fi.helsinki.cs.tmc.utilities;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded lock-free queue for many producer threads and a single consumer thread.
+ *
+ * <p>
+ * {@link #offer(Object)} may be called from any thread and never blocks.
+ * {@link #poll()} and {@link #drainTo(Collection)} must only be called by
+ * one thread at a time, e.g. while holding a lock.
+ *
+ * <p>
+ * Each slot carries a sequence number telling whether it is free for the
+ * producer claiming position {@code n} (sequence {@code n}) or holds an
+ * element ready for the consumer (sequence {@code n + 1}).
+ */
+public class MpscRingBuffer<E> {
+    private final int capacity;
+    private final int mask;
+    private final AtomicReferenceArray<E> elements;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong(0); // Next position to claim by producers
+    private volatile long head = 0; // Next position to consume. Only written by the consumer.
+
+    /**
+     * @param minCapacity The capacity is rounded up to the next power of two.
+     */
+    public MpscRingBuffer(int minCapacity) {
+        if (minCapacity <= 0 || minCapacity > (1 << 30)) {
+            throw new IllegalArgumentException("Invalid capacity: " + minCapacity);
+        }
+        int cap = 1;
+        while (cap < minCapacity) {
+            cap <<= 1;
+        }
+        this.capacity = cap;
+        this.mask = cap - 1;
+        this.elements = new AtomicReferenceArray<E>(cap);
+        this.sequences = new AtomicLongArray(cap);
+        for (int i = 0; i < cap; ++i) {
+            sequences.set(i, i);
+        }
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Adds an element unless the buffer is full.
+     *
+     * @return Whether the element was added.
+     */
+    public boolean offer(E element) {
+        if (element == null) {
+            throw new NullPointerException();
+        }
+        while (true) {
+            long pos = tail.get();
+            int index = (int)(pos & mask);
+            long diff = sequences.get(index) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    elements.set(index, element);
+                    sequences.set(index, pos + 1); // Publish to the consumer
+                    return true;
+                }
+            } else if (diff < 0) {
+                return false; // The consumer hasn't freed this slot yet
+            }
+            // Otherwise another producer claimed this position. Retry.
+        }
+    }
+
+    /**
+     * Removes and returns the oldest element, or returns null if none are available.
+     *
+     * An element whose producer has claimed its slot but not yet written it is
+     * not available, and neither are any elements after it.
+     */
+    public E poll() {
+        long pos = head;
+        int index = (int)(pos & mask);
+        if (sequences.get(index) != pos + 1) {
+            return null;
+        }
+        E element = elements.get(index);
+        elements.set(index, null);
+        sequences.set(index, pos + capacity); // Free the slot for the next round
+        head = pos + 1;
+        return element;
+    }
+
+    /**
+     * Moves all available elements to the given collection in order.
+     *
+     * @return The number of elements moved.
+     */
+    public int drainTo(Collection<? super E> target) {
+        int count = 0;
+        E element;
+        while ((element = poll()) != null) {
+            target.add(element);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Returns an estimate of the number of elements in the buffer.
+     */
+    public int size() {
+        long size = tail.get() - head;
+        return (int)Math.max(0, Math.min(capacity, size));
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+}
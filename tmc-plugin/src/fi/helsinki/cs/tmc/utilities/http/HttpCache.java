@@ -0,0 +1,121 @@
+package fi.helsinki.cs.tmc.utilities.http;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import fi.helsinki.cs.tmc.utilities.ExceptionUtils;
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Remembers text responses with their {@code ETag} and {@code Last-Modified}
+ * headers so that they can be fetched again with a conditional request.
+ *
+ * <p>
+ * Entries are kept in memory and in one file per key in the given directory.
+ * When the server answers 304 Not Modified, the cached body text is returned.
+ */
+public class HttpCache {
+    private static final Logger log = Logger.getLogger(HttpCache.class.getName());
+
+    public static class Entry {
+        private final String etag; // May be null
+        private final String lastModified; // May be null
+        private final String body;
+
+        public Entry(String etag, String lastModified, String body) {
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.body = body;
+        }
+
+        public String getEtag() {
+            return etag;
+        }
+
+        public String getLastModified() {
+            return lastModified;
+        }
+
+        public String getBody() {
+            return body;
+        }
+    }
+
+    private final File dir;
+    private final Gson gson = new Gson();
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+    public HttpCache(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Returns the entry stored under the key, or null.
+     */
+    public synchronized Entry get(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            entry = load(key);
+            if (entry != null) {
+                entries.put(key, entry);
+            }
+        }
+        return entry;
+    }
+
+    public synchronized void put(String key, Entry entry) {
+        entries.put(key, entry);
+        try {
+            FileUtils.write(fileFor(key), gson.toJson(entry), "UTF-8");
+        } catch (IOException ex) {
+            log.log(Level.WARNING, "Failed to write HTTP cache entry", ex);
+        }
+    }
+
+    public synchronized void remove(String key) {
+        entries.remove(key);
+        File file = fileFor(key);
+        if (file.exists() && !file.delete()) {
+            log.log(Level.WARNING, "Failed to delete HTTP cache entry {0}", file);
+        }
+    }
+
+    private Entry load(String key) {
+        File file = fileFor(key);
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            Entry entry = gson.fromJson(FileUtils.readFileToString(file, "UTF-8"), Entry.class);
+            if (entry == null || entry.body == null) {
+                return null;
+            }
+            return entry;
+        } catch (IOException ex) {
+            log.log(Level.WARNING, "Failed to read HTTP cache entry", ex);
+            return null;
+        } catch (JsonParseException ex) {
+            log.log(Level.WARNING, "Corrupt HTTP cache entry " + file, ex);
+            return null;
+        }
+    }
+
+    private File fileFor(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes("UTF-8"));
+            return new File(dir, new String(Hex.encodeHex(digest)) + ".json");
+        } catch (NoSuchAlgorithmException ex) {
+            throw ExceptionUtils.toRuntimeException(ex);
+        } catch (IOException ex) {
+            throw ExceptionUtils.toRuntimeException(ex);
+        }
+    }
+}
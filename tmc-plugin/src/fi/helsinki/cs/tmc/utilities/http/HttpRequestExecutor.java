@@ -2,31 +2,26 @@ package fi.helsinki.cs.tmc.utilities.http;
 
 import fi.helsinki.cs.tmc.utilities.CancellableCallable;
 import java.io.IOException;
-import java.net.ProxySelector;
+import java.io.OutputStream;
 import java.nio.charset.Charset;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
 import org.apache.http.auth.AuthScope;
 import org.apache.http.auth.AuthenticationException;
 import org.apache.http.auth.UsernamePasswordCredentials;
 import org.apache.http.client.CredentialsProvider;
-import org.apache.http.client.HttpClient;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.protocol.HttpClientContext;
 import org.apache.http.entity.BufferedHttpEntity;
-import org.apache.http.impl.NoConnectionReuseStrategy;
 import org.apache.http.impl.auth.BasicScheme;
 import org.apache.http.impl.client.BasicCredentialsProvider;
 import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.DefaultRedirectStrategy;
-import org.apache.http.impl.client.HttpClientBuilder;
-import org.apache.http.impl.client.HttpClients;
-import org.apache.http.impl.conn.SystemDefaultRoutePlanner;
-import org.apache.http.protocol.BasicHttpContext;
-import org.apache.http.protocol.HttpContext;
 import org.apache.http.util.EntityUtils;
-import org.openide.util.Lookup;
 
 /**
  * Downloads a single file over HTTP into memory while being cancellable.
@@ -37,11 +32,9 @@ import org.openide.util.Lookup;
  */
 /*package*/ class HttpRequestExecutor implements CancellableCallable<BufferedHttpEntity> {
 
-    private static final int DEFAULT_TIMEOUT = 30 * 1000;
-
     private final Object shutdownLock = new Object();
 
-    private int timeout = DEFAULT_TIMEOUT;
+    private int timeout = -1; // None unless set
     private HttpUriRequest request;
     private static final Logger log = Logger.getLogger(HttpRequestExecutor.class.getName());
 
@@ -69,61 +62,148 @@ import org.openide.util.Lookup;
     }
 
     public HttpRequestExecutor setTimeout(int timeoutMs) {
+        this.timeout = timeoutMs;
         return this;
     }
 
     @Override
     public BufferedHttpEntity call() throws IOException, InterruptedException, FailedHttpResponseException {
-        CloseableHttpClient httpClient = makeHttpClient();
-
+        CloseableHttpResponse response = null;
         try {
-            return executeRequest(httpClient);
+            response = executeRequest(SharedHttpClient.getInstance().getClient());
+            return handleResponse(response);
         } finally {
+            closeResponse(response);
             synchronized (shutdownLock) {
                 request = null;
-                disposeOfHttpClient(httpClient);
             }
         }
     }
 
-    private CloseableHttpClient makeHttpClient() throws IOException {
-        CredentialsProvider credentialsProvider = new BasicCredentialsProvider();
-        if (credentials != null) {
-            credentialsProvider.setCredentials(AuthScope.ANY, credentials);
+    /**
+     * Like {@link #call()} but returns the whole response with its headers.
+     *
+     * A 304 Not Modified response counts as successful and has no entity.
+     * Other responses have a preloaded buffered entity.
+     */
+    public HttpResponse callForResponse() throws IOException, InterruptedException, FailedHttpResponseException {
+        CloseableHttpResponse response = null;
+        try {
+            response = executeRequest(SharedHttpClient.getInstance().getClient());
+            if (response.getStatusLine().getStatusCode() == HttpStatus.SC_NOT_MODIFIED) {
+                EntityUtils.consume(response.getEntity());
+                response.setEntity(null);
+            } else {
+                response.setEntity(handleResponse(response));
+            }
+            return response;
+        } finally {
+            closeResponse(response);
+            synchronized (shutdownLock) {
+                request = null;
+            }
         }
+    }
+
+    /**
+     * Chooses where to write a successful response's body after seeing its headers.
+     */
+    public static interface StreamOpener {
+        public OutputStream open(HttpResponse response) throws IOException;
+    }
+
+    /**
+     * Like {@link #call()} but writes a successful response's body to the given
+     * stream as it arrives instead of loading it into memory.
+     *
+     * The stream is not closed.
+     */
+    public void callToStream(final OutputStream out) throws IOException, InterruptedException, FailedHttpResponseException {
+        callToStream(new StreamOpener() {
+            @Override
+            public OutputStream open(HttpResponse response) {
+                return out;
+            }
+        });
+    }
 
-        HttpClientBuilder httpClientBuilder = HttpClients.custom()
-                .useSystemProperties()
-                .setConnectionReuseStrategy(new NoConnectionReuseStrategy())
-                .setDefaultCredentialsProvider(credentialsProvider)
-                .setRedirectStrategy(new DefaultRedirectStrategy());
-        maybeSetProxy(httpClientBuilder);
+    /**
+     * Like {@link #callToStream(OutputStream)} but asks for the stream
+     * only once a successful response has arrived.
+     *
+     * The stream is not closed.
+     */
+    public void callToStream(StreamOpener opener) throws IOException, InterruptedException, FailedHttpResponseException {
+        HttpUriRequest req = request;
+        CloseableHttpResponse response = null;
 
-        return httpClientBuilder.build();
+        try {
+            response = executeRequest(SharedHttpClient.getInstance().getClient());
+            int responseCode = response.getStatusLine().getStatusCode();
+            if (response.getEntity() == null || !(200 <= responseCode && responseCode <= 299)) {
+                handleResponse(response); // Throws
+            }
+            OutputStream out = opener.open(response);
+            try {
+                response.getEntity().writeTo(out);
+            } catch (IOException ex) {
+                if (req.isAborted()) {
+                    throw new InterruptedException();
+                } else {
+                    throw new IOException("Download failed: " + ex.getMessage(), ex);
+                }
+            }
+        } finally {
+            closeResponse(response);
+            synchronized (shutdownLock) {
+                request = null;
+            }
+        }
     }
 
-    private SystemDefaultRoutePlanner getProxy() {
-        ProxySelector proxys = Lookup.getDefault().lookup((ProxySelector.class));
-        return new SystemDefaultRoutePlanner(proxys);
+    private HttpClientContext makeContext() {
+        HttpClientContext context = HttpClientContext.create();
+
+        CredentialsProvider credentialsProvider = new BasicCredentialsProvider();
+        if (credentials != null) {
+            credentialsProvider.setCredentials(AuthScope.ANY, credentials);
+        }
+        context.setCredentialsProvider(credentialsProvider);
+
+        if (timeout > 0) {
+            context.setRequestConfig(RequestConfig.custom()
+                    .setConnectTimeout(timeout)
+                    .setConnectionRequestTimeout(timeout)
+                    .setSocketTimeout(timeout)
+                    .build());
+        }
+        return context;
     }
 
-    private void disposeOfHttpClient(CloseableHttpClient httpClient) {
+    /**
+     * Releases the response's connection back to the pool if its entity was
+     * read to the end, or closes the connection otherwise.
+     */
+    private void closeResponse(CloseableHttpResponse response) {
+        if (response == null) {
+            return;
+        }
         try {
-            httpClient.close();
+            response.close();
         } catch (IOException ex) {
-            log.log(Level.WARNING, "Dispose of httpClient failed {0}", ex);
+            log.log(Level.WARNING, "Closing http response failed {0}", ex);
         }
     }
 
-    private BufferedHttpEntity executeRequest(HttpClient httpClient) throws IOException, InterruptedException, FailedHttpResponseException {
-        HttpResponse response = null;
-        HttpContext context = new BasicHttpContext();
+    private CloseableHttpResponse executeRequest(CloseableHttpClient httpClient) throws IOException, InterruptedException {
+        CloseableHttpResponse response = null;
+        HttpClientContext context = makeContext();
 
         try {
             if (this.credentials != null) {
                 request.addHeader(new BasicScheme(Charset.forName("UTF-8")).authenticate(this.credentials, request, context));
             }
-            response = httpClient.execute(request);
+            response = httpClient.execute(request, context);
         } catch (IOException ex) {
             log.log(Level.INFO, "Executing http request failed: {0}", ex.toString());
             if (request.isAborted()) {
@@ -136,7 +216,7 @@ import org.openide.util.Lookup;
             throw new InterruptedException();
         }
 
-        return handleResponse(response);
+        return response;
     }
 
     private BufferedHttpEntity handleResponse(HttpResponse response) throws IOException, InterruptedException, FailedHttpResponseException {
@@ -166,11 +246,4 @@ import org.openide.util.Lookup;
         }
         return true;
     }
-
-    private void maybeSetProxy(HttpClientBuilder httpClientBuilder) {
-        SystemDefaultRoutePlanner systemDefaultRoutePlanner = getProxy();
-        if (systemDefaultRoutePlanner != null) {
-            httpClientBuilder.setRoutePlanner(systemDefaultRoutePlanner);
-        }
-    }
 }
@@ -1,19 +1,38 @@
 package fi.helsinki.cs.tmc.utilities.http;
 
 import fi.helsinki.cs.tmc.utilities.CancellableCallable;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
 import org.apache.http.NameValuePair;
 import org.apache.http.auth.UsernamePasswordCredentials;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentProducer;
 import org.apache.http.entity.ContentType;
+import org.apache.http.entity.EntityTemplate;
 import org.apache.http.entity.mime.HttpMultipartMode;
 import org.apache.http.entity.mime.MultipartEntityBuilder;
+import org.apache.http.entity.mime.MIME;
+import org.apache.http.entity.mime.content.AbstractContentBody;
 import org.apache.http.entity.mime.content.ByteArrayBody;
+import org.apache.http.entity.mime.content.ContentBody;
 import org.apache.http.message.BasicNameValuePair;
 import org.apache.http.util.EntityUtils;
 
@@ -25,19 +44,39 @@ import org.apache.http.util.EntityUtils;
  */
 public class HttpTasks {
     private static final ContentType UTF8_TEXT_CONTENT_TYPE = ContentType.create("text/plain", "utf-8");
+    private static final Pattern CONTENT_RANGE_PATTERN = Pattern.compile("bytes (\\d+)-\\d+/(\\d+)");
+
+    /**
+     * Writes a request body directly to the connection.
+     *
+     * May be called more than once if the request needs to be resent.
+     */
+    public static interface StreamingBody {
+        public void writeTo(OutputStream out) throws IOException;
+    }
 
     private UsernamePasswordCredentials credentials = null;
+    private HttpCache cache = null;
 
     public HttpTasks setCredentials(String username, String password) {
         this.credentials = new UsernamePasswordCredentials(username, password);
         return this;
     }
+
+    /**
+     * Makes {@link #getForText(String)} send conditional requests and
+     * return the cached response when the server says it's not modified.
+     */
+    public HttpTasks setCache(HttpCache cache) {
+        this.cache = cache;
+        return this;
+    }
     
     private HttpRequestExecutor createExecutor(String url) {
         return new HttpRequestExecutor(url).setCredentials(credentials);
     }
     
-    private HttpRequestExecutor createExecutor(HttpPost request) {
+    private HttpRequestExecutor createExecutor(HttpUriRequest request) {
         return new HttpRequestExecutor(request).setCredentials(credentials);
     }
     
@@ -45,7 +84,45 @@ public class HttpTasks {
         return downloadToBinary(createExecutor(url));
     }
     
+    /**
+     * Downloads to the given file without loading the whole response into memory.
+     *
+     * The file is deleted if the download fails.
+     */
+    public CancellableCallable<File> getForFile(String url, File target) {
+        return downloadToFile(createExecutor(url), target);
+    }
+    
+    /**
+     * Downloads to the given file, continuing an earlier interrupted download
+     * into the same file if possible.
+     *
+     * <p>
+     * A download is resumed with a range request if the server identified the
+     * resource with an {@code ETag} or {@code Last-Modified} header last time.
+     * If the resource has changed since, the server sends all of it and the
+     * file is overwritten. The validator is kept next to the file while the
+     * download is incomplete, so downloads resume across restarts.
+     *
+     * <p>
+     * The file is kept if the download fails or is cancelled.
+     */
+    public CancellableCallable<File> getForResumableFile(String url, File target) {
+        return new ResumableDownload(url, target);
+    }
+
+    /**
+     * Returns the file in which {@link #getForResumableFile(String, File)}
+     * keeps the validator of an incomplete download into {@code target}.
+     */
+    public static File getResumeValidatorFile(File target) {
+        return new File(target.getPath() + ".validator");
+    }
+    
     public CancellableCallable<String> getForText(String url) {
+        if (cache != null) {
+            return downloadToCachedText(url);
+        }
         return downloadToText(createExecutor(url));
     }
     
@@ -65,11 +142,29 @@ public class HttpTasks {
         return downloadToText(createExecutor(makeRawPostRequest(url, data, extraHeaders)));
     }
     
+    /**
+     * Posts a body that is produced while it is being sent, using chunked transfer encoding.
+     */
+    public CancellableCallable<String> streamingPostForText(String url, StreamingBody body, Map<String, String> extraHeaders) {
+        return downloadToText(createExecutor(makeStreamingPostRequest(url, body, extraHeaders)));
+    }
+
     public CancellableCallable<String> uploadFileForTextDownload(String url, Map<String, String> params, String fileField, byte[] data) {
         HttpPost request = makeFileUploadRequest(url, params, fileField, data);
         return downloadToText(createExecutor(request));
     }
 
+    /**
+     * Like {@link #uploadFileForTextDownload(String, Map, String, byte[])} but the file
+     * is written into the multipart body while the request is being sent.
+     *
+     * The request uses chunked transfer encoding and can't be resent.
+     */
+    public CancellableCallable<String> streamingUploadFileForTextDownload(String url, Map<String, String> params, String fileField, StreamingBody file) {
+        HttpPost request = makeFileUploadRequest(url, params, fileField, new StreamingContentBody(file, "file"));
+        return downloadToText(createExecutor(request));
+    }
+
     private CancellableCallable<byte[]> downloadToBinary(final HttpRequestExecutor download) {
         return new CancellableCallable<byte[]>() {
             @Override
@@ -84,6 +179,149 @@ public class HttpTasks {
         };
     }
     
+    private CancellableCallable<File> downloadToFile(final HttpRequestExecutor download, final File target) {
+        return new CancellableCallable<File>() {
+            @Override
+            public File call() throws Exception {
+                boolean success = false;
+                OutputStream out = new BufferedOutputStream(new FileOutputStream(target));
+                try {
+                    download.callToStream(out);
+                    out.close();
+                    success = true;
+                    return target;
+                } finally {
+                    if (!success) {
+                        IOUtils.closeQuietly(out);
+                        target.delete();
+                    }
+                }
+            }
+
+            @Override
+            public boolean cancel() {
+                return download.cancel();
+            }
+        };
+    }
+    
+    private class ResumableDownload implements CancellableCallable<File> {
+        private final String url;
+        private final File target;
+        private final File validatorFile;
+        private HttpRequestExecutor download; // guarded by this
+        private boolean cancelled = false; // guarded by this
+
+        public ResumableDownload(String url, File target) {
+            this.url = url;
+            this.target = target;
+            this.validatorFile = getResumeValidatorFile(target);
+        }
+
+        @Override
+        public File call() throws Exception {
+            String validator = null;
+            if (target.exists() && target.length() > 0 && validatorFile.exists()) {
+                validator = FileUtils.readFileToString(validatorFile, "UTF-8");
+            }
+
+            if (validator != null) {
+                try {
+                    downloadFrom(target.length(), validator);
+                } catch (FailedHttpResponseException ex) {
+                    if (ex.getStatusCode() != HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE) {
+                        throw ex;
+                    }
+                    downloadFrom(0, null);
+                }
+            } else {
+                downloadFrom(0, null);
+            }
+            validatorFile.delete();
+            return target;
+        }
+
+        private void downloadFrom(final long offset, String validator) throws Exception {
+            HttpGet request = new HttpGet(url);
+            if (offset > 0) {
+                request.addHeader("Range", "bytes=" + offset + "-");
+                request.addHeader("If-Range", validator);
+            }
+            synchronized (this) {
+                if (cancelled) {
+                    throw new InterruptedException();
+                }
+                download = createExecutor(request);
+            }
+
+            final long[] expectedLength = new long[] { -1 };
+            final OutputStream[] out = new OutputStream[1];
+            try {
+                download.callToStream(new HttpRequestExecutor.StreamOpener() {
+                    @Override
+                    public OutputStream open(HttpResponse response) throws IOException {
+                        boolean append = false;
+                        if (response.getStatusLine().getStatusCode() == HttpStatus.SC_PARTIAL_CONTENT) {
+                            long[] range = parseContentRange(headerValue(response, "Content-Range"));
+                            if (range == null || range[0] != offset) {
+                                throw new IOException("Server resumed download from an unexpected position");
+                            }
+                            expectedLength[0] = range[1];
+                            append = true;
+                        } else {
+                            expectedLength[0] = response.getEntity().getContentLength();
+                        }
+
+                        String newValidator = headerValue(response, "ETag");
+                        if (newValidator == null) {
+                            newValidator = headerValue(response, "Last-Modified");
+                        }
+                        if (newValidator != null) {
+                            FileUtils.write(validatorFile, newValidator, "UTF-8");
+                        } else {
+                            validatorFile.delete();
+                        }
+
+                        out[0] = new BufferedOutputStream(new FileOutputStream(target, append));
+                        return out[0];
+                    }
+                });
+                out[0].close();
+            } finally {
+                IOUtils.closeQuietly(out[0]);
+            }
+
+            if (expectedLength[0] >= 0 && target.length() != expectedLength[0]) {
+                target.delete();
+                validatorFile.delete();
+                throw new IOException("Downloaded file has the wrong length");
+            }
+        }
+
+        @Override
+        public synchronized boolean cancel() {
+            cancelled = true;
+            if (download != null) {
+                return download.cancel();
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Parses the start and the total length from a {@code Content-Range} header.
+     */
+    private static long[] parseContentRange(String header) {
+        if (header == null) {
+            return null;
+        }
+        Matcher m = CONTENT_RANGE_PATTERN.matcher(header.trim());
+        if (!m.matches()) {
+            return null;
+        }
+        return new long[] { Long.parseLong(m.group(1)), Long.parseLong(m.group(2)) };
+    }
+    
     private CancellableCallable<String> downloadToText(final HttpRequestExecutor download) {
         return new CancellableCallable<String>() {
             @Override
@@ -98,6 +336,56 @@ public class HttpTasks {
         };
     }
     
+    private CancellableCallable<String> downloadToCachedText(String url) {
+        // Responses may differ by user
+        final String key = ((credentials != null) ? credentials.getUserName() : "") + " " + url;
+        final HttpCache.Entry cached = cache.get(key);
+
+        HttpGet request = new HttpGet(url);
+        if (cached != null) {
+            if (cached.getEtag() != null) {
+                request.addHeader("If-None-Match", cached.getEtag());
+            }
+            if (cached.getLastModified() != null) {
+                request.addHeader("If-Modified-Since", cached.getLastModified());
+            }
+        }
+        final HttpRequestExecutor download = createExecutor(request);
+
+        return new CancellableCallable<String>() {
+            @Override
+            public String call() throws Exception {
+                HttpResponse response = download.callForResponse();
+                if (response.getStatusLine().getStatusCode() == HttpStatus.SC_NOT_MODIFIED) {
+                    if (cached == null) {
+                        throw new IOException("Got 304 Not Modified without a cached response");
+                    }
+                    return cached.getBody();
+                }
+
+                String body = EntityUtils.toString(response.getEntity(), "UTF-8");
+                String etag = headerValue(response, "ETag");
+                String lastModified = headerValue(response, "Last-Modified");
+                if (etag != null || lastModified != null) {
+                    cache.put(key, new HttpCache.Entry(etag, lastModified, body));
+                } else if (cached != null) {
+                    cache.remove(key);
+                }
+                return body;
+            }
+
+            @Override
+            public boolean cancel() {
+                return download.cancel();
+            }
+        };
+    }
+
+    private static String headerValue(HttpResponse response, String name) {
+        Header header = response.getLastHeader(name);
+        return (header != null) ? header.getValue() : null;
+    }
+    
     private HttpPost makePostRequest(String url, Map<String, String> params) {
         HttpPost request = new HttpPost(url);
         
@@ -131,15 +419,70 @@ public class HttpTasks {
         return request;
     }
 
+    private HttpPost makeStreamingPostRequest(String url, final StreamingBody body, Map<String, String> extraHeaders) {
+        HttpPost request = new HttpPost(url);
+        for (Map.Entry<String, String> header : extraHeaders.entrySet()) {
+            request.addHeader(header.getKey(), header.getValue());
+        }
+
+        EntityTemplate entity = new EntityTemplate(new ContentProducer() {
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                body.writeTo(out);
+            }
+        });
+        entity.setChunked(true);
+        request.setEntity(entity);
+        return request;
+    }
+
     private HttpPost makeFileUploadRequest(String url, Map<String, String> params, String fileField, byte[] data) {
+        return makeFileUploadRequest(url, params, fileField, new ByteArrayBody(data, "file"));
+    }
+
+    private HttpPost makeFileUploadRequest(String url, Map<String, String> params, String fileField, ContentBody fileBody) {
         HttpPost request = new HttpPost(url);
         MultipartEntityBuilder entityBuilder = MultipartEntityBuilder.create();
         entityBuilder.setMode(HttpMultipartMode.BROWSER_COMPATIBLE);
         for (Map.Entry<String, String> e : params.entrySet()) {
             entityBuilder.addTextBody(e.getKey(), e.getValue(), UTF8_TEXT_CONTENT_TYPE);
         }
-        entityBuilder.addPart(fileField, new ByteArrayBody(data, "file"));
+        entityBuilder.addPart(fileField, fileBody);
         request.setEntity(entityBuilder.build());
         return request;
     }
+
+    /**
+     * A multipart file of unknown length that is written straight onto the connection.
+     */
+    private static class StreamingContentBody extends AbstractContentBody {
+        private final StreamingBody body;
+        private final String filename;
+
+        public StreamingContentBody(StreamingBody body, String filename) {
+            super(ContentType.DEFAULT_BINARY);
+            this.body = body;
+            this.filename = filename;
+        }
+
+        @Override
+        public String getFilename() {
+            return filename;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            body.writeTo(out);
+        }
+
+        @Override
+        public String getTransferEncoding() {
+            return MIME.ENC_BINARY;
+        }
+
+        @Override
+        public long getContentLength() {
+            return -1;
+        }
+    }
 }
@@ -0,0 +1,111 @@
+package fi.helsinki.cs.tmc.utilities.http;
+
+import fi.helsinki.cs.tmc.utilities.DownloadScheduler;
+import java.net.ProxySelector;
+import java.util.concurrent.TimeUnit;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultRedirectStrategy;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.conn.SystemDefaultRoutePlanner;
+import org.apache.http.pool.PoolStats;
+import org.openide.util.Lookup;
+import org.openide.util.RequestProcessor;
+
+/**
+ * The long-lived HTTP client used by {@link HttpRequestExecutor}.
+ *
+ * <p>
+ * Connections are kept alive and pooled per host so that consecutive requests
+ * to the server don't each pay for a new TCP and TLS handshake. Connections that
+ * have been idle for a while are closed in the background.
+ *
+ * <p>
+ * Credentials and timeouts are given per request, so the client itself has none.
+ * Requests without a timeout wait for a pooled connection and for data as long as
+ * it takes, as they did before connections were pooled.
+ * Cookies are not stored, as each request used to get a fresh client.
+ */
+/*package*/ class SharedHttpClient {
+    // Room for the most concurrent downloads plus submissions, polls and spyware sends meanwhile.
+    private static final int MAX_CONNECTIONS_PER_HOST = DownloadScheduler.MAX_CONCURRENT_DOWNLOADS + 4;
+    private static final int MAX_CONNECTIONS = 2 * MAX_CONNECTIONS_PER_HOST;
+    private static final int IDLE_TIMEOUT = 30 * 1000;
+    private static final int EVICTION_INTERVAL = 10 * 1000;
+
+    private static final RequestProcessor evictionProcessor =
+            new RequestProcessor("TMC HTTP connection eviction", 1, true);
+
+    private static SharedHttpClient instance;
+
+    public static synchronized SharedHttpClient getInstance() {
+        if (instance == null) {
+            instance = new SharedHttpClient();
+        }
+        return instance;
+    }
+
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final CloseableHttpClient httpClient;
+    private final RequestProcessor.Task evictionTask;
+    private boolean evictionScheduled = false; // guarded by this
+
+    private SharedHttpClient() {
+        connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setDefaultMaxPerRoute(MAX_CONNECTIONS_PER_HOST);
+        connectionManager.setMaxTotal(MAX_CONNECTIONS);
+
+        HttpClientBuilder httpClientBuilder = HttpClients.custom()
+                .useSystemProperties()
+                .setConnectionManager(connectionManager)
+                .disableCookieManagement()
+                .setRedirectStrategy(new DefaultRedirectStrategy());
+        maybeSetProxy(httpClientBuilder);
+        httpClient = httpClientBuilder.build();
+
+        evictionTask = evictionProcessor.create(new Runnable() {
+            @Override
+            public void run() {
+                evictIdleConnections();
+            }
+        });
+    }
+
+    /**
+     * Returns the client. Must not be closed by the caller.
+     */
+    public CloseableHttpClient getClient() {
+        synchronized (this) {
+            if (!evictionScheduled) {
+                evictionScheduled = true;
+                evictionTask.schedule(EVICTION_INTERVAL);
+            }
+        }
+        return httpClient;
+    }
+
+    public PoolStats getStats() {
+        return connectionManager.getTotalStats();
+    }
+
+    private void evictIdleConnections() {
+        connectionManager.closeExpiredConnections();
+        connectionManager.closeIdleConnections(IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
+
+        synchronized (this) {
+            PoolStats stats = connectionManager.getTotalStats();
+            if (stats.getAvailable() + stats.getLeased() + stats.getPending() > 0) {
+                evictionTask.schedule(EVICTION_INTERVAL);
+            } else {
+                evictionScheduled = false;
+            }
+        }
+    }
+
+    private static void maybeSetProxy(HttpClientBuilder httpClientBuilder) {
+        ProxySelector proxys = Lookup.getDefault().lookup((ProxySelector.class));
+        SystemDefaultRoutePlanner systemDefaultRoutePlanner = new SystemDefaultRoutePlanner(proxys);
+        httpClientBuilder.setRoutePlanner(systemDefaultRoutePlanner);
+    }
+}
@@ -0,0 +1,176 @@
+package fi.helsinki.cs.tmc.utilities.zip;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.commons.io.FileUtils;
+import org.openide.util.RequestProcessor;
+
+/**
+ * Remembers the CRC32 checksums of files on disk.
+ *
+ * <p>
+ * Checksums are never computed here. {@link NbProjectUnzipper} records the
+ * CRC32 of a zip entry when a file is found to have the same content, and later
+ * uses it to tell quickly that the file differs from another entry. A checksum
+ * is forgotten once the file's size or modification time changes.
+ *
+ * <p>
+ * If given a store file, the checksums are loaded from it when first needed
+ * and written back to it shortly after they change, so that they are known
+ * in later sessions too. At most the given number of the most recently used
+ * checksums are kept.
+ */
+public class FileChecksumCache {
+    private static final Logger log = Logger.getLogger(FileChecksumCache.class.getName());
+
+    public static final int DEFAULT_MAX_ENTRIES = 20000;
+
+    /*package*/ static final int SAVE_DELAY = 2000;
+
+    // A modification time this close to when the file was read may not catch a later write.
+    private static final long MTIME_GRANULARITY = 2000;
+
+    private static final RequestProcessor saveProcessor = new RequestProcessor("TMC file checksums", 1, true);
+
+    private static class Checksum {
+        private final long size;
+        private final long lastModified;
+        private final long readAt;
+        private final long crc;
+
+        public Checksum(long size, long lastModified, long readAt, long crc) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.readAt = readAt;
+            this.crc = crc;
+        }
+
+        public boolean isValidFor(File file) {
+            return file.length() == size &&
+                    file.lastModified() == lastModified &&
+                    lastModified + MTIME_GRANULARITY < readAt;
+        }
+    }
+
+    private final File storeFile; // May be null
+    private final Map<String, Checksum> entries; // Least recently used first. Guarded by this.
+    private boolean loaded = false; // Guarded by this
+    private final RequestProcessor.Task saveTask;
+
+    /**
+     * Creates a cache that is kept only in memory.
+     */
+    public FileChecksumCache() {
+        this(null, DEFAULT_MAX_ENTRIES);
+    }
+
+    public FileChecksumCache(File storeFile, final int maxEntries) {
+        this.storeFile = storeFile;
+        this.entries = new LinkedHashMap<String, Checksum>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Checksum> eldest) {
+                return size() > maxEntries;
+            }
+        };
+        this.saveTask = saveProcessor.create(new Runnable() {
+            @Override
+            public void run() {
+                save();
+            }
+        });
+    }
+
+    /**
+     * Returns the CRC32 of the file's content if it is known and the file hasn't
+     * changed since, or -1. Never reads the file.
+     */
+    public synchronized long getCachedCrc(File file) {
+        loadIfNeeded();
+        Checksum entry = entries.get(file.getAbsolutePath());
+        if (entry != null && entry.isValidFor(file)) {
+            return entry.crc;
+        }
+        return -1;
+    }
+
+    /**
+     * Records the CRC32 of a file whose content was found to match something with that checksum.
+     *
+     * @param lastModified The file's modification time before its content was read.
+     * @param readAt When reading the content started.
+     */
+    public void putCrc(File file, long lastModified, long readAt, long crc) {
+        long size = file.length();
+        if (file.lastModified() == lastModified) {
+            synchronized (this) {
+                loadIfNeeded();
+                entries.put(file.getAbsolutePath(), new Checksum(size, lastModified, readAt, crc));
+            }
+            if (storeFile != null) {
+                saveTask.schedule(SAVE_DELAY);
+            }
+        }
+    }
+
+    // One line per file: CRC, size, modification time, time read and path.
+    private synchronized void loadIfNeeded() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        if (storeFile == null || !storeFile.exists()) {
+            return;
+        }
+        try {
+            for (String line : FileUtils.readLines(storeFile, "UTF-8")) {
+                String[] parts = line.split(" ", 5);
+                if (parts.length != 5) {
+                    continue;
+                }
+                try {
+                    Checksum entry = new Checksum(Long.parseLong(parts[1]), Long.parseLong(parts[2]), Long.parseLong(parts[3]), Long.parseLong(parts[0]));
+                    entries.put(parts[4], entry);
+                } catch (NumberFormatException ex) {
+                    log.log(Level.FINE, "Skipping corrupt file checksum: {0}", line);
+                }
+            }
+        } catch (IOException ex) {
+            log.log(Level.WARNING, "Failed to read file checksums", ex);
+        }
+    }
+
+    /**
+     * Writes the checksums to the store file, if any.
+     */
+    /*package*/ void save() {
+        if (storeFile == null) {
+            return;
+        }
+        List<String> lines;
+        synchronized (this) {
+            lines = new ArrayList<String>(entries.size());
+            for (Map.Entry<String, Checksum> e : entries.entrySet()) {
+                Checksum entry = e.getValue();
+                lines.add(entry.crc + " " + entry.size + " " + entry.lastModified + " " + entry.readAt + " " + e.getKey());
+            }
+        }
+        File tempFile = new File(storeFile.getPath() + ".tmp");
+        try {
+            FileUtils.writeLines(tempFile, "UTF-8", lines, "\n");
+            if (!tempFile.renameTo(storeFile)) {
+                storeFile.delete();
+                if (!tempFile.renameTo(storeFile)) {
+                    throw new IOException("Failed to replace " + storeFile);
+                }
+            }
+        } catch (IOException ex) {
+            log.log(Level.WARNING, "Failed to save file checksums", ex);
+        }
+    }
+}
@@ -10,10 +10,12 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Enumeration;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
@@ -118,7 +120,7 @@ public class NbProjectUnzipper {
     };
     
     private OverwritingDecider overwriting;
-
+    private FileChecksumCache checksumCache;
     
     public NbProjectUnzipper() {
         this(neverAllowOverwrites);
@@ -127,12 +129,23 @@ public class NbProjectUnzipper {
     public NbProjectUnzipper(OverwritingDecider overwriting) {
         this.overwriting = overwriting;
     }
+
+    /**
+     * Sets a cache of checksums of existing files, or null to compare every existing file in full.
+     *
+     * With a cache, an existing file whose size or CRC32 differs from the zip entry's
+     * is known to have changed without reading it. Files that look the same are
+     * still compared in full.
+     */
+    public void setChecksumCache(FileChecksumCache checksumCache) {
+        this.checksumCache = checksumCache;
+    }
     
     public Result unzipProject(byte[] data, File projectDir) throws IOException {
         return unzipProject(data, projectDir, true);
     }
     
-    public Result unzipProject(byte[] data, File projectDir, boolean reallyWriteFiles) throws IOException {
+    public Result unzipProject(final byte[] data, File projectDir, boolean reallyWriteFiles) throws IOException {
         Result result = new Result(projectDir);
         Set<String> pathsInZip = new HashSet<String>();
         
@@ -144,52 +157,117 @@ public class NbProjectUnzipper {
         ZipInputStream zis = readZip(data);
         ZipEntry zent;
         while ((zent = zis.getNextEntry()) != null) {
-            if (zent.getName().startsWith(projectDirInZip)) {
-                String restOfPath = zent.getName().substring(projectDirInZip.length());
-                restOfPath = trimSlashes(restOfPath);
-                
-                String destFileRelativePath = trimSlashes(restOfPath.replace("/", File.separator));
-                pathsInZip.add(destFileRelativePath);
-                File destFile = new File(
-                        projectDir.toString() + File.separator + destFileRelativePath
-                        );
-                
-                if (zent.isDirectory()) {
-                    if (reallyWriteFiles) {
-                        FileUtils.forceMkdir(destFile);
-                    }
-                } else {
-                    byte[] entryData = IOUtils.toByteArray(zis);
+            final byte[] entryData = zent.isDirectory() ? null : IOUtils.toByteArray(zis);
+            extractEntry(zent, projectDirInZip, new EntryContent() {
+                @Override
+                public InputStream open() {
+                    return new ByteArrayInputStream(entryData);
+                }
+            }, result, pathsInZip, reallyWriteFiles);
+        }
+        
+        deleteFilesNotInZip(projectDir, projectDir, result, pathsInZip, overwriting, reallyWriteFiles);
+        
+        return result;
+    }
 
-                    boolean shouldWrite;
-                    if (destFile.exists()) {
-                        if (fileContentEquals(destFile, entryData)) {
-                            shouldWrite = false;
-                            result.unchangedFiles.add(destFileRelativePath);
-                        } else if (overwriting.mayOverwrite(destFileRelativePath)) {
-                            shouldWrite = true;
-                            result.overwrittenFiles.add(destFileRelativePath);
-                        } else {
-                            shouldWrite = false;
-                            result.skippedFiles.add(destFileRelativePath);
-                        }
-                    } else {
-                        shouldWrite = true;
-                        result.newFiles.add(destFileRelativePath);
+    public Result unzipProject(File zipFile, File projectDir) throws IOException {
+        return unzipProject(zipFile, projectDir, true);
+    }
+
+    /**
+     * Unzips from a zip file on disk, streaming each entry to disk.
+     *
+     * Only the zip's central directory is read to find the project directory,
+     * and entries are never loaded into memory whole.
+     */
+    public Result unzipProject(File zipFile, File projectDir, boolean reallyWriteFiles) throws IOException {
+        Result result = new Result(projectDir);
+        Set<String> pathsInZip = new HashSet<String>();
+
+        final ZipFile zip = new ZipFile(zipFile);
+        try {
+            String projectDirInZip = findProjectDirInZip(zip);
+            if (projectDirInZip == null) {
+                throw new IllegalArgumentException("No project directory in zip");
+            }
+
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                final ZipEntry zent = entries.nextElement();
+                extractEntry(zent, projectDirInZip, new EntryContent() {
+                    @Override
+                    public InputStream open() throws IOException {
+                        return zip.getInputStream(zent);
                     }
-                    if (shouldWrite && reallyWriteFiles) {
-                        FileUtils.forceMkdir(destFile.getParentFile());
-                        OutputStream out = new BufferedOutputStream(new FileOutputStream(destFile));
-                        IOUtils.write(entryData, out);
+                }, result, pathsInZip, reallyWriteFiles);
+            }
+        } finally {
+            zip.close();
+        }
+
+        deleteFilesNotInZip(projectDir, projectDir, result, pathsInZip, overwriting, reallyWriteFiles);
+
+        return result;
+    }
+
+    private static interface EntryContent {
+        /**
+         * Opens a new stream to the entry's content. May be called more than once.
+         */
+        public InputStream open() throws IOException;
+    }
+
+    private void extractEntry(ZipEntry zent, String projectDirInZip, EntryContent content, Result result, Set<String> pathsInZip, boolean reallyWriteFiles) throws IOException {
+        if (!zent.getName().startsWith(projectDirInZip)) {
+            return;
+        }
+        File projectDir = result.projectDir;
+        String restOfPath = zent.getName().substring(projectDirInZip.length());
+        restOfPath = trimSlashes(restOfPath);
+        
+        String destFileRelativePath = trimSlashes(restOfPath.replace("/", File.separator));
+        pathsInZip.add(destFileRelativePath);
+        File destFile = new File(
+                projectDir.toString() + File.separator + destFileRelativePath
+                );
+        
+        if (zent.isDirectory()) {
+            if (reallyWriteFiles) {
+                FileUtils.forceMkdir(destFile);
+            }
+        } else {
+            boolean shouldWrite;
+            if (destFile.exists()) {
+                if (fileContentEquals(destFile, zent, content)) {
+                    shouldWrite = false;
+                    result.unchangedFiles.add(destFileRelativePath);
+                } else if (overwriting.mayOverwrite(destFileRelativePath)) {
+                    shouldWrite = true;
+                    result.overwrittenFiles.add(destFileRelativePath);
+                } else {
+                    shouldWrite = false;
+                    result.skippedFiles.add(destFileRelativePath);
+                }
+            } else {
+                shouldWrite = true;
+                result.newFiles.add(destFileRelativePath);
+            }
+            if (shouldWrite && reallyWriteFiles) {
+                FileUtils.forceMkdir(destFile.getParentFile());
+                InputStream in = content.open();
+                try {
+                    OutputStream out = new BufferedOutputStream(new FileOutputStream(destFile));
+                    try {
+                        IOUtils.copy(in, out);
+                    } finally {
                         out.close();
                     }
+                } finally {
+                    in.close();
                 }
             }
         }
-        
-        deleteFilesNotInZip(projectDir, projectDir, result, pathsInZip, overwriting, reallyWriteFiles);
-        
-        return result;
     }
     
     private void deleteFilesNotInZip(File projectDir, File curDir, Result result, Set<String> pathsInZip, OverwritingDecider overwriting, boolean reallyWriteFiles) throws IOException {
@@ -233,13 +311,27 @@ public class NbProjectUnzipper {
         ZipInputStream zis = readZip(data);
         ZipEntry zent;
         while ((zent = zis.getNextEntry()) != null) {
-            String name = zent.getName();
-            if (name.endsWith("/nbproject/") || name.endsWith("/pom.xml") || name.endsWith(".universal/")) {
+            if (isProjectMarker(zent.getName())) {
+                return dirname(zent.getName());
+            }
+        }
+        return null;
+    }
+
+    private String findProjectDirInZip(ZipFile zip) {
+        Enumeration<? extends ZipEntry> entries = zip.entries();
+        while (entries.hasMoreElements()) {
+            ZipEntry zent = entries.nextElement();
+            if (isProjectMarker(zent.getName())) {
                 return dirname(zent.getName());
             }
         }
         return null;
     }
+
+    private boolean isProjectMarker(String name) {
+        return name.endsWith("/nbproject/") || name.endsWith("/pom.xml") || name.endsWith(".universal/");
+    }
     
     private String dirname(String zipPath) {
         while (zipPath.endsWith("/")) {
@@ -252,12 +344,36 @@ public class NbProjectUnzipper {
         return new ZipInputStream(new ByteArrayInputStream(data));
     }
     
-    private boolean fileContentEquals(File file, byte[] data) throws IOException {
+    private boolean fileContentEquals(File file, ZipEntry zent, EntryContent content) throws IOException {
+        if (zent.getSize() >= 0 && file.length() != zent.getSize()) {
+            return false;
+        }
+        boolean useChecksums = (checksumCache != null && zent.getCrc() >= 0);
+        if (useChecksums) {
+            long crc = checksumCache.getCachedCrc(file);
+            if (crc >= 0 && crc != zent.getCrc()) {
+                return false;
+            }
+        }
+
+        long readAt = System.currentTimeMillis();
+        long lastModified = file.lastModified();
+        boolean equal;
         InputStream fileIs = new BufferedInputStream(new FileInputStream(file));
-        InputStream dataIs = new ByteArrayInputStream(data);
-        boolean eq = IOUtils.contentEquals(fileIs, dataIs);
-        fileIs.close();
-        dataIs.close();
-        return eq;
+        try {
+            InputStream dataIs = content.open();
+            try {
+                equal = IOUtils.contentEquals(fileIs, dataIs);
+            } finally {
+                dataIs.close();
+            }
+        } finally {
+            fileIs.close();
+        }
+
+        if (equal && useChecksums) {
+            checksumCache.putCrc(file, lastModified, readAt, zent.getCrc());
+        }
+        return equal;
     }
 }
@@ -0,0 +1,149 @@
+package fi.helsinki.cs.tmc.utilities.zip;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Calendar;
+
+/**
+ * Writes a zip file from entries whose data has already been deflated.
+ *
+ * <p>
+ * {@link java.util.zip.ZipOutputStream} always compresses the data it is given,
+ * so this writes the zip format directly. Zip64 is not supported.
+ */
+/*package*/ class PrecompressedZipWriter {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+    private static final int VERSION = 20;
+    private static final int FLAG_UTF8_NAMES = 0x0800;
+    private static final int METHOD_STORED = 0;
+    private static final int METHOD_DEFLATED = 8;
+    private static final int MAX_ENTRIES = 0xFFFF;
+    private static final long MAX_OFFSET = 0xFFFFFFFFL;
+
+    private final CountingOutputStream out;
+    private final ByteArrayOutputStream centralDirectory = new ByteArrayOutputStream();
+    private int entryCount = 0;
+
+    public PrecompressedZipWriter(OutputStream out) {
+        this.out = new CountingOutputStream(out);
+    }
+
+    public void writeDirectory(String name, long time) throws IOException {
+        writeEntry(name, time, METHOD_STORED, 0, 0, new byte[0]);
+    }
+
+    public void writeDeflatedFile(String name, long time, ZipEntryCache.Entry entry) throws IOException {
+        writeEntry(name, time, METHOD_DEFLATED, entry.getCrc(), entry.getSize(), entry.getDeflatedData());
+    }
+
+    /**
+     * Writes the central directory. Does not close the underlying stream.
+     */
+    public void finish() throws IOException {
+        long centralDirectoryOffset = out.count;
+        centralDirectory.writeTo(out);
+        writeInt(out, END_OF_CENTRAL_DIRECTORY_SIGNATURE);
+        writeShort(out, 0); // This disk
+        writeShort(out, 0); // Disk of central directory
+        writeShort(out, entryCount);
+        writeShort(out, entryCount);
+        writeInt(out, centralDirectory.size());
+        writeInt(out, (int)centralDirectoryOffset);
+        writeShort(out, 0); // Comment length
+        out.flush();
+    }
+
+    private void writeEntry(String name, long time, int method, long crc, long size, byte[] data) throws IOException {
+        if (entryCount >= MAX_ENTRIES || out.count + data.length > MAX_OFFSET || size > MAX_OFFSET) {
+            throw new IOException("Zip file too large");
+        }
+        long offset = out.count;
+        byte[] nameBytes = name.getBytes(UTF8);
+        int dosTime = toDosTime(time);
+
+        writeInt(out, LOCAL_HEADER_SIGNATURE);
+        writeShort(out, VERSION);
+        writeShort(out, FLAG_UTF8_NAMES);
+        writeShort(out, method);
+        writeInt(out, dosTime);
+        writeInt(out, (int)crc);
+        writeInt(out, data.length);
+        writeInt(out, (int)size);
+        writeShort(out, nameBytes.length);
+        writeShort(out, 0); // Extra field length
+        out.write(nameBytes);
+        out.write(data);
+
+        writeInt(centralDirectory, CENTRAL_HEADER_SIGNATURE);
+        writeShort(centralDirectory, VERSION); // Made by
+        writeShort(centralDirectory, VERSION); // Needed to extract
+        writeShort(centralDirectory, FLAG_UTF8_NAMES);
+        writeShort(centralDirectory, method);
+        writeInt(centralDirectory, dosTime);
+        writeInt(centralDirectory, (int)crc);
+        writeInt(centralDirectory, data.length);
+        writeInt(centralDirectory, (int)size);
+        writeShort(centralDirectory, nameBytes.length);
+        writeShort(centralDirectory, 0); // Extra field length
+        writeShort(centralDirectory, 0); // Comment length
+        writeShort(centralDirectory, 0); // Disk number
+        writeShort(centralDirectory, 0); // Internal attributes
+        writeInt(centralDirectory, 0); // External attributes
+        writeInt(centralDirectory, (int)offset);
+        centralDirectory.write(nameBytes);
+
+        entryCount++;
+    }
+
+    private static int toDosTime(long time) {
+        Calendar cal = Calendar.getInstance();
+        cal.setTimeInMillis(time);
+        int year = cal.get(Calendar.YEAR);
+        if (year < 1980) {
+            return (1 << 21) | (1 << 16); // 1980-01-01 00:00
+        }
+        return ((year - 1980) << 25) |
+                ((cal.get(Calendar.MONTH) + 1) << 21) |
+                (cal.get(Calendar.DAY_OF_MONTH) << 16) |
+                (cal.get(Calendar.HOUR_OF_DAY) << 11) |
+                (cal.get(Calendar.MINUTE) << 5) |
+                (cal.get(Calendar.SECOND) >> 1);
+    }
+
+    // Zip fields are little-endian
+    private static void writeShort(OutputStream out, int value) throws IOException {
+        out.write(value & 0xFF);
+        out.write((value >>> 8) & 0xFF);
+    }
+
+    private static void writeInt(OutputStream out, int value) throws IOException {
+        writeShort(out, value & 0xFFFF);
+        writeShort(out, (value >>> 16) & 0xFFFF);
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long count = 0;
+
+        public CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
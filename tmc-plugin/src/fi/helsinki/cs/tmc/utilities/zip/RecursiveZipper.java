@@ -5,13 +5,26 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.FileNotFoundException;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 import org.apache.commons.io.IOUtils;
+import org.openide.util.RequestProcessor;
 
 public class RecursiveZipper {
+    private static final RequestProcessor compressionProcessor =
+            new RequestProcessor("Zip compression", Runtime.getRuntime().availableProcessors(), true);
+
     private File rootDir;
     private ZippingDecider zippingDecider;
+    private ZipEntryCache entryCache;
+    private boolean parallel;
     
     public static interface ZippingDecider {
         /**
@@ -34,40 +47,258 @@ public class RecursiveZipper {
         this.rootDir = rootDir;
         this.zippingDecider = zippingDecider;
     }
+
+    /**
+     * Sets a cache of compressed files to use when zipping, or null to compress every file.
+     */
+    public void setEntryCache(ZipEntryCache entryCache) {
+        this.entryCache = entryCache;
+    }
+
+    /**
+     * Sets whether to compress files in parallel.
+     *
+     * The result is byte-for-byte the same as when zipping sequentially with an entry cache.
+     */
+    public void setParallel(boolean parallel) {
+        this.parallel = parallel;
+    }
     
     /**
      * Zip up a project directory, only including stuff decided by the {@link ZippingDecider}.
      */
     public byte[] zipProjectSources() throws IOException {
+        return zipWithDecider(zippingDecider);
+    }
+
+    /**
+     * Zips like {@link #zipProjectSources()} but writes the zip to the given stream
+     * as it is produced, so that the zip need not fit in memory.
+     *
+     * The stream is not closed.
+     */
+    public void zipProjectSources(OutputStream out) throws IOException {
+        zipWithDecider(zippingDecider, out);
+    }
+
+    /**
+     * Zips only the given files of those that {@link #zipProjectSources()} would zip.
+     *
+     * The directory entries leading to the files are included as well.
+     * Paths are zip paths as given by {@link #listFilesToZip()}.
+     */
+    public byte[] zipSelectedFiles(Collection<String> fileZipPaths) throws IOException {
+        final Set<String> files = new HashSet<String>(fileZipPaths);
+        final Set<String> dirs = new HashSet<String>();
+        for (String path : files) {
+            int i = path.lastIndexOf('/');
+            while (i > 0) {
+                dirs.add(path.substring(0, i + 1));
+                i = path.lastIndexOf('/', i - 1);
+            }
+        }
+
+        return zipWithDecider(new ZippingDecider() {
+            @Override
+            public boolean shouldZip(String zipPath) {
+                boolean selected = zipPath.endsWith("/") ? dirs.contains(zipPath) : files.contains(zipPath);
+                return selected && zippingDecider.shouldZip(zipPath);
+            }
+        });
+    }
+
+    /**
+     * Returns the files that {@link #zipProjectSources()} would zip, by zip path.
+     */
+    public Map<String, File> listFilesToZip() throws IOException {
+        checkRootDir();
+        Map<String, File> result = new LinkedHashMap<String, File>();
+        listRecursively(rootDir, rootDir.getName(), result);
+        return result;
+    }
+
+    private void checkRootDir() throws IOException {
         if (!rootDir.exists() || !rootDir.isDirectory()) {
             throw new FileNotFoundException("Root directory " + rootDir + " not found for zipping!");
         }
-        
+    }
+
+    private byte[] zipWithDecider(ZippingDecider decider) throws IOException {
         ByteArrayOutputStream zipBuffer = new ByteArrayOutputStream();
-        ZipOutputStream zos = new ZipOutputStream(zipBuffer);
-        
-        try {
-            zipRecursively(rootDir, zos, "");
-        } finally {
-            zos.close();
+        zipWithDecider(decider, zipBuffer);
+        return zipBuffer.toByteArray();
+    }
+
+    private void zipWithDecider(ZippingDecider decider, OutputStream zipBuffer) throws IOException {
+        checkRootDir();
+
+        if (parallel) {
+            PrecompressedZipWriter writer = new PrecompressedZipWriter(zipBuffer);
+            ParallelEntryWriter parallelWriter = new ParallelEntryWriter(writer, entryCache);
+            try {
+                zipRecursively(rootDir, parallelWriter, "", decider);
+                parallelWriter.finish();
+            } finally {
+                parallelWriter.cancel();
+            }
+            writer.finish();
+        } else if (entryCache != null) {
+            PrecompressedZipWriter writer = new PrecompressedZipWriter(zipBuffer);
+            zipRecursively(rootDir, new CachedEntryWriter(writer, entryCache), "", decider);
+            writer.finish();
+        } else {
+            ZipOutputStream zos = new ZipOutputStream(zipBuffer);
+            zipRecursively(rootDir, new ZipOutputStreamEntryWriter(zos), "", decider);
+            zos.finish();
         }
+    }
 
-        return zipBuffer.toByteArray();
+    private static interface EntryWriter {
+        public void writeDirectory(String zipPath, File dir) throws IOException;
+        public void writeFile(String zipPath, File file) throws IOException;
     }
 
-    private void writeEntry(File file, ZipOutputStream zos, String zipPath) throws IOException {
-        zos.putNextEntry(new ZipEntry(zipPath + "/" + file.getName()));
+    private static class ZipOutputStreamEntryWriter implements EntryWriter {
+        private final ZipOutputStream zos;
+
+        public ZipOutputStreamEntryWriter(ZipOutputStream zos) {
+            this.zos = zos;
+        }
 
-        FileInputStream in = new FileInputStream(file);
-        IOUtils.copy(in, zos);
-        in.close();
-        zos.closeEntry();
+        @Override
+        public void writeDirectory(String zipPath, File dir) throws IOException {
+            zos.putNextEntry(new ZipEntry(zipPath));
+            zos.closeEntry();
+        }
+
+        @Override
+        public void writeFile(String zipPath, File file) throws IOException {
+            zos.putNextEntry(new ZipEntry(zipPath));
+
+            FileInputStream in = new FileInputStream(file);
+            IOUtils.copy(in, zos);
+            in.close();
+            zos.closeEntry();
+        }
+    }
+
+    private static class CachedEntryWriter implements EntryWriter {
+        private final PrecompressedZipWriter writer;
+        private final ZipEntryCache cache;
+
+        public CachedEntryWriter(PrecompressedZipWriter writer, ZipEntryCache cache) {
+            this.writer = writer;
+            this.cache = cache;
+        }
+
+        @Override
+        public void writeDirectory(String zipPath, File dir) throws IOException {
+            writer.writeDirectory(zipPath, dir.lastModified());
+        }
+
+        @Override
+        public void writeFile(String zipPath, File file) throws IOException {
+            ZipEntryCache.Entry entry = cache.get(file);
+            writer.writeDeflatedFile(zipPath, entry.getLastModified(), entry);
+        }
+    }
+
+    /**
+     * Starts compressing files in the background as they are walked and
+     * writes them in the walk order once they are ready.
+     *
+     * At most {@link #MAX_PENDING_FILES} files are compressed ahead of the
+     * one being written, so only those are held in memory at a time.
+     */
+    private static class ParallelEntryWriter implements EntryWriter {
+        private static final int MAX_PENDING_FILES = 2 * Runtime.getRuntime().availableProcessors();
+
+        private static class PendingEntry implements Runnable {
+            private final String zipPath;
+            private final File file;
+            private final ZipEntryCache cache;
+            private RequestProcessor.Task task;
+            private volatile ZipEntryCache.Entry result;
+            private volatile IOException error;
+
+            public PendingEntry(String zipPath, File file, ZipEntryCache cache) {
+                this.zipPath = zipPath;
+                this.file = file;
+                this.cache = cache;
+            }
+
+            @Override
+            public void run() {
+                try {
+                    result = (cache != null) ? cache.get(file) : ZipEntryCache.compress(file);
+                } catch (IOException ex) {
+                    error = ex;
+                }
+            }
+        }
+
+        private final PrecompressedZipWriter writer;
+        private final ZipEntryCache cache;
+        private final LinkedList<PendingEntry> entries = new LinkedList<PendingEntry>();
+        private int pendingFiles = 0;
+
+        public ParallelEntryWriter(PrecompressedZipWriter writer, ZipEntryCache cache) {
+            this.writer = writer;
+            this.cache = cache;
+        }
+
+        @Override
+        public void writeDirectory(String zipPath, File dir) {
+            entries.add(new PendingEntry(zipPath, dir, null));
+        }
+
+        @Override
+        public void writeFile(String zipPath, File file) throws IOException {
+            while (pendingFiles >= MAX_PENDING_FILES) {
+                writeEldest();
+            }
+            PendingEntry entry = new PendingEntry(zipPath, file, cache);
+            entry.task = compressionProcessor.post(entry);
+            entries.add(entry);
+            pendingFiles++;
+        }
+
+        /**
+         * Writes the entries that are still pending.
+         */
+        public void finish() throws IOException {
+            while (!entries.isEmpty()) {
+                writeEldest();
+            }
+        }
+
+        private void writeEldest() throws IOException {
+            PendingEntry entry = entries.removeFirst();
+            if (entry.task == null) {
+                writer.writeDirectory(entry.zipPath, entry.file.lastModified());
+                return;
+            }
+            pendingFiles--;
+            entry.task.waitFinished();
+            if (entry.error != null) {
+                throw entry.error;
+            }
+            writer.writeDeflatedFile(entry.zipPath, entry.result.getLastModified(), entry.result);
+        }
+
+        public void cancel() {
+            for (PendingEntry entry : entries) {
+                if (entry.task != null) {
+                    entry.task.cancel();
+                }
+            }
+        }
     }
 
     /**
      * Zips a directory recursively.
      */
-    private void zipRecursively(File dir, ZipOutputStream zos, String parentZipPath) throws IOException {
+    private void zipRecursively(File dir, EntryWriter writer, String parentZipPath, ZippingDecider decider) throws IOException {
         String thisDirZipPath;
         if (parentZipPath.isEmpty()) {
             thisDirZipPath = dir.getName();
@@ -76,8 +307,7 @@ public class RecursiveZipper {
         }
 
         // Create an entry for the directory
-        zos.putNextEntry(new ZipEntry(thisDirZipPath + "/"));
-        zos.closeEntry();
+        writer.writeDirectory(thisDirZipPath + "/", dir);
 
         File[] files = dir.listFiles();
         for (File file : files) {
@@ -86,11 +316,29 @@ public class RecursiveZipper {
             if (isDir) {
                 zipPath += "/";
             }
-            if (zippingDecider.shouldZip(zipPath)) {
+            if (decider.shouldZip(zipPath)) {
+                if (isDir) {
+                    zipRecursively(file, writer, thisDirZipPath, decider);
+                } else {
+                    writer.writeFile(zipPath, file);
+                }
+            }
+        }
+    }
+
+    private void listRecursively(File dir, String thisDirZipPath, Map<String, File> result) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            boolean isDir = file.isDirectory();
+            String zipPath = thisDirZipPath + "/" + file.getName();
+            if (zippingDecider.shouldZip(isDir ? zipPath + "/" : zipPath)) {
                 if (isDir) {
-                    zipRecursively(file, zos, thisDirZipPath);
+                    listRecursively(file, zipPath, result);
                 } else {
-                    writeEntry(file, zos, thisDirZipPath);
+                    result.put(zipPath, file);
                 }
             }
         }
@@ -0,0 +1,180 @@
+package fi.helsinki.cs.tmc.utilities.zip;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Remembers the deflated contents of files so that {@link RecursiveZipper}
+ * can copy unchanged files into a new zip without rereading or recompressing them.
+ *
+ * <p>
+ * Entries are keyed by absolute path and are valid as long as the file's size
+ * and modification time stay the same. The least recently used entries are
+ * evicted when the total size of the deflated data exceeds the limit.
+ */
+public class ZipEntryCache {
+    public static final long DEFAULT_MAX_BYTES = 32 * 1024 * 1024;
+
+    // A modification time this close to when the file was read may not catch a later write.
+    private static final long MTIME_GRANULARITY = 2000;
+
+    private static ZipEntryCache instance;
+
+    /**
+     * Returns the cache shared by code snapshots and submissions.
+     */
+    public static synchronized ZipEntryCache getInstance() {
+        if (instance == null) {
+            instance = new ZipEntryCache(DEFAULT_MAX_BYTES);
+        }
+        return instance;
+    }
+
+    /**
+     * A file's deflated contents.
+     */
+    public static class Entry {
+        private final long size;
+        private final long lastModified;
+        private final long readAt;
+        private final long crc;
+        private final byte[] deflatedData;
+
+        private Entry(long size, long lastModified, long readAt, long crc, byte[] deflatedData) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.readAt = readAt;
+            this.crc = crc;
+            this.deflatedData = deflatedData;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        public long getCrc() {
+            return crc;
+        }
+
+        /**
+         * Raw deflate data without a zlib header, as stored in zip files.
+         */
+        public byte[] getDeflatedData() {
+            return deflatedData;
+        }
+
+        private boolean isValidFor(File file) {
+            return file.length() == size &&
+                    file.lastModified() == lastModified &&
+                    lastModified + MTIME_GRANULARITY < readAt;
+        }
+    }
+
+    private final long maxBytes;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private long totalBytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+
+    public ZipEntryCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the deflated contents of a file, reading and compressing it only if
+     * the cached entry is missing or out of date.
+     */
+    public Entry get(File file) throws IOException {
+        String key = file.getAbsolutePath();
+        synchronized (this) {
+            Entry cached = entries.get(key);
+            if (cached != null && cached.isValidFor(file)) {
+                hits++;
+                return cached;
+            }
+            misses++;
+        }
+
+        Entry entry = compress(file);
+        if (entry.lastModified == file.lastModified() && entry.size == file.length()) {
+            put(key, entry);
+        }
+        return entry;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        totalBytes = 0;
+    }
+
+    private synchronized void put(String key, Entry entry) {
+        if (entry.deflatedData.length > maxBytes) {
+            return;
+        }
+        Entry old = entries.put(key, entry);
+        if (old != null) {
+            totalBytes -= old.deflatedData.length;
+        }
+        totalBytes += entry.deflatedData.length;
+
+        Iterator<Map.Entry<String, Entry>> i = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && i.hasNext()) {
+            totalBytes -= i.next().getValue().deflatedData.length;
+            i.remove();
+        }
+    }
+
+    /**
+     * Reads and compresses a file without caching it.
+     */
+    /*package*/ static Entry compress(File file) throws IOException {
+        long readAt = System.currentTimeMillis();
+        long lastModified = file.lastModified();
+
+        CRC32 crc = new CRC32();
+        long size = 0;
+        ByteArrayOutputStream deflated = new ByteArrayOutputStream();
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            DeflaterOutputStream out = new DeflaterOutputStream(deflated, deflater);
+            InputStream in = new FileInputStream(file);
+            try {
+                byte[] buf = new byte[8192];
+                int n;
+                while ((n = in.read(buf)) != -1) {
+                    crc.update(buf, 0, n);
+                    out.write(buf, 0, n);
+                    size += n;
+                }
+            } finally {
+                in.close();
+            }
+            out.finish();
+        } finally {
+            deflater.end();
+        }
+
+        return new Entry(size, lastModified, readAt, crc.getValue(), deflated.toByteArray());
+    }
+}
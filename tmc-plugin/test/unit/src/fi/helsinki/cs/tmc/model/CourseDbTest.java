@@ -1,13 +1,16 @@
 package fi.helsinki.cs.tmc.model;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import fi.helsinki.cs.tmc.data.Course;
 import fi.helsinki.cs.tmc.data.CourseListUtils;
 import fi.helsinki.cs.tmc.data.Exercise;
+import fi.helsinki.cs.tmc.data.ExerciseKey;
 import fi.helsinki.cs.tmc.events.TmcEventBus;
 import fi.helsinki.cs.tmc.events.TmcEventListener;
 import java.io.IOException;
+import org.openide.filesystems.FileObject;
 import java.util.concurrent.atomic.AtomicInteger;
 import org.junit.After;
 import java.util.logging.Level;
@@ -36,7 +39,12 @@ public class CourseDbTest {
     
     @After
     public void tearDown() throws IOException {
+        db.flush();
         file.getFileObject().delete();
+        FileObject courseDir = ConfigFile.getConfigFolder().getFileObject("CourseDbTest-courses");
+        if (courseDir != null) {
+            courseDir.delete();
+        }
         CourseDb.logger.setLevel(oldLogLevel);
     }
     
@@ -48,6 +56,7 @@ public class CourseDbTest {
         courses.get(0).getExercises().add(new Exercise("ex1"));
         
         db.setAvailableCourses(courses);
+        db.flush();
         db = new CourseDb(eventBus, file);
         
         assertEquals("one", db.getAvailableCourses().get(0).getName());
@@ -62,6 +71,7 @@ public class CourseDbTest {
         
         db.setAvailableCourses(courses);
         db.setCurrentCourseName("one");
+        db.flush();
         db = new CourseDb(eventBus, file);
         
         assertEquals("one", db.getCurrentCourse().getName());
@@ -78,6 +88,7 @@ public class CourseDbTest {
         
         db.setAvailableCourses(courses);
         db.exerciseDownloaded(ex);
+        db.flush();
         db = new CourseDb(eventBus, file);
         
         assertEquals("foo", db.getDownloadedExerciseChecksum(ex.getKey()));
@@ -89,6 +100,7 @@ public class CourseDbTest {
         courses.add(new Course("one"));
         courses.add(new Course("two"));
         db.setAvailableCourses(courses);
+        db.flush();
         
         file.writeContents("oops!");
         
@@ -104,6 +116,7 @@ public class CourseDbTest {
         db.setAvailableCourses(courses);
         db.setCurrentCourseName("two");
         
+        db.flush();
         db = new CourseDb(eventBus, file);
         assertSame("current course has the wrong object identity", db.getAvailableCourses().get(1), db.getCurrentCourse());
     }
@@ -140,4 +153,117 @@ public class CourseDbTest {
         
         assertEquals(2, received.get());
     }
+
+    @Test
+    public void itShouldWriteABurstOfChangesAtOnceInTheBackground() throws Exception {
+        List<Course> courses = new ArrayList<Course>();
+        courses.add(new Course("one"));
+        db.setAvailableCourses(courses);
+        db.setCurrentCourseName("one");
+        assertFalse(file.exists());
+
+        Thread.sleep(CourseDb.STORE_DELAY * 3);
+        assertTrue(file.exists());
+        db = new CourseDb(eventBus, file);
+        assertEquals("one", db.getCurrentCourse().getName());
+    }
+
+    @Test
+    public void itShouldKeepCoursesNotChangedSinceLoading() throws IOException {
+        List<Course> courses = new ArrayList<Course>();
+        courses.add(new Course("one"));
+        courses.add(new Course("two"));
+        courses.get(1).getExercises().add(new Exercise("ex1", "two"));
+        db.setAvailableCourses(courses);
+        db.flush();
+
+        db = new CourseDb(eventBus, file);
+        Course newOne = new Course("one");
+        newOne.getExercises().add(new Exercise("ex2", "one"));
+        db.putDetailedCourse(newOne);
+        db.flush();
+
+        db = new CourseDb(eventBus, file);
+        assertEquals("ex2", db.getCourseByName("one").getExercises().get(0).getName());
+        assertEquals("ex1", db.getCourseByName("two").getExercises().get(0).getName());
+    }
+
+    @Test
+    public void itShouldForgetRemovedCourses() throws IOException {
+        List<Course> courses = new ArrayList<Course>();
+        courses.add(new Course("one"));
+        courses.add(new Course("two"));
+        db.setAvailableCourses(courses);
+        db.flush();
+
+        courses = new ArrayList<Course>();
+        courses.add(new Course("two"));
+        db.setAvailableCourses(courses);
+        db.flush();
+
+        db = new CourseDb(eventBus, file);
+        assertEquals(1, db.getAvailableCourses().size());
+        assertEquals("two", db.getAvailableCourses().get(0).getName());
+    }
+
+    @Test
+    public void itShouldLoadTheOldSingleFileFormat() throws IOException {
+        file.writeContents("{\"availableCourses\": [{\"name\": \"one\", \"exercises\": [{\"name\": \"ex1\"}]}], "
+                + "\"currentCourseName\": \"one\"}");
+
+        db = new CourseDb(eventBus, file);
+        assertEquals("ex1", db.getCurrentCourseExercises().get(0).getName());
+
+        db.flush();
+        db = new CourseDb(eventBus, file);
+        assertEquals("ex1", db.getCurrentCourseExercises().get(0).getName());
+        assertFalse(file.readContents().contains("availableCourses"));
+    }
+
+    @Test
+    public void itShouldFindExercisesOfTheCurrentCourseByKey() {
+        List<Course> courses = new ArrayList<Course>();
+        courses.add(new Course("one"));
+        courses.add(new Course("two"));
+        courses.get(0).getExercises().add(new Exercise("ex1", "one"));
+        courses.get(1).getExercises().add(new Exercise("ex2", "two"));
+        db.setAvailableCourses(courses);
+        db.setCurrentCourseName("one");
+
+        assertEquals("ex1", db.getExerciseByKey(new ExerciseKey("one", "ex1")).getName());
+        assertNull(db.getExerciseByKey(new ExerciseKey("two", "ex2")));
+
+        db.setCurrentCourseName("two");
+        assertNull(db.getExerciseByKey(new ExerciseKey("one", "ex1")));
+        assertEquals("ex2", db.getExerciseByKey(new ExerciseKey("two", "ex2")).getName());
+        assertSame(courses.get(1), db.getCourseByName("two"));
+        assertNull(db.getCourseByName("three"));
+    }
+
+    @Test
+    public void itShouldListUnlockableExercisesInTheOrderGivenByTheCourse() {
+        Course course = new Course("one");
+        course.getExercises().add(new Exercise("ex1", "one"));
+        course.getExercises().add(new Exercise("ex2", "one"));
+        course.getExercises().add(new Exercise("ex3", "one"));
+        course.setUnlockables(Arrays.asList("ex3", "ex1"));
+        List<Course> courses = new ArrayList<Course>();
+        courses.add(course);
+        db.setAvailableCourses(courses);
+        db.setCurrentCourseName("one");
+
+        List<Exercise> unlockables = db.getCurrentCourseUnlockableExercises();
+        assertEquals(2, unlockables.size());
+        assertEquals("ex3", unlockables.get(0).getName());
+        assertEquals("ex1", unlockables.get(1).getName());
+        assertTrue(db.isUnlockable(course.getExercises().get(0)));
+        assertFalse(db.isUnlockable(course.getExercises().get(1)));
+
+        Course updated = new Course("one");
+        updated.getExercises().add(new Exercise("ex2", "one"));
+        updated.setUnlockables(Arrays.asList("ex2"));
+        db.putDetailedCourse(updated);
+        assertEquals("ex2", db.getCurrentCourseUnlockableExercises().get(0).getName());
+        assertFalse(db.isUnlockable(course.getExercises().get(0)));
+    }
 }
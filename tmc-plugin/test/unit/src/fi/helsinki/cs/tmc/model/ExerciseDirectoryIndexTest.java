@@ -0,0 +1,153 @@
+package fi.helsinki.cs.tmc.model;
+
+import fi.helsinki.cs.tmc.data.Course;
+import fi.helsinki.cs.tmc.data.Exercise;
+import fi.helsinki.cs.tmc.data.ExerciseKey;
+import fi.helsinki.cs.tmc.events.TmcEventBus;
+import fi.helsinki.cs.tmc.testing.Benchmarks;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import org.junit.After;
+import org.openide.filesystems.FileObject;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ExerciseDirectoryIndexTest {
+    private static final int EXERCISE_COUNT = 300;
+    private static final String ROOT = File.separator + "projects";
+
+    private Level oldLogLevel;
+    private ConfigFile file;
+    private CourseDb courseDb;
+    private ExerciseDirectoryIndex index;
+
+    @Before
+    public void setUp() {
+        oldLogLevel = CourseDb.logger.getLevel();
+        CourseDb.logger.setLevel(Level.OFF);
+
+        file = new ConfigFile("ExerciseDirectoryIndexTest.json");
+        courseDb = new CourseDb(TmcEventBus.createNewInstance(), file);
+        index = new ExerciseDirectoryIndex();
+
+        Course course = new Course("course");
+        for (int i = 0; i < EXERCISE_COUNT; ++i) {
+            course.getExercises().add(new Exercise(exerciseName(i), "course"));
+        }
+        List<Course> courses = new ArrayList<Course>();
+        courses.add(course);
+        courseDb.setAvailableCourses(courses);
+        courseDb.setCurrentCourseName("course");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        courseDb.flush();
+        file.getFileObject().delete();
+        FileObject courseDir = ConfigFile.getConfigFolder().getFileObject("ExerciseDirectoryIndexTest-courses");
+        if (courseDir != null) {
+            courseDir.delete();
+        }
+        CourseDb.logger.setLevel(oldLogLevel);
+    }
+
+    private static String exerciseName(int i) {
+        return "week" + (i / 10) + "-ex" + i;
+    }
+
+    private static File projectDir(String root, String courseName, String exerciseName) {
+        return new File(root + File.separator + courseName + File.separator + exerciseName);
+    }
+
+    @Test
+    public void itShouldFindTheExerciseOfAProjectDirectory() {
+        Exercise ex = index.get(projectDir(ROOT, "course", "week12-ex123"), ROOT, courseDb);
+        assertEquals("week12-ex123", ex.getName());
+        assertNull(index.get(projectDir(ROOT, "course", "nonexistent"), ROOT, courseDb));
+    }
+
+    @Test
+    public void itShouldReplaceSlashesInExerciseNames() {
+        Exercise ex = new Exercise("viikko1/tehtava1", "course");
+        assertEquals(projectDir(ROOT, "course", "viikko1-tehtava1"), ExerciseDirectoryIndex.getProjectDirForExercise(ROOT, ex));
+    }
+
+    @Test
+    public void itShouldFollowChangesOfTheCurrentCourseAndProjectRoot() {
+        Course other = new Course("other");
+        other.getExercises().add(new Exercise("foo", "other"));
+        List<Course> courses = new ArrayList<Course>(courseDb.getAvailableCourses());
+        courses.add(other);
+        courseDb.setAvailableCourses(courses);
+
+        assertNull(index.get(projectDir(ROOT, "other", "foo"), ROOT, courseDb));
+        courseDb.setCurrentCourseName("other");
+        assertEquals("foo", index.get(projectDir(ROOT, "other", "foo"), ROOT, courseDb).getName());
+
+        String newRoot = File.separator + "elsewhere";
+        assertNull(index.get(projectDir(ROOT, "other", "foo"), newRoot, courseDb));
+        assertEquals("foo", index.get(projectDir(newRoot, "other", "foo"), newRoot, courseDb).getName());
+    }
+
+    @Test
+    public void itShouldSeeChangedExercisesAfterInvalidation() {
+        courseDb.getCurrentCourseExercises().add(new Exercise("added", "course"));
+        index.get(projectDir(ROOT, "course", "added"), ROOT, courseDb);
+        index.invalidate();
+        assertEquals("added", index.get(projectDir(ROOT, "course", "added"), ROOT, courseDb).getName());
+    }
+
+    @Test
+    public void benchmarkLookupsInACourseWith300Exercises() {
+        Benchmarks.assumeEnabled();
+        int rounds = 20;
+        File[] dirs = new File[EXERCISE_COUNT];
+        for (int i = 0; i < EXERCISE_COUNT; ++i) {
+            dirs[i] = projectDir(ROOT, "course", exerciseName(i));
+        }
+
+        long start = System.nanoTime();
+        for (int r = 0; r < rounds; ++r) {
+            for (File dir : dirs) {
+                assertNotNull(linearLookup(dir));
+            }
+        }
+        long linearNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int r = 0; r < rounds; ++r) {
+            for (File dir : dirs) {
+                assertNotNull(index.get(dir, ROOT, courseDb));
+            }
+        }
+        long indexedNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int r = 0; r < rounds; ++r) {
+            for (int i = 0; i < EXERCISE_COUNT; ++i) {
+                assertNotNull(courseDb.getExerciseByKey(new ExerciseKey("course", exerciseName(i))));
+            }
+        }
+        long byKeyNanos = System.nanoTime() - start;
+
+        int lookups = rounds * EXERCISE_COUNT;
+        Benchmarks.report("Exercise lookups among " + EXERCISE_COUNT + " exercises: " +
+                (linearNanos / lookups) + "ns per directory scan, " +
+                (indexedNanos / lookups) + "ns per indexed directory lookup, " +
+                (byKeyNanos / lookups) + "ns per lookup by key.");
+    }
+
+    // How ProjectMediator.tryGetExerciseForProject used to work.
+    private Exercise linearLookup(File projectDir) {
+        for (Exercise ex : courseDb.getCurrentCourseExercises()) {
+            if (ExerciseDirectoryIndex.getProjectDirForExercise(ROOT, ex).equals(projectDir)) {
+                return ex;
+            }
+        }
+        return null;
+    }
+}
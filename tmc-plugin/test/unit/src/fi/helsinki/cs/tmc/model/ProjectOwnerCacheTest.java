@@ -0,0 +1,74 @@
+package fi.helsinki.cs.tmc.model;
+
+import java.io.IOException;
+import java.util.Arrays;
+import org.junit.Before;
+import org.junit.Test;
+import org.netbeans.api.project.Project;
+import org.openide.filesystems.FileObject;
+import org.openide.filesystems.FileUtil;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class ProjectOwnerCacheTest {
+    private FileObject projectDir;
+    private FileObject srcDir;
+    private FileObject otherDir;
+    private TmcProjectInfo projectInfo;
+    private ProjectOwnerCache cache;
+
+    @Before
+    public void setUp() throws IOException {
+        FileObject root = FileUtil.createMemoryFileSystem().getRoot();
+        projectDir = root.createFolder("MyExercise");
+        srcDir = FileUtil.createFolder(projectDir, "src/foo");
+        otherDir = root.createFolder("other");
+
+        Project project = mock(Project.class);
+        when(project.getProjectDirectory()).thenReturn(projectDir);
+        projectInfo = new TmcProjectInfo(project);
+        cache = new ProjectOwnerCache();
+    }
+
+    @Test
+    public void itShouldRememberTheOwnersOfFolders() {
+        assertNull(cache.get(srcDir));
+        cache.put(Arrays.asList(srcDir, srcDir.getParent(), projectDir), projectInfo);
+
+        assertSame(projectInfo, cache.get(srcDir));
+        assertSame(projectInfo, cache.get(srcDir.getParent()));
+        assertSame(projectInfo, cache.get(projectDir));
+        assertNull(cache.get(otherDir));
+
+        assertEquals(3, cache.getHits());
+        assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void itShouldForgetDeletedFolders() throws IOException {
+        cache.put(Arrays.asList(srcDir, projectDir), projectInfo);
+        srcDir.delete();
+
+        assertNull(cache.get(srcDir));
+        assertSame(projectInfo, cache.get(projectDir));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void itShouldForgetFoldersOfDeletedProjects() throws IOException {
+        cache.put(Arrays.asList(srcDir, projectDir), projectInfo);
+        projectDir.delete();
+
+        assertNull(cache.get(srcDir));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void itCanBeCleared() {
+        cache.put(Arrays.asList(srcDir, projectDir), projectInfo);
+        cache.clear();
+
+        assertNull(cache.get(srcDir));
+        assertEquals(0, cache.size());
+    }
+}
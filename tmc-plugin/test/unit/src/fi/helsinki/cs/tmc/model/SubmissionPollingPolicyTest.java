@@ -0,0 +1,61 @@
+package fi.helsinki.cs.tmc.model;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class SubmissionPollingPolicyTest {
+
+    private SubmissionPollingPolicy.ProcessingTimeEstimate estimate;
+    private SubmissionPollingPolicy policy;
+
+    @Before
+    public void setUp() {
+        estimate = new SubmissionPollingPolicy.ProcessingTimeEstimate(4000);
+        policy = new SubmissionPollingPolicy(estimate);
+    }
+
+    @Test
+    public void itShouldWaitAboutHalfOfTheExpectedRemainingTime() {
+        policy.positionObserved(0, 4);
+        assertEquals(5 * 4000 / 2, policy.getNextDelay(false));
+    }
+
+    @Test
+    public void itShouldKeepTheDelayWithinBounds() {
+        policy.positionObserved(0, 0);
+        estimate = new SubmissionPollingPolicy.ProcessingTimeEstimate(10);
+        assertEquals(SubmissionPollingPolicy.MIN_POLL_DELAY, new SubmissionPollingPolicy(estimate).getNextDelay(false));
+
+        policy.positionObserved(1000, 100);
+        assertEquals(SubmissionPollingPolicy.MAX_POLL_DELAY, policy.getNextDelay(false));
+    }
+
+    @Test
+    public void itShouldPollRarelyWhenResultsArePushed() {
+        policy.positionObserved(0, 0);
+        assertEquals(SubmissionPollingPolicy.PUSH_FALLBACK_POLL_DELAY, policy.getNextDelay(true));
+    }
+
+    @Test
+    public void itShouldLearnHowFastTheQueueMoves() {
+        policy.positionObserved(0, 3);
+        policy.positionObserved(2000, 1);
+        // Sample of 1000ms per submission mixed into 4000ms
+        assertEquals(3100, estimate.getMillisPerSubmission());
+    }
+
+    @Test
+    public void itShouldLearnHowLongTheLastSubmissionTakes() {
+        policy.positionObserved(0, 0);
+        policy.resultReceived(2000);
+        assertEquals(3400, estimate.getMillisPerSubmission());
+    }
+
+    @Test
+    public void itShouldNotLearnFromAPositionThatDidNotChange() {
+        policy.positionObserved(0, 2);
+        policy.positionObserved(5000, 2);
+        assertEquals(4000, estimate.getMillisPerSubmission());
+    }
+}
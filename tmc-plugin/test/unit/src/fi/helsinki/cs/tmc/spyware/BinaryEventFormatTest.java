@@ -0,0 +1,183 @@
+package fi.helsinki.cs.tmc.spyware;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.reflect.TypeToken;
+import fi.helsinki.cs.tmc.testing.Benchmarks;
+import fi.helsinki.cs.tmc.utilities.ByteArrayGsonSerializer;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class BinaryEventFormatTest {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private void assertEventsEqual(List<LoggableEvent> expected, List<LoggableEvent> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); ++i) {
+            LoggableEvent e = expected.get(i);
+            LoggableEvent a = actual.get(i);
+            assertEquals(e.getCourseName(), a.getCourseName());
+            assertEquals(e.getExerciseName(), a.getExerciseName());
+            assertEquals(e.getEventType(), a.getEventType());
+            assertEquals(e.getKey(), a.getKey());
+            assertEquals(e.getMetadata(), a.getMetadata());
+            assertEquals(e.getHappenedAt(), a.getHappenedAt());
+            assertEquals(e.getSystemNanotime(), a.getSystemNanotime());
+            assertArrayEquals(e.getData(), a.getData());
+        }
+    }
+
+    @Test
+    public void roundTripsEvents() throws IOException {
+        LoggableEvent withMetadata = new LoggableEvent("course", "ex1", "text_insert", "patch".getBytes(UTF8), "{\"file\":\"Ä.java\"}");
+        withMetadata.setHappenedAt(-5);
+        List<LoggableEvent> events = Arrays.asList(
+                new LoggableEvent("course", "ex1", "code_snapshot", new byte[] { 0, 1, 2, (byte)255 }),
+                withMetadata,
+                new LoggableEvent("course", "ex2", "code_snapshot", new byte[0]),
+                new LoggableEvent("course", "ex1", "code_snapshot", null),
+                new LoggableEvent(null, null, "tmc_event", "x".getBytes(UTF8)));
+
+        assertEventsEqual(events, BinaryEventFormat.decode(BinaryEventFormat.encode(events)));
+    }
+
+    @Test
+    public void roundTripsEmptyBatch() throws IOException {
+        List<LoggableEvent> events = new ArrayList<LoggableEvent>();
+        byte[] encoded = BinaryEventFormat.encode(events);
+        assertTrue(BinaryEventFormat.hasHeader(encoded));
+        assertEquals(0, BinaryEventFormat.decode(encoded).size());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsTruncatedBatch() throws IOException {
+        List<LoggableEvent> events = Arrays.asList(new LoggableEvent("c", "e", "t", new byte[100]));
+        byte[] encoded = BinaryEventFormat.encode(events);
+        BinaryEventFormat.decode(Arrays.copyOf(encoded, encoded.length - 10));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsUnknownVersion() throws IOException {
+        byte[] encoded = BinaryEventFormat.encode(new ArrayList<LoggableEvent>());
+        encoded[4] = 99;
+        BinaryEventFormat.decode(encoded);
+    }
+
+    @Test
+    public void isSmallerThanJsonWithBase64() throws IOException {
+        List<LoggableEvent> events = mkRealisticBatch();
+        byte[] json = gzip(toJsonWithBase64(events));
+        byte[] binary = gzip(BinaryEventFormat.encode(events));
+        assertTrue(binary.length < json.length);
+        assertTrue(BinaryEventFormat.encode(events).length < toJsonWithBase64(events).length);
+    }
+
+    @Test
+    public void benchmarkRoundTripsAgainstJsonWithBase64() throws IOException {
+        Benchmarks.assumeEnabled();
+        List<LoggableEvent> events = mkRealisticBatch();
+        int rounds = 20;
+        for (int warmup = 0; warmup < 10; ++warmup) {
+            roundTripJson(events);
+            roundTripBinary(events);
+        }
+
+        long jsonNanos = 0;
+        long binaryNanos = 0;
+        int jsonBytes = 0;
+        int binaryBytes = 0;
+        for (int r = 0; r < rounds; ++r) {
+            long start = System.nanoTime();
+            jsonBytes = roundTripJson(events);
+            jsonNanos += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            binaryBytes = roundTripBinary(events);
+            binaryNanos += System.nanoTime() - start;
+        }
+
+        Benchmarks.report("Round trip of " + events.size() + " events through gzip: " +
+                "JSON+base64 " + jsonBytes + " bytes in " + (jsonNanos / rounds / 1000) + "us, " +
+                "binary " + binaryBytes + " bytes in " + (binaryNanos / rounds / 1000) + "us.");
+    }
+
+    // These return the gzipped size.
+
+    private int roundTripJson(List<LoggableEvent> events) throws IOException {
+        byte[] gzipped = gzip(toJsonWithBase64(events));
+        List<LoggableEvent> decoded = newGson().fromJson(new String(gunzip(gzipped), UTF8), new TypeToken<List<LoggableEvent>>(){}.getType());
+        assertEquals(events.size(), decoded.size());
+        return gzipped.length;
+    }
+
+    private int roundTripBinary(List<LoggableEvent> events) throws IOException {
+        byte[] gzipped = gzip(BinaryEventFormat.encode(events));
+        assertEquals(events.size(), BinaryEventFormat.decode(gunzip(gzipped)).size());
+        return gzipped.length;
+    }
+
+    private List<LoggableEvent> mkRealisticBatch() throws IOException {
+        Random random = new Random(1234);
+        List<LoggableEvent> events = new ArrayList<LoggableEvent>();
+        for (int i = 0; i < 500; ++i) {
+            if (i % 50 == 0) {
+                events.add(new LoggableEvent("k2015-ohpe", "viikko1-Viikko1_00" + (i / 50), "code_snapshot", mkZip(random), "{\"cause\":\"file_change\"}"));
+            } else {
+                String patch = "@@ -" + random.nextInt(1000) + ",6 +" + random.nextInt(1000) + ",7 @@\n   int\n+x\n  i = 0;\n";
+                events.add(new LoggableEvent("k2015-ohpe", "viikko1-Viikko1_00" + (i / 50), "text_insert", patch.getBytes(UTF8), "{\"file\":\"src/Main.java\"}"));
+            }
+        }
+        return events;
+    }
+
+    private byte[] mkZip(Random random) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ZipOutputStream zos = new ZipOutputStream(bos);
+        for (int i = 0; i < 5; ++i) {
+            zos.putNextEntry(new ZipEntry("src/File" + i + ".java"));
+            StringBuilder sb = new StringBuilder();
+            for (int j = 0; j < 200; ++j) {
+                sb.append("    System.out.println(").append(random.nextInt()).append(");\n");
+            }
+            zos.write(sb.toString().getBytes(UTF8));
+            zos.closeEntry();
+        }
+        zos.close();
+        return bos.toByteArray();
+    }
+
+    private Gson newGson() {
+        return new GsonBuilder()
+                .registerTypeAdapter(byte[].class, new ByteArrayGsonSerializer())
+                .create();
+    }
+
+    private byte[] toJsonWithBase64(List<LoggableEvent> events) {
+        return newGson().toJson(events, new TypeToken<List<LoggableEvent>>(){}.getType()).getBytes(UTF8);
+    }
+
+    private byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        GZIPOutputStream gzos = new GZIPOutputStream(bos);
+        gzos.write(data);
+        gzos.close();
+        return bos.toByteArray();
+    }
+
+    private byte[] gunzip(byte[] data) throws IOException {
+        return IOUtils.toByteArray(new GZIPInputStream(new ByteArrayInputStream(data)));
+    }
+}
@@ -0,0 +1,172 @@
+package fi.helsinki.cs.tmc.spyware;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import fi.helsinki.cs.tmc.utilities.JsonMaker;
+import java.nio.charset.Charset;
+import java.util.LinkedList;
+import name.fraser.neil.plaintext.diff_match_patch;
+import name.fraser.neil.plaintext.diff_match_patch.Patch;
+import org.junit.Before;
+import org.junit.Test;
+import org.openide.util.RequestProcessor;
+import static org.junit.Assert.*;
+
+public class EditSessionCoalescerTest extends EventForwardedTestBase {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final diff_match_patch dmp = new diff_match_patch();
+    private EditSessionCoalescer coalescer;
+
+    @Before
+    public void setUp() {
+        coalescer = new EditSessionCoalescer(new RequestProcessor("test", 1, true), receiver);
+        coalescer.setIdleWindow(60000);
+    }
+
+    @Override
+    protected EventReceiver getSystemUnderTest() {
+        return coalescer;
+    }
+
+    private LoggableEvent mkEdit(String type, String file, String before, String after) {
+        return mkEdit("ex1", type, file, dmp.patch_toText(dmp.patch_make(before, after)), false);
+    }
+
+    private LoggableEvent mkEdit(String exerciseName, String type, String file, String patches, boolean fullDocument) {
+        String data = JsonMaker.create()
+                .add("file", file)
+                .add("patches", patches)
+                .add("full_document", fullDocument)
+                .toString();
+        return new LoggableEvent("course1", exerciseName, type, data.getBytes(UTF8));
+    }
+
+    private JsonObject dataOf(LoggableEvent event) {
+        return new JsonParser().parse(new String(event.getData(), UTF8)).getAsJsonObject();
+    }
+
+    private String applyPatches(String text, LoggableEvent event) {
+        LinkedList<Patch> patches = new LinkedList<Patch>(dmp.patch_fromText(dataOf(event).get("patches").getAsString()));
+        return (String)dmp.patch_apply(patches, text)[0];
+    }
+
+    @Test
+    public void mergesConsecutiveEditsOfAFile() {
+        sendEvent(mkEdit("text_insert", "A.java", "class A {}", "class A {x}"));
+        sendEvent(mkEdit("text_insert", "A.java", "class A {x}", "class A {xy}"));
+        sendEvent(mkEdit("text_insert", "A.java", "class A {xy}", "class A {xyz}"));
+        assertTrue(eventsReceived.isEmpty());
+
+        coalescer.flush();
+
+        assertEquals(1, eventsReceived.size());
+        LoggableEvent merged = eventsReceived.get(0);
+        assertEquals("text_insert", merged.getEventType());
+        assertEquals(eventsSent.get(0).getHappenedAt(), merged.getHappenedAt());
+        assertEquals(3, dataOf(merged).get("edit_count").getAsInt());
+        assertEquals("A.java", dataOf(merged).get("file").getAsString());
+        assertFalse(dataOf(merged).get("full_document").getAsBoolean());
+        assertEquals("class A {xyz}", applyPatches("class A {}", merged));
+    }
+
+    @Test
+    public void startsANewSessionWhenTheEditTypeChanges() {
+        sendEvent(mkEdit("text_insert", "A.java", "class A {}", "class A {x}"));
+        sendEvent(mkEdit("text_insert", "A.java", "class A {x}", "class A {xy}"));
+        sendEvent(mkEdit("text_remove", "A.java", "class A {xy}", "class A {x}"));
+        sendEvent(mkEdit("text_remove", "A.java", "class A {x}", "class A {}"));
+        coalescer.flush();
+
+        assertEquals(2, eventsReceived.size());
+        assertEquals("text_insert", eventsReceived.get(0).getEventType());
+        assertEquals("text_remove", eventsReceived.get(1).getEventType());
+        assertEquals(eventsSent.get(2).getHappenedAt(), eventsReceived.get(1).getHappenedAt());
+        assertEquals("class A {xy}", applyPatches("class A {}", eventsReceived.get(0)));
+        assertEquals("class A {}", applyPatches("class A {xy}", eventsReceived.get(1)));
+    }
+
+    @Test
+    public void forwardsASingleEditAsIs() {
+        sendEvent(mkEdit("text_insert", "A.java", "a", "ab"));
+        coalescer.flush();
+
+        assertReceivedExactly(0);
+    }
+
+    @Test
+    public void keepsPastesAndOtherEventsSeparate() {
+        sendEvent(mkEdit("text_insert", "A.java", "a", "ab"));
+        sendEvent(mkEdit("text_insert", "A.java", "ab", "abc"));
+        sendEvent(mkEdit("text_paste", "A.java", "abc", "abcdefg"));
+        sendEvent(mkEdit("text_insert", "A.java", "abcdefg", "abcdefgh"));
+        sendEvent(new LoggableEvent("course1", "ex1", "project_action", new byte[0]));
+
+        assertEquals(4, eventsReceived.size());
+        assertEquals(2, dataOf(eventsReceived.get(0)).get("edit_count").getAsInt());
+        assertSame(eventsSent.get(2), eventsReceived.get(1));
+        assertSame(eventsSent.get(3), eventsReceived.get(2));
+        assertSame(eventsSent.get(4), eventsReceived.get(3));
+    }
+
+    @Test
+    public void startsANewSessionForAnotherFileOrExercise() {
+        sendEvent(mkEdit("text_insert", "A.java", "a", "ab"));
+        sendEvent(mkEdit("text_insert", "B.java", "a", "ab"));
+        sendEvent(mkEdit("ex2", "text_insert", "B.java", dmp.patch_toText(dmp.patch_make("a", "ab")), false));
+        coalescer.flush();
+
+        assertReceivedExactly(0, 1, 2);
+    }
+
+    @Test
+    public void startsANewSessionOnAFullDocumentPatch() {
+        sendEvent(mkEdit("ex1", "text_insert", "A.java", dmp.patch_toText(dmp.patch_make("", "ab")), true));
+        sendEvent(mkEdit("text_insert", "A.java", "ab", "abc"));
+        sendEvent(mkEdit("ex1", "text_insert", "A.java", dmp.patch_toText(dmp.patch_make("", "xyz")), true));
+        coalescer.flush();
+
+        assertEquals(2, eventsReceived.size());
+        assertTrue(dataOf(eventsReceived.get(0)).get("full_document").getAsBoolean());
+        assertEquals("abc", applyPatches("", eventsReceived.get(0)));
+        assertSame(eventsSent.get(2), eventsReceived.get(1));
+    }
+
+    @Test
+    public void forwardsEditsWithoutAFileAsIs() {
+        sendEvent(new LoggableEvent("course1", "ex1", "text_insert", "{}".getBytes(UTF8)));
+        sendEvent(new LoggableEvent("course1", "ex1", "text_insert", "{}".getBytes(UTF8)));
+
+        assertReceivedExactly(0, 1);
+    }
+
+    @Test
+    public void flushesAfterTheIdleWindow() throws Exception {
+        coalescer.setIdleWindow(50);
+        sendEvent(mkEdit("text_insert", "A.java", "a", "ab"));
+        sendEvent(mkEdit("text_insert", "A.java", "ab", "abc"));
+
+        for (int i = 0; i < 100 && eventsReceived.isEmpty(); ++i) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, eventsReceived.size());
+        assertEquals(2, dataOf(eventsReceived.get(0)).get("edit_count").getAsInt());
+    }
+
+    @Test
+    public void flushesAfterTheMaxSessionLength() throws Exception {
+        coalescer.setMaxSessionLength(0);
+        sendEvent(mkEdit("text_insert", "A.java", "a", "ab"));
+        sendEvent(mkEdit("text_insert", "A.java", "ab", "abc"));
+
+        assertReceivedExactly(0, 1);
+    }
+
+    @Test
+    public void flushesOnClose() {
+        sendEvent(mkEdit("text_insert", "A.java", "a", "ab"));
+        coalescer.close();
+
+        assertReceivedExactly(0);
+    }
+}
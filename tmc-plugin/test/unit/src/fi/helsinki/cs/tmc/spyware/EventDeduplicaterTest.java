@@ -65,4 +65,43 @@ public class EventDeduplicaterTest extends EventForwardedTestBase {
         
         assertReceivedExactly(0, 1, 2);
     }
+
+    @Test
+    public void testTreatsDeltasAsPartOfTheSameSequence() {
+        LoggableEvent ev0 = mkEvent("ex1", "snap", "full1");
+        LoggableEvent ev1 = mkEvent("ex1", "snap_delta", "delta1");
+        LoggableEvent ev2 = mkEvent("ex1", "snap", "full1");
+        LoggableEvent ev3 = mkEvent("ex1", "snap", "full1");
+        
+        sendEvent(ev0);
+        sendEvent(ev1);
+        sendEvent(ev2);
+        sendEvent(ev3);
+        
+        assertReceivedExactly(0, 1, 2);
+    }
+    
+    @Test
+    public void testDiscardsConsecutiveDuplicateDeltas() {
+        LoggableEvent ev0 = mkEvent("ex1", "snap_delta", "delta1");
+        LoggableEvent ev1 = mkEvent("ex1", "snap_delta", "delta1");
+        LoggableEvent ev2 = mkEvent("ex1", "snap", "delta1");
+        
+        sendEvent(ev0);
+        sendEvent(ev1);
+        sendEvent(ev2);
+        
+        assertReceivedExactly(0, 2);
+    }
+    
+    @Test
+    public void testComparesMetadataOfDeltas() {
+        LoggableEvent ev0 = new LoggableEvent("course1", "ex1", "snap_delta", new byte[0], "{\"deleted_files\":[\"A\"]}");
+        LoggableEvent ev1 = new LoggableEvent("course1", "ex1", "snap_delta", new byte[0], "{\"deleted_files\":[\"B\"]}");
+        
+        sendEvent(ev0);
+        sendEvent(ev1);
+        
+        assertReceivedExactly(0, 1);
+    }
 }
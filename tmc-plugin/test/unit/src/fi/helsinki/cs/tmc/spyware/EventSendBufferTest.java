@@ -3,14 +3,19 @@ package fi.helsinki.cs.tmc.spyware;
 import fi.helsinki.cs.tmc.data.Course;
 import fi.helsinki.cs.tmc.model.CourseDb;
 import fi.helsinki.cs.tmc.model.ServerAccess;
+import fi.helsinki.cs.tmc.testing.Benchmarks;
 import fi.helsinki.cs.tmc.utilities.CancellableCallable;
+import fi.helsinki.cs.tmc.utilities.http.FailedHttpResponseException;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -18,6 +23,8 @@ import org.mockito.ArgumentCaptor;
 import org.mockito.Captor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import static org.mockito.Mockito.*;
 import static org.mockito.Matchers.*;
 import static org.junit.Assert.*;
@@ -46,7 +53,9 @@ public class EventSendBufferTest {
     private volatile int sendOperationsFinished;
 
     @Captor
-    private ArgumentCaptor<LoggableEvent[]> savedEvents;
+    private ArgumentCaptor<LoggableEvent[]> appendedEvents;
+    @Captor
+    private ArgumentCaptor<Integer> discardedCounts;
 
     private EventSendBuffer sender;
 
@@ -86,7 +95,8 @@ public class EventSendBufferTest {
         });
 
         when(eventStore.load()).thenReturn(new LoggableEvent[0]);
-        doNothing().when(eventStore).save(savedEvents.capture());
+        doNothing().when(eventStore).append(appendedEvents.capture());
+        doNothing().when(eventStore).discard(discardedCounts.capture());
 
         sender = new EventSendBuffer(settings, serverAccess, courseDb, eventStore);
     }
@@ -106,6 +116,22 @@ public class EventSendBufferTest {
     private LoggableEvent ev4 = mkEvent(4);
     private LoggableEvent ev5 = mkEvent(5);
 
+    private LoggableEvent[] allAppendedEvents() {
+        ArrayList<LoggableEvent> result = new ArrayList<LoggableEvent>();
+        for (LoggableEvent[] events : appendedEvents.getAllValues()) {
+            result.addAll(Arrays.asList(events));
+        }
+        return result.toArray(new LoggableEvent[0]);
+    }
+
+    private int totalDiscarded() {
+        int sum = 0;
+        for (int count : discardedCounts.getAllValues()) {
+            sum += count;
+        }
+        return sum;
+    }
+
 
     @Test
     public void sendsEventsOnRequest() throws TimeoutException, InterruptedException {
@@ -138,6 +164,170 @@ public class EventSendBufferTest {
         assertEquals(wayTooMuch, sum);
     }
 
+    @Test
+    public void limitsEstimatedBytesPerSend() throws TimeoutException, InterruptedException {
+        sender.setMaxBytesPerSend(EventSendBuffer.MIN_BYTES_PER_SEND);
+        for (int i = 0; i < 20; ++i) {
+            sender.receiveEvent(new LoggableEvent("foo", "bar", "baz", new byte[4000]));
+        }
+        sender.sendNow();
+        sender.waitUntilCurrentSendingFinished(1000);
+
+        int sum = 0;
+        for (ArrayList<LoggableEvent> msg : sentEvents.getAllValues()) {
+            assertTrue(msg.size() <= 4);
+            sum += msg.size();
+        }
+        assertEquals(20, sum);
+    }
+
+    @Test
+    public void sendsEventLargerThanByteLimitAlone() throws TimeoutException, InterruptedException {
+        sender.setMaxBytesPerSend(EventSendBuffer.MIN_BYTES_PER_SEND);
+        LoggableEvent huge = new LoggableEvent("foo", "bar", "baz", new byte[EventSendBuffer.MIN_BYTES_PER_SEND * 2]);
+        sender.receiveEvent(huge);
+        sender.receiveEvent(ev1);
+        sender.sendNow();
+        sender.waitUntilCurrentSendingFinished(1000);
+
+        assertEquals(2, sentEvents.getAllValues().size());
+        assertArrayEquals(new LoggableEvent[] { huge }, sentEvents.getAllValues().get(0).toArray(new LoggableEvent[0]));
+        assertArrayEquals(new LoggableEvent[] { ev1 }, sentEvents.getAllValues().get(1).toArray(new LoggableEvent[0]));
+    }
+
+    @Test
+    public void splitsBatchWhenServerRespondsWithTooLarge() throws TimeoutException, InterruptedException {
+        final int serverLimit = 5;
+        final List<Integer> acceptedBatchSizes = new ArrayList<Integer>();
+        when(serverAccess.getSendEventLogJob(anyString(), anyListOf(LoggableEvent.class))).thenAnswer(new Answer<CancellableCallable<Object>>() {
+            @Override
+            public CancellableCallable<Object> answer(InvocationOnMock invocation) throws Throwable {
+                final List<?> events = (List<?>)invocation.getArguments()[1];
+                return new CancellableCallable<Object>() {
+                    @Override
+                    public Object call() throws Exception {
+                        if (events.size() > serverLimit) {
+                            throw new FailedHttpResponseException(413, null);
+                        }
+                        acceptedBatchSizes.add(events.size());
+                        return null;
+                    }
+
+                    @Override
+                    public boolean cancel() {
+                        return true;
+                    }
+                };
+            }
+        });
+
+        for (int i = 0; i < 40; ++i) {
+            sender.receiveEvent(new LoggableEvent("foo", "bar", "baz", new byte[1000]));
+        }
+        sender.sendNow();
+        sender.waitUntilCurrentSendingFinished(5000);
+
+        int sum = 0;
+        for (int size : acceptedBatchSizes) {
+            sum += size;
+        }
+        assertEquals(40, sum);
+    }
+
+    @Test
+    public void stopsSendingAfterAFailure() throws TimeoutException, InterruptedException {
+        sendException = new RuntimeException("oh no");
+        sender.setMaxEventsPerSend(1);
+        sender.receiveEvent(ev1);
+        sender.receiveEvent(ev2);
+        sender.sendNow();
+        sender.waitUntilCurrentSendingFinished(1000);
+
+        assertEquals(1, sendOperationsStarted);
+    }
+
+    @Test
+    public void acceptsEventsFromManyProducersWhileSaving() throws Exception {
+        final int producers = 8;
+        final int perProducer = 20000;
+        sender.setSendingInterval(10000000);
+        sender.setAutosendThreshold(Integer.MAX_VALUE);
+        sender.setSavingInterval(1);
+
+        // Counted as they come since saves keep appending in the background
+        final AtomicLong appended = new AtomicLong();
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                appended.addAndGet(((LoggableEvent[])invocation.getArguments()[0]).length);
+                return null;
+            }
+        }).when(eventStore).append(any(LoggableEvent[].class));
+
+        runProducers(producers, perProducer);
+        sender.saveNow(5000);
+
+        assertEquals(producers * perProducer, appended.get());
+    }
+
+    @Test
+    public void benchmarkReceiveEventWithManyProducers() throws Exception {
+        Benchmarks.assumeEnabled();
+        final int perProducer = 20000;
+        sender.setSendingInterval(10000000);
+        sender.setAutosendThreshold(Integer.MAX_VALUE);
+        sender.setSavingInterval(1);
+        runProducers(4, perProducer); // Warm-up
+
+        StringBuilder report = new StringBuilder("receiveEvent while saving every 1ms:");
+        for (int producers = 1; producers <= 8; producers *= 2) {
+            long[] nanos = runProducers(producers, perProducer);
+            report.append(" ").append(producers).append(producers == 1 ? " producer: " : " producers: ")
+                    .append(nanos[0] / (producers * perProducer)).append("ns on average, ")
+                    .append(nanos[1] / 1000).append("us at most.");
+        }
+        Benchmarks.report(report.toString());
+    }
+
+    // Returns the total and the longest time spent in receiveEvent in nanoseconds.
+    private long[] runProducers(int producers, final int perProducer) throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicLong totalNanos = new AtomicLong();
+        final AtomicLong maxNanos = new AtomicLong();
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; ++p) {
+            threads[p] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                    long total = 0;
+                    long max = 0;
+                    for (int i = 0; i < perProducer; ++i) {
+                        long before = System.nanoTime();
+                        sender.receiveEvent(ev1);
+                        long elapsed = System.nanoTime() - before;
+                        total += elapsed;
+                        max = Math.max(max, elapsed);
+                    }
+                    totalNanos.addAndGet(total);
+                    synchronized (maxNanos) {
+                        maxNanos.set(Math.max(maxNanos.get(), max));
+                    }
+                }
+            };
+            threads[p].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return new long[] { totalNanos.get(), maxNanos.get() };
+    }
+
     @Test
     public void picksServerRandomly() throws TimeoutException, InterruptedException {
         String[] expected = new String[] { "http://example1.com/", "http://example2.com/" };
@@ -175,15 +365,81 @@ public class EventSendBufferTest {
         sender.receiveEvent(ev1);
         sender.setSavingInterval(100);
         Thread.sleep(250);
-        verify(eventStore, atLeast(1)).save(any(LoggableEvent[].class));
+        verify(eventStore, atLeast(1)).append(any(LoggableEvent[].class));
 
         sender.receiveEvent(ev2);
         Thread.sleep(250);
 
-        verify(eventStore, atLeast(2)).save(any(LoggableEvent[].class));
+        verify(eventStore, atLeast(2)).append(any(LoggableEvent[].class));
 
         LoggableEvent[] expecteds = new LoggableEvent[] { ev1, ev2 };
-        assertArrayEquals(expecteds, savedEvents.getValue());
+        assertArrayEquals(expecteds, allAppendedEvents());
+    }
+
+    @Test
+    public void appendsOnlyNewEventsOnEachSave() throws TimeoutException, InterruptedException {
+        sender.receiveEvent(ev1);
+        sender.receiveEvent(ev2);
+        sender.saveNow(1000);
+        sender.receiveEvent(ev3);
+        sender.saveNow(1000);
+
+        assertArrayEquals(new LoggableEvent[] { ev1, ev2 }, appendedEvents.getAllValues().get(0));
+        assertArrayEquals(new LoggableEvent[] { ev3 }, appendedEvents.getAllValues().get(1));
+    }
+
+    @Test
+    public void discardsSentEventsFromStore() throws TimeoutException, InterruptedException {
+        sender.receiveEvent(ev1);
+        sender.receiveEvent(ev2);
+        sender.saveNow(1000);
+
+        sender.sendNow();
+        sender.waitUntilCurrentSendingFinished(1000);
+        sender.saveNow(1000);
+
+        assertEquals(2, totalDiscarded());
+        assertArrayEquals(new LoggableEvent[] { ev1, ev2 }, allAppendedEvents());
+    }
+
+    @Test
+    public void doesNotStoreEventsThatWereSentBeforeBeingSaved() throws TimeoutException, InterruptedException {
+        sender.receiveEvent(ev1);
+        sender.sendNow();
+        sender.waitUntilCurrentSendingFinished(1000);
+        sender.saveNow(1000);
+
+        assertEquals(0, allAppendedEvents().length);
+        assertEquals(0, totalDiscarded());
+    }
+
+    @Test
+    public void rewritesStoreAfterAFailedSave() throws TimeoutException, InterruptedException, IOException {
+        doThrow(new IOException("disk full")).doNothing().when(eventStore).append(any(LoggableEvent[].class));
+
+        sender.receiveEvent(ev1);
+        sender.saveNow(1000);
+        sender.receiveEvent(ev2);
+        sender.saveNow(1000);
+
+        verify(eventStore).clear();
+        verify(eventStore, times(2)).append(appendedEvents.capture());
+        assertArrayEquals(new LoggableEvent[] { ev1, ev2 }, appendedEvents.getValue());
+    }
+
+    @Test
+    public void discardsExcessStoredEventsOnLoad() throws IOException, TimeoutException, InterruptedException {
+        sender.close();
+        when(eventStore.load()).thenReturn(new LoggableEvent[] { ev1, ev2, ev3 });
+        sender = new EventSendBuffer(settings, serverAccess, courseDb, eventStore);
+        sender.setMaxEvents(2);
+        sender.saveNow(1000);
+
+        assertEquals(1, totalDiscarded());
+
+        sender.sendNow();
+        sender.waitUntilCurrentSendingFinished(1000);
+        assertArrayEquals(new LoggableEvent[] { ev2, ev3 }, sentEvents.getValue().toArray(new LoggableEvent[0]));
     }
 
     @Test
@@ -233,7 +489,7 @@ public class EventSendBufferTest {
         sender.waitUntilCurrentSendingFinished(1000);
 
         LoggableEvent[] expecteds = new LoggableEvent[] { ev2, ev3, ev4 };
-        assertArrayEquals(expecteds, savedEvents.getValue());
+        assertArrayEquals(expecteds, appendedEvents.getAllValues().get(0));
         assertArrayEquals(expecteds, sentEvents.getValue().toArray(new LoggableEvent[0]));
     }
 
@@ -302,7 +558,7 @@ public class EventSendBufferTest {
 
         Thread.sleep(100); // Give save task time to fire
 
-        assertEquals(1, savedEvents.getAllValues().size());
+        assertEquals(1, appendedEvents.getAllValues().size());
     }
 
     @Test
@@ -313,7 +569,7 @@ public class EventSendBufferTest {
         sender.waitUntilCurrentSendingFinished(1000);
 
         sender.saveNow(1000); // Save explicitly because there's no autosave after a failed send
-        assertArrayEquals(new LoggableEvent[] { ev1 }, savedEvents.getValue());
+        assertArrayEquals(new LoggableEvent[] { ev1 }, appendedEvents.getValue());
 
         sendException = null;
         sender.sendNow();
@@ -324,6 +580,6 @@ public class EventSendBufferTest {
         assertArrayEquals(new LoggableEvent[] { ev1 }, sentEvents.getValue().toArray(new LoggableEvent[0]));
 
         Thread.sleep(100); // Wait for save
-        assertEquals(0, savedEvents.getValue().length);
+        assertEquals(1, totalDiscarded());
     }
 }
@@ -0,0 +1,135 @@
+package fi.helsinki.cs.tmc.spyware;
+
+import fi.helsinki.cs.tmc.testing.TempTestDir;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class EventStoreTest {
+    private TempTestDir tempDir;
+    private EventStore store;
+
+    @Before
+    public void setUp() throws IOException {
+        tempDir = new TempTestDir();
+        store = new EventStore(tempDir.get(), 100);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        tempDir.destroy();
+    }
+
+    private LoggableEvent mkEvent(int n) {
+        return new LoggableEvent("course" + n, "exercise" + n, "type" + n, ("data" + n).getBytes());
+    }
+
+    private LoggableEvent[] mkEvents(int from, int to) {
+        LoggableEvent[] result = new LoggableEvent[to - from];
+        for (int i = from; i < to; ++i) {
+            result[i - from] = mkEvent(i);
+        }
+        return result;
+    }
+
+    private void assertEventsEqual(LoggableEvent[] expected, LoggableEvent[] actual) {
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; ++i) {
+            assertEquals(expected[i].getCourseName(), actual[i].getCourseName());
+            assertEquals(expected[i].getExerciseName(), actual[i].getExerciseName());
+            assertEquals(expected[i].getEventType(), actual[i].getEventType());
+            assertArrayEquals(expected[i].getData(), actual[i].getData());
+            assertEquals(expected[i].getHappenedAt(), actual[i].getHappenedAt());
+        }
+    }
+
+    private File[] segmentFiles() {
+        return tempDir.get().listFiles(new java.io.FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(".seg");
+            }
+        });
+    }
+
+    @Test
+    public void loadsAppendedEvents() throws IOException {
+        LoggableEvent[] events = mkEvents(0, 10);
+        store.load();
+        store.append(events);
+
+        assertEventsEqual(events, new EventStore(tempDir.get(), 100).load());
+    }
+
+    @Test
+    public void splitsEventsIntoSegments() throws IOException {
+        store.append(mkEvents(0, 10));
+        assertTrue(segmentFiles().length > 1);
+    }
+
+    @Test
+    public void doesNotReturnDiscardedEvents() throws IOException {
+        LoggableEvent[] events = mkEvents(0, 10);
+        store.append(events);
+        store.discard(4);
+
+        LoggableEvent[] expected = new LoggableEvent[6];
+        System.arraycopy(events, 4, expected, 0, 6);
+        assertEventsEqual(expected, new EventStore(tempDir.get(), 100).load());
+    }
+
+    @Test
+    public void deletesFullyDiscardedSegments() throws IOException {
+        store.append(mkEvents(0, 10));
+        int segmentsBefore = segmentFiles().length;
+        store.discard(9);
+        assertTrue(segmentFiles().length < segmentsBefore);
+        assertEquals(1, new EventStore(tempDir.get(), 100).load().length);
+
+        store.discard(1);
+        assertEquals(0, segmentFiles().length);
+    }
+
+    @Test
+    public void continuesSequenceAfterAllSegmentsAreDeleted() throws IOException {
+        store.append(mkEvents(0, 5));
+        store.discard(5);
+        LoggableEvent[] events = mkEvents(5, 8);
+        store.append(events);
+
+        assertEventsEqual(events, new EventStore(tempDir.get(), 100).load());
+    }
+
+    @Test
+    public void ignoresTornRecordAtEndOfSegment() throws IOException {
+        store = new EventStore(tempDir.get(), 1024 * 1024);
+        LoggableEvent[] events = mkEvents(0, 3);
+        store.append(events);
+
+        File segment = segmentFiles()[0];
+        RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+        try {
+            raf.setLength(raf.length() - 3);
+        } finally {
+            raf.close();
+        }
+
+        store = new EventStore(tempDir.get(), 1024 * 1024);
+        LoggableEvent[] loaded = store.load();
+        assertEventsEqual(new LoggableEvent[] { events[0], events[1] }, loaded);
+
+        store.append(new LoggableEvent[] { events[2] });
+        assertEventsEqual(events, new EventStore(tempDir.get(), 1024 * 1024).load());
+    }
+
+    @Test
+    public void clearRemovesAllEvents() throws IOException {
+        store.append(mkEvents(0, 10));
+        store.clear();
+        assertEquals(0, new EventStore(tempDir.get(), 100).load().length);
+    }
+}
@@ -0,0 +1,175 @@
+package fi.helsinki.cs.tmc.spyware.eventsources;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import fi.helsinki.cs.tmc.data.Exercise;
+import fi.helsinki.cs.tmc.spyware.EventReceiver;
+import fi.helsinki.cs.tmc.spyware.LoggableEvent;
+import fi.helsinki.cs.tmc.testing.TempTestDir;
+import fi.helsinki.cs.tmc.utilities.JsonMaker;
+import fi.helsinki.cs.tmc.utilities.zip.RecursiveZipper;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class DeltaSnapshotterTest {
+    private TempTestDir tempDir;
+    private File projectDir;
+    private RecursiveZipper zipper;
+    private Exercise exercise;
+    private DeltaSnapshotter snapshotter;
+    private List<LoggableEvent> events;
+    private EventReceiver receiver;
+
+    @Before
+    public void setUp() throws IOException {
+        tempDir = new TempTestDir();
+        projectDir = new File(tempDir.get(), "MyExercise");
+        writeFile("src/A.java", "class A {}");
+        writeFile("src/pkg/B.java", "class B {}");
+        zipper = new RecursiveZipper(projectDir, RecursiveZipper.ZIP_ALL_THE_THINGS);
+        exercise = new Exercise("MyExercise", "course");
+        snapshotter = new DeltaSnapshotter();
+        events = new ArrayList<LoggableEvent>();
+        receiver = new EventReceiver() {
+            @Override
+            public void receiveEvent(LoggableEvent event) {
+                events.add(event);
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        tempDir.destroy();
+    }
+
+    private void writeFile(String path, String content) throws IOException {
+        FileUtils.write(new File(projectDir, path), content, "UTF-8");
+    }
+
+    private void snapshot() throws IOException {
+        snapshotter.sendSnapshot(exercise, projectDir, zipper, JsonMaker.create().add("cause", "file_change"), receiver);
+    }
+
+    private LoggableEvent lastEvent() {
+        return events.get(events.size() - 1);
+    }
+
+    private JsonObject lastMetadata() {
+        return new JsonParser().parse(lastEvent().getMetadata()).getAsJsonObject();
+    }
+
+    private List<String> fileEntries(byte[] zip) throws IOException {
+        List<String> result = new ArrayList<String>();
+        ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(zip));
+        ZipEntry entry;
+        while ((entry = zis.getNextEntry()) != null) {
+            if (!entry.isDirectory()) {
+                result.add(entry.getName());
+            }
+        }
+        return result;
+    }
+
+    @Test
+    public void firstSnapshotIsFull() throws IOException {
+        snapshot();
+
+        assertEquals(1, events.size());
+        assertEquals("code_snapshot", lastEvent().getEventType());
+        List<String> files = fileEntries(lastEvent().getData());
+        assertTrue(files.contains("MyExercise/src/A.java"));
+        assertTrue(files.contains("MyExercise/src/pkg/B.java"));
+        assertEquals("file_change", lastMetadata().get("cause").getAsString());
+    }
+
+    @Test
+    public void sendsOnlyChangedFilesAfterKeyframe() throws IOException {
+        snapshot();
+        String keyframeHash = DigestUtils.md5Hex(lastEvent().getData());
+        writeFile("src/pkg/B.java", "class B { int x; }");
+        writeFile("src/C.java", "class C {}");
+        snapshot();
+
+        assertEquals(2, events.size());
+        assertEquals("code_snapshot_delta", lastEvent().getEventType());
+        List<String> files = fileEntries(lastEvent().getData());
+        assertEquals(2, files.size());
+        assertTrue(files.contains("MyExercise/src/pkg/B.java"));
+        assertTrue(files.contains("MyExercise/src/C.java"));
+        assertEquals(keyframeHash, lastMetadata().get("base_keyframe").getAsString());
+        assertNull(lastMetadata().get("deleted_files"));
+    }
+
+    @Test
+    public void listsDeletedFiles() throws IOException {
+        snapshot();
+        new File(projectDir, "src/A.java").delete();
+        snapshot();
+
+        assertEquals("code_snapshot_delta", lastEvent().getEventType());
+        assertEquals(0, fileEntries(lastEvent().getData()).size());
+        assertEquals("MyExercise/src/A.java", lastMetadata().getAsJsonArray("deleted_files").get(0).getAsString());
+    }
+
+    @Test
+    public void sendsNothingWhenNothingChanged() throws IOException {
+        snapshot();
+        writeFile("src/A.java", "class A {}");
+        snapshot();
+
+        assertEquals(1, events.size());
+    }
+
+    @Test
+    public void sendsKeyframeAfterInterval() throws IOException {
+        snapshotter.setKeyframeInterval(2);
+        snapshot();
+        for (int i = 0; i < 3; ++i) {
+            writeFile("src/A.java", "class A { int x" + i + "; }");
+            snapshot();
+        }
+
+        assertEquals(4, events.size());
+        assertEquals("code_snapshot", events.get(0).getEventType());
+        assertEquals("code_snapshot_delta", events.get(1).getEventType());
+        assertEquals("code_snapshot_delta", events.get(2).getEventType());
+        assertEquals("code_snapshot", events.get(3).getEventType());
+    }
+
+    @Test
+    public void sendsOnlyKeyframesWhenIntervalIsZero() throws IOException {
+        snapshotter.setKeyframeInterval(0);
+        snapshot();
+        writeFile("src/A.java", "class A { int x; }");
+        snapshot();
+
+        assertEquals(2, events.size());
+        assertEquals("code_snapshot", events.get(1).getEventType());
+    }
+
+    @Test
+    public void sendsKeyframeAfterProjectIsForgotten() throws IOException {
+        snapshot();
+        snapshotter.forgetProject(projectDir);
+        writeFile("src/A.java", "class A { int x; }");
+        snapshot();
+
+        assertEquals("code_snapshot", lastEvent().getEventType());
+    }
+}
@@ -0,0 +1,107 @@
+package fi.helsinki.cs.tmc.spyware.eventsources;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import javax.swing.text.Document;
+import javax.swing.text.PlainDocument;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class DocumentPatcherCacheTest {
+    private List<Document> evicted;
+    private DocumentPatcherCache cache;
+
+    @Before
+    public void setUp() {
+        evicted = new ArrayList<Document>();
+        cache = new DocumentPatcherCache(100, new DocumentPatcherCache.EvictionListener() {
+            @Override
+            public void evicted(Document doc) {
+                evicted.add(doc);
+            }
+        });
+    }
+
+    private String text(int length) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < length; ++i) {
+            sb.append('a');
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void itShouldEvictLeastRecentlyUsedDocumentsOverTheBudget() {
+        Document doc1 = new PlainDocument();
+        Document doc2 = new PlainDocument();
+        Document doc3 = new PlainDocument();
+        cache.put(doc1, new DocumentPatcher(text(40)));
+        cache.put(doc2, new DocumentPatcher(text(40)));
+        assertNotNull(cache.get(doc1));
+
+        cache.put(doc3, new DocumentPatcher(text(40)));
+
+        assertEquals(1, evicted.size());
+        assertSame(doc2, evicted.get(0));
+        assertNull(cache.get(doc2));
+        assertNotNull(cache.get(doc1));
+        assertNotNull(cache.get(doc3));
+        assertEquals(2, cache.size());
+        assertEquals(80, cache.getTotalCharacters());
+        assertEquals(1, cache.getEvictions());
+    }
+
+    @Test
+    public void itShouldEvictWhenCopiesGrow() {
+        Document doc1 = new PlainDocument();
+        Document doc2 = new PlainDocument();
+        cache.put(doc1, new DocumentPatcher(text(40)));
+        cache.put(doc2, new DocumentPatcher(text(40)));
+
+        cache.get(doc2).insert(0, text(30));
+        cache.trim();
+
+        assertEquals(1, evicted.size());
+        assertSame(doc1, evicted.get(0));
+        assertEquals(70, cache.getTotalCharacters());
+    }
+
+    @Test
+    public void itShouldKeepTheMostRecentDocumentEvenIfOverBudget() {
+        Document doc = new PlainDocument();
+        cache.put(doc, new DocumentPatcher(text(500)));
+
+        assertTrue(evicted.isEmpty());
+        assertNotNull(cache.get(doc));
+    }
+
+    @Test
+    public void itShouldRemoveWithoutNotifying() {
+        Document doc = new PlainDocument();
+        cache.put(doc, new DocumentPatcher("abc"));
+        cache.remove(doc);
+
+        assertNull(cache.get(doc));
+        assertEquals(0, cache.size());
+        assertTrue(evicted.isEmpty());
+    }
+
+    @Test
+    public void itShouldDropCopiesOfCollectedDocuments() throws Exception {
+        Document doc = new PlainDocument();
+        WeakReference<Document> ref = new WeakReference<Document>(doc);
+        cache.put(doc, new DocumentPatcher("abc"));
+        doc = null;
+
+        for (int i = 0; i < 50 && (ref.get() != null || cache.size() > 0); ++i) {
+            System.gc();
+            Thread.sleep(10);
+        }
+
+        assertEquals(0, cache.size());
+        assertEquals(1, cache.getCollections());
+        assertTrue(evicted.isEmpty());
+    }
+}
@@ -0,0 +1,104 @@
+package fi.helsinki.cs.tmc.spyware.eventsources;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+import name.fraser.neil.plaintext.diff_match_patch;
+import name.fraser.neil.plaintext.diff_match_patch.Patch;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class DocumentPatcherTest {
+    private final diff_match_patch dmp = new diff_match_patch();
+
+    private String applyAsText(String text, List<Patch> patches) {
+        // Through the text form, as the server would see it
+        LinkedList<Patch> parsed = new LinkedList<Patch>(dmp.patch_fromText(dmp.patch_toText(patches)));
+        Object[] result = dmp.patch_apply(parsed, text);
+        for (boolean applied : (boolean[])result[1]) {
+            assertTrue(applied);
+        }
+        return (String)result[0];
+    }
+
+    @Test
+    public void itShouldMakePatchesOfInserts() {
+        DocumentPatcher patcher = new DocumentPatcher("public class Foo {}");
+        List<Patch> patches = patcher.insert(18, "\n    int x;\n");
+
+        assertEquals("public class Foo {\n    int x;\n}", patcher.getText());
+        assertEquals(patcher.getText(), applyAsText("public class Foo {}", patches));
+        assertEquals("@@ -15,5 +15,17 @@\n oo %7B\n+%0A    int x;%0A\n %7D\n", dmp.patch_toText(patches));
+    }
+
+    @Test
+    public void itShouldMakePatchesOfRemovals() {
+        DocumentPatcher patcher = new DocumentPatcher("abcdefghij");
+        List<Patch> patches = patcher.remove(0, 3);
+
+        assertEquals("defghij", patcher.getText());
+        assertEquals("defghij", applyAsText("abcdefghij", patches));
+    }
+
+    @Test
+    public void itShouldMakeNoPatchOfAnEmptyEdit() {
+        DocumentPatcher patcher = new DocumentPatcher("abc");
+        assertTrue(patcher.insert(1, "").isEmpty());
+        assertTrue(patcher.remove(1, 0).isEmpty());
+    }
+
+    @Test
+    public void itShouldMakePatchesThatApplyForRandomEdits() {
+        Random random = new Random(3);
+        String text = "class A {\n    void foo() {\n        return;\n    }\n}\n";
+        DocumentPatcher patcher = new DocumentPatcher(text);
+        for (int i = 0; i < 2000; ++i) {
+            List<Patch> patches;
+            if (random.nextInt(3) > 0 || text.isEmpty()) {
+                int offset = random.nextInt(text.length() + 1);
+                String inserted = "xyz; {}\n".substring(0, 1 + random.nextInt(7));
+                patches = patcher.insert(offset, inserted);
+            } else {
+                int offset = random.nextInt(text.length());
+                int length = 1 + random.nextInt(Math.min(5, text.length() - offset));
+                patches = patcher.remove(offset, length);
+            }
+            text = applyAsText(text, patches);
+            assertEquals(patcher.getText(), text);
+        }
+    }
+
+    @Test
+    public void itShouldNotSplitSurrogatePairsInContext() {
+        String emoji = "😀";
+        DocumentPatcher patcher = new DocumentPatcher("abc" + emoji + "defg" + emoji + "h");
+        List<Patch> patches = patcher.insert(6, "X");
+        for (Patch patch : patches) {
+            String context = patch.diffs.getFirst().text;
+            assertFalse(Character.isLowSurrogate(context.charAt(0)));
+        }
+        assertEquals(patcher.getText(), applyAsText("abc" + emoji + "defg" + emoji + "h", patches));
+    }
+
+    @Test
+    public void itShouldAskForAConsistencyCheckPeriodically() {
+        DocumentPatcher patcher = new DocumentPatcher("");
+        for (int i = 0; i < DocumentPatcher.CONSISTENCY_CHECK_INTERVAL - 1; ++i) {
+            patcher.insert(patcher.length(), "a");
+        }
+        assertFalse(patcher.needsConsistencyCheck());
+        patcher.insert(0, "b");
+        assertTrue(patcher.needsConsistencyCheck());
+
+        assertTrue(patcher.checkConsistency(patcher.getText()));
+        assertFalse(patcher.needsConsistencyCheck());
+
+        assertFalse(patcher.checkConsistency("something else"));
+        assertEquals("something else", patcher.getText());
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void itShouldRejectEditsOutsideTheText() {
+        new DocumentPatcher("abc").remove(2, 5);
+    }
+}
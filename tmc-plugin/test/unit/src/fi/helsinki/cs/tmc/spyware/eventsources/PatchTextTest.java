@@ -0,0 +1,159 @@
+package fi.helsinki.cs.tmc.spyware.eventsources;
+
+import fi.helsinki.cs.tmc.testing.Benchmarks;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+import name.fraser.neil.plaintext.diff_match_patch;
+import name.fraser.neil.plaintext.diff_match_patch.Patch;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class PatchTextTest {
+    private final diff_match_patch dmp = new diff_match_patch();
+
+    private void assertSameAsDiffMatchPatch(List<Patch> patches) {
+        assertEquals(dmp.patch_toText(patches), PatchText.toText(patches));
+    }
+
+    private String javaSource(int minLength) {
+        StringBuilder sb = new StringBuilder("package foo;\n\nimport java.util.*;\n\npublic class Foo {\n");
+        int i = 0;
+        while (sb.length() < minLength) {
+            sb.append("    // Laskee summan: ä + ö = \"").append(i).append("\" & #").append(i).append(" 😀\n");
+            sb.append("    public int method").append(i).append("(List<String> xs) {\n");
+            sb.append("        return xs.size() % 2 == 0 ? xs.get(0).length() : -1; /* ~'!@$ */\n");
+            sb.append("    }\n\n");
+            i++;
+        }
+        return sb.append("}\n").toString();
+    }
+
+    @Test
+    public void itShouldEncodeEveryAsciiCharacterLikeDiffMatchPatch() {
+        StringBuilder all = new StringBuilder();
+        for (char c = 0; c < 128; ++c) {
+            all.append(c);
+        }
+        assertSameAsDiffMatchPatch(dmp.patch_make("", all.toString()));
+        assertSameAsDiffMatchPatch(dmp.patch_make(all.toString(), "x" + all + "y"));
+    }
+
+    @Test
+    public void itShouldEncodeNonAsciiCharactersLikeDiffMatchPatch() {
+        assertSameAsDiffMatchPatch(dmp.patch_make("", "åäö € ß 日本語 ߿ࠀ￿ 😀 😀x"));
+    }
+
+    @Test
+    public void itShouldEncodeUnpairedSurrogatesLikeDiffMatchPatch() {
+        assertSameAsDiffMatchPatch(dmp.patch_make("", "a\uD83Db"));
+        assertSameAsDiffMatchPatch(dmp.patch_make("", "a\uDE00b"));
+        assertSameAsDiffMatchPatch(dmp.patch_make("", "a\uD83D"));
+        assertSameAsDiffMatchPatch(dmp.patch_make("", "\uDE00\uD83D"));
+    }
+
+    @Test
+    public void itShouldWriteTheSameCoordinates() {
+        assertSameAsDiffMatchPatch(dmp.patch_make("", ""));
+        assertSameAsDiffMatchPatch(dmp.patch_make("a", ""));
+        assertSameAsDiffMatchPatch(dmp.patch_make("", "a"));
+        assertSameAsDiffMatchPatch(dmp.patch_make("abcdefghijkl", "abcdefXghijkl"));
+        assertSameAsDiffMatchPatch(dmp.patch_make("abcdefghijkl", "abcdefhijkl"));
+        assertSameAsDiffMatchPatch(new DocumentPatcher("ab").remove(0, 1));
+    }
+
+    @Test
+    public void itShouldEncodeRandomPatchesLikeDiffMatchPatch() {
+        Random random = new Random(7);
+        String alphabet = "abc XYZ 019 \n\t%+-_.*!~'();/?:@&=$,#\"<>[]{}|\\^`åä€😀\uD83D";
+        for (int i = 0; i < 200; ++i) {
+            String before = randomString(random, alphabet, random.nextInt(100));
+            String after = randomString(random, alphabet, random.nextInt(100));
+            assertSameAsDiffMatchPatch(dmp.patch_make(before, after));
+        }
+    }
+
+    @Test
+    public void itShouldEncodeJavaSourceEditsLikeDiffMatchPatch() {
+        String source = javaSource(5000);
+        assertSameAsDiffMatchPatch(dmp.patch_make("", source));
+        for (List<Patch> patches : typeIntoSource(new DocumentPatcher(source), 300)) {
+            assertSameAsDiffMatchPatch(patches);
+        }
+    }
+
+    @Test
+    public void benchmarkPatchTextOfJavaSourceEdits() {
+        Benchmarks.assumeEnabled();
+        String source = javaSource(20000);
+        List<LinkedList<Patch>> edits = typeIntoSource(new DocumentPatcher(source), 2000);
+        List<LinkedList<Patch>> fullDocument = new ArrayList<LinkedList<Patch>>();
+        fullDocument.add(dmp.patch_make("", source));
+
+        int rounds = 10;
+        for (int warmup = 0; warmup < 20; ++warmup) {
+            timeDiffMatchPatch(edits);
+            timePatchText(edits);
+        }
+        long dmpNanos = 0;
+        long patchTextNanos = 0;
+        for (int r = 0; r < rounds; ++r) {
+            dmpNanos += timeDiffMatchPatch(edits);
+            patchTextNanos += timePatchText(edits);
+        }
+
+        Benchmarks.report("Patch text of " + edits.size() + " Java source edits: " +
+                dmpNanos / (rounds * edits.size()) + "ns per edit with diff_match_patch, " +
+                patchTextNanos / (rounds * edits.size()) + "ns per edit with PatchText.");
+        Benchmarks.report("Patch text of a " + source.length() + " character document: " +
+                timeDiffMatchPatch(fullDocument) + "ns with diff_match_patch, " +
+                timePatchText(fullDocument) + "ns with PatchText.");
+    }
+
+    private long timeDiffMatchPatch(List<LinkedList<Patch>> patchLists) {
+        long start = System.nanoTime();
+        for (LinkedList<Patch> patches : patchLists) {
+            dmp.patch_toText(patches);
+        }
+        return System.nanoTime() - start;
+    }
+
+    private long timePatchText(List<LinkedList<Patch>> patchLists) {
+        long start = System.nanoTime();
+        for (LinkedList<Patch> patches : patchLists) {
+            PatchText.toText(patches);
+        }
+        return System.nanoTime() - start;
+    }
+
+    // Types short statements at random lines and occasionally deletes some.
+    private List<LinkedList<Patch>> typeIntoSource(DocumentPatcher patcher, int edits) {
+        Random random = new Random(42);
+        String statement = "        String s = \"Hei, \" + name + \"!\"; // ä\n";
+        List<LinkedList<Patch>> result = new ArrayList<LinkedList<Patch>>();
+        int offset = patcher.getText().indexOf('{') + 2;
+        for (int i = 0; i < edits; ++i) {
+            if (i % 50 == 0) {
+                offset = patcher.getText().indexOf('\n', random.nextInt(patcher.length() - 1)) + 1;
+            }
+            if (random.nextInt(10) == 0 && offset > 0) {
+                result.add(patcher.remove(offset - 1, 1));
+                offset--;
+            } else {
+                String typed = statement.substring(i % statement.length(), i % statement.length() + 1);
+                result.add(patcher.insert(offset, typed));
+                offset++;
+            }
+        }
+        return result;
+    }
+
+    private String randomString(Random random, String alphabet, int length) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < length; ++i) {
+            sb.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,125 @@
+package fi.helsinki.cs.tmc.spyware.eventsources;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import fi.helsinki.cs.tmc.utilities.JsonMaker;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Before;
+import org.junit.Test;
+import org.openide.util.RequestProcessor;
+import static org.junit.Assert.*;
+
+public class SnapshotCoalescerTest {
+    private List<String> snapshots;
+    private SnapshotCoalescer<String> coalescer;
+
+    @Before
+    public void setUp() {
+        snapshots = Collections.synchronizedList(new ArrayList<String>());
+        coalescer = new SnapshotCoalescer<String>(new RequestProcessor("test", 2, true), new SnapshotCoalescer.SnapshotTaker<String>() {
+            @Override
+            public void takeSnapshot(String key, JsonMaker metadata) {
+                snapshots.add(key + " " + metadata);
+            }
+        });
+    }
+
+    private JsonObject change(String file) {
+        JsonObject change = new JsonObject();
+        change.addProperty("cause", "file_change");
+        change.addProperty("file", file);
+        return change;
+    }
+
+    private JsonObject metadataOf(String snapshot) {
+        return new JsonParser().parse(snapshot.substring(snapshot.indexOf(' ') + 1)).getAsJsonObject();
+    }
+
+    @Test
+    public void coalescesBurstOfChangesPerProject() throws Exception {
+        coalescer.setCoalescingDelay(60000);
+        coalescer.setMaxCoalescingDelay(60000);
+        for (int i = 0; i < 300; ++i) {
+            coalescer.changed("p1", change("File" + i + ".java"));
+        }
+        coalescer.changed("p2", change("Other.java"));
+        coalescer.flush();
+
+        assertEquals(2, snapshots.size());
+        String p1 = snapshots.get(0).startsWith("p1") ? snapshots.get(0) : snapshots.get(1);
+        JsonObject metadata = metadataOf(p1);
+        assertEquals("File299.java", metadata.get("file").getAsString());
+        assertEquals(300, metadata.get("change_count").getAsInt());
+        assertEquals(SnapshotCoalescer.MAX_LISTED_CHANGES, metadata.getAsJsonArray("changes").size());
+        assertEquals("File0.java", metadata.getAsJsonArray("changes").get(0).getAsJsonObject().get("file").getAsString());
+    }
+
+    @Test
+    public void singleChangeKeepsItsMetadata() throws Exception {
+        coalescer.setCoalescingDelay(0);
+        coalescer.changed("p1", change("A.java"));
+        coalescer.flush();
+
+        assertEquals(1, snapshots.size());
+        JsonObject metadata = metadataOf(snapshots.get(0));
+        assertEquals("A.java", metadata.get("file").getAsString());
+        assertNull(metadata.get("change_count"));
+        assertNull(metadata.get("changes"));
+    }
+
+    @Test
+    public void takesSnapshotByMaxDelayDuringContinuousChanges() throws Exception {
+        coalescer.setCoalescingDelay(300);
+        coalescer.setMaxCoalescingDelay(500);
+        long start = System.currentTimeMillis();
+        while (System.currentTimeMillis() - start < 1200) {
+            coalescer.changed("p1", change("A.java"));
+            Thread.sleep(20);
+        }
+        coalescer.flush();
+
+        assertTrue("Expected several snapshots, got " + snapshots.size(), snapshots.size() >= 2);
+        assertTrue("Expected few snapshots, got " + snapshots.size(), snapshots.size() <= 4);
+    }
+
+    @Test
+    public void flushTakesPendingSnapshotsImmediately() {
+        coalescer.setCoalescingDelay(60000);
+        coalescer.changed("p1", change("A.java"));
+        coalescer.changed("p2", change("B.java"));
+        coalescer.flush();
+
+        assertEquals(2, snapshots.size());
+    }
+
+    @Test
+    public void changesDuringSnapshotGetANewSnapshot() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger taken = new AtomicInteger();
+        SnapshotCoalescer<String> slow = new SnapshotCoalescer<String>(new RequestProcessor("test", 2, true), new SnapshotCoalescer.SnapshotTaker<String>() {
+            @Override
+            public void takeSnapshot(String key, JsonMaker metadata) {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ex) {
+                }
+                taken.incrementAndGet();
+            }
+        });
+        slow.setCoalescingDelay(0);
+        slow.changed("p1", change("A.java"));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        slow.changed("p1", change("B.java"));
+        release.countDown();
+        slow.flush();
+
+        assertEquals(2, taken.get());
+    }
+}
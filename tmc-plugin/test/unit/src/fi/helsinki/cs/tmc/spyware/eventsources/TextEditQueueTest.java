@@ -0,0 +1,287 @@
+package fi.helsinki.cs.tmc.spyware.eventsources;
+
+import fi.helsinki.cs.tmc.testing.Benchmarks;
+import fi.helsinki.cs.tmc.utilities.JsonMaker;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import javax.swing.text.PlainDocument;
+import name.fraser.neil.plaintext.diff_match_patch;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openide.util.RequestProcessor;
+import static org.junit.Assert.*;
+
+public class TextEditQueueTest {
+    private List<TextEditQueue.Edit> processed;
+    private RequestProcessor requestProcessor;
+    private TextEditQueue queue;
+    private PlainDocument doc;
+    private CountDownLatch releaseWorker;
+    private volatile boolean readTextWhenProcessing = false;
+    private volatile String textRead;
+
+    private final DocumentListener recordingListener = new DocumentListener() {
+        @Override
+        public void insertUpdate(DocumentEvent e) {
+            record(e);
+        }
+
+        @Override
+        public void removeUpdate(DocumentEvent e) {
+            record(e);
+        }
+
+        @Override
+        public void changedUpdate(DocumentEvent e) {
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        processed = Collections.synchronizedList(new ArrayList<TextEditQueue.Edit>());
+        requestProcessor = new RequestProcessor("test", 1, true);
+        queue = new TextEditQueue(requestProcessor, new TextEditQueue.EditProcessor() {
+            @Override
+            public void process(TextEditQueue.Edit edit) {
+                processed.add(edit);
+                if (readTextWhenProcessing) {
+                    readTextWhenProcessing = false;
+                    textRead = queue.readFullText(edit.getDocument());
+                }
+            }
+        });
+        doc = new PlainDocument();
+        doc.insertString(0, "class A {}", null);
+        doc.addDocumentListener(recordingListener);
+    }
+
+    @After
+    public void tearDown() {
+        if (releaseWorker != null) {
+            releaseWorker.countDown();
+        }
+    }
+
+    private void record(DocumentEvent e) {
+        try {
+            queue.record(e);
+        } catch (BadLocationException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    // Keeps the worker busy so that edits queue up.
+    private void blockWorker() throws InterruptedException {
+        releaseWorker = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(1);
+        requestProcessor.post(new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    releaseWorker.await();
+                } catch (InterruptedException ex) {
+                }
+            }
+        });
+        started.await();
+    }
+
+    private void releaseWorkerAndWait() {
+        releaseWorker.countDown();
+        queue.waitUntilIdle();
+    }
+
+    private void type(int offset, String text) throws BadLocationException {
+        for (int i = 0; i < text.length(); ++i) {
+            doc.insertString(offset + i, text.substring(i, i + 1), null);
+        }
+    }
+
+    @Test
+    public void firstEditCarriesTheFullText() throws Exception {
+        doc.insertString(9, "x", null);
+        doc.insertString(10, "y", null);
+        queue.waitUntilIdle();
+
+        assertEquals(2, processed.size());
+        assertEquals("class A {x}", processed.get(0).getFullText());
+        assertNull(processed.get(1).getFullText());
+    }
+
+    @Test
+    public void fullTextIsCarriedWhenRequested() throws Exception {
+        doc.insertString(9, "x", null);
+        queue.waitUntilIdle();
+        queue.requestFullText(doc);
+        doc.remove(9, 1);
+        doc.insertString(9, "z", null);
+        queue.waitUntilIdle();
+
+        assertEquals(3, processed.size());
+        assertEquals("class A {}", processed.get(1).getFullText());
+        assertNull(processed.get(2).getFullText());
+    }
+
+    @Test
+    public void coalescesTypedCharacters() throws Exception {
+        doc.insertString(9, " ", null);
+        queue.waitUntilIdle();
+        processed.clear();
+
+        blockWorker();
+        type(10, "int x;");
+        releaseWorkerAndWait();
+
+        assertEquals(1, processed.size());
+        TextEditQueue.Edit edit = processed.get(0);
+        assertTrue(edit.isInsert());
+        assertEquals(10, edit.getOffset());
+        assertEquals(6, edit.getLength());
+        assertEquals("int x;", edit.getText());
+    }
+
+    @Test
+    public void coalescesBackspacesAndDeletes() throws Exception {
+        doc.insertString(9, "abcdef", null);
+        queue.waitUntilIdle();
+        processed.clear();
+
+        blockWorker();
+        doc.remove(14, 1);
+        doc.remove(13, 1);
+        doc.remove(12, 1);
+        doc.insertString(12, "x", null);
+        doc.remove(9, 1);
+        doc.remove(9, 1);
+        releaseWorkerAndWait();
+
+        assertEquals("class A {cx}", doc.getText(0, doc.getLength()));
+        assertEquals(3, processed.size());
+        assertEquals(12, processed.get(0).getOffset());
+        assertEquals(3, processed.get(0).getLength());
+        assertEquals("x", processed.get(1).getText());
+        assertEquals(9, processed.get(2).getOffset());
+        assertEquals(2, processed.get(2).getLength());
+    }
+
+    @Test
+    public void doesNotCoalescePossiblePastesOrOtherDocuments() throws Exception {
+        doc.insertString(9, " ", null);
+        queue.waitUntilIdle();
+        processed.clear();
+
+        PlainDocument other = new PlainDocument();
+        other.addDocumentListener(recordingListener);
+        blockWorker();
+        doc.insertString(10, "a", null);
+        doc.insertString(11, "int x;", null);
+        doc.insertString(17, "b", null);
+        doc.insertString(18, "\n    ", null);
+        other.insertString(0, "c", null);
+        doc.insertString(23, "c", null);
+        releaseWorkerAndWait();
+
+        assertEquals(5, processed.size());
+        assertEquals("a", processed.get(0).getText());
+        assertEquals("int x;", processed.get(1).getText());
+        assertTrue(processed.get(1).mayBePaste());
+        assertEquals("b\n    ", processed.get(2).getText());
+        assertFalse(processed.get(2).mayBePaste());
+        assertSame(other, processed.get(3).getDocument());
+        assertEquals("c", processed.get(4).getText());
+    }
+
+    @Test
+    public void skipsEditsIncludedInTextReadByTheProcessor() throws Exception {
+        doc.insertString(9, " ", null);
+        queue.waitUntilIdle();
+        processed.clear();
+
+        blockWorker();
+        doc.insertString(10, "x", null);
+        doc.remove(0, 1);
+        doc.insertString(0, "C", null);
+        readTextWhenProcessing = true;
+        releaseWorkerAndWait();
+
+        assertEquals(1, processed.size());
+        assertEquals("x", processed.get(0).getText());
+        assertEquals("Class A { x}", textRead);
+
+        doc.insertString(11, "y", null);
+        queue.waitUntilIdle();
+        assertEquals(2, processed.size());
+        assertEquals("y", processed.get(1).getText());
+        assertNull(processed.get(1).getFullText());
+    }
+
+    @Test
+    public void benchmarkListenerCostPerKeystroke() throws Exception {
+        Benchmarks.assumeEnabled();
+        int keystrokes = 2000;
+        StringBuilder source = new StringBuilder();
+        while (source.length() < 50000) {
+            source.append("    public int method").append(source.length()).append("() {\n        return 1;\n    }\n");
+        }
+
+        long withoutListener = timeTyping(new PlainDocument(), source, keystrokes, null);
+        long queued = timeTyping(new PlainDocument(), source, keystrokes, recordingListener);
+        queue.waitUntilIdle();
+        long synchronous = timeTyping(new PlainDocument(), source, keystrokes / 10, new SynchronousDiffingListener());
+
+        Benchmarks.report("Document listener cost per keystroke in a " + source.length() + " character document: " +
+                withoutListener / keystrokes + "ns without a listener, " +
+                queued / keystrokes + "ns queued, " +
+                synchronous / (keystrokes / 10) + "ns diffing the document synchronously.");
+    }
+
+    private long timeTyping(Document document, CharSequence initialText, int keystrokes, DocumentListener listener) throws BadLocationException {
+        document.insertString(0, initialText.toString(), null);
+        if (listener != null) {
+            document.addDocumentListener(listener);
+        }
+        int offset = document.getLength() / 2;
+        long start = System.nanoTime();
+        for (int i = 0; i < keystrokes; ++i) {
+            document.insertString(offset + i, "x", null);
+        }
+        return System.nanoTime() - start;
+    }
+
+    // What TextInsertEventSource used to do in the listener.
+    private static class SynchronousDiffingListener implements DocumentListener {
+        private final diff_match_patch dmp = new diff_match_patch();
+        private String previous;
+
+        @Override
+        public void insertUpdate(DocumentEvent e) {
+            try {
+                Document document = e.getDocument();
+                String current = document.getText(0, document.getLength());
+                String before = (previous != null) ? previous : "";
+                JsonMaker.create()
+                        .add("patches", dmp.patch_toText(dmp.patch_make(before, current)))
+                        .toString();
+                previous = current;
+            } catch (BadLocationException ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+
+        @Override
+        public void removeUpdate(DocumentEvent e) {
+        }
+
+        @Override
+        public void changedUpdate(DocumentEvent e) {
+        }
+    }
+}
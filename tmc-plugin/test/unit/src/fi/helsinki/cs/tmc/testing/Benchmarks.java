@@ -0,0 +1,25 @@
+package fi.helsinki.cs.tmc.testing;
+
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Benchmarks kept next to the unit tests of the code they measure.
+ *
+ * <p>
+ * They are skipped unless the system property {@code tmc.benchmarks} is true,
+ * e.g. {@code ant test -Dtest-unit-sys-prop.tmc.benchmarks=true}.
+ */
+public class Benchmarks {
+    public static final String ENABLING_PROPERTY = "tmc.benchmarks";
+
+    /**
+     * Skips the calling test unless benchmarks are enabled.
+     */
+    public static void assumeEnabled() {
+        assumeTrue(Boolean.getBoolean(ENABLING_PROPERTY));
+    }
+
+    public static void report(String result) {
+        System.out.println(result);
+    }
+}
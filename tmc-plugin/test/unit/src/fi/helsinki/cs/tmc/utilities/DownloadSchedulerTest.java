@@ -0,0 +1,158 @@
+package fi.helsinki.cs.tmc.utilities;
+
+import fi.helsinki.cs.tmc.testing.MockBgTaskListener;
+import fi.helsinki.cs.tmc.utilities.http.FailedHttpResponseException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class DownloadSchedulerTest {
+
+    private DownloadScheduler scheduler;
+
+    @Before
+    public void setUp() {
+        scheduler = new DownloadScheduler();
+        scheduler.setInitialBackoff(10);
+    }
+
+    @Test
+    public void itShouldRunAtMostTheConfiguredNumberOfDownloadsAtATime() {
+        scheduler.setMaxConcurrentDownloads(2);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+
+        DownloadScheduler.Batch batch = scheduler.newBatch("Test");
+        List<MockBgTaskListener<String>> listeners = new ArrayList<MockBgTaskListener<String>>();
+        for (int i = 0; i < 6; ++i) {
+            final String name = "download" + i;
+            MockBgTaskListener<String> listener = new MockBgTaskListener<String>();
+            listeners.add(listener);
+            batch.add(name, new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    int now = running.incrementAndGet();
+                    synchronized (maxRunning) {
+                        maxRunning.set(Math.max(maxRunning.get(), now));
+                    }
+                    Thread.sleep(50);
+                    running.decrementAndGet();
+                    return name;
+                }
+            }, listener);
+        }
+        batch.start();
+
+        for (int i = 0; i < listeners.size(); ++i) {
+            listeners.get(i).waitForCall();
+            listeners.get(i).assertGotSuccess();
+            assertEquals("download" + i, listeners.get(i).result);
+        }
+        assertTrue(maxRunning.get() <= 2);
+    }
+
+    @Test
+    public void itShouldRetryDownloadsThatFailWithIOErrors() {
+        final AtomicInteger attempts = new AtomicInteger();
+        MockBgTaskListener<String> listener = new MockBgTaskListener<String>();
+
+        DownloadScheduler.Batch batch = scheduler.newBatch("Test");
+        batch.add("flaky", new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                if (attempts.incrementAndGet() < 3) {
+                    throw new IOException("Connection reset");
+                }
+                return "finally";
+            }
+        }, listener);
+        batch.start();
+
+        listener.waitForCall();
+        listener.assertGotSuccess();
+        assertEquals("finally", listener.result);
+        assertEquals(3, attempts.get());
+    }
+
+    @Test
+    public void itShouldFailAfterTheMaximumNumberOfAttempts() {
+        scheduler.setMaxAttempts(2);
+        final AtomicInteger attempts = new AtomicInteger();
+        final IOException error = new IOException("Connection reset");
+        MockBgTaskListener<String> listener = new MockBgTaskListener<String>();
+
+        DownloadScheduler.Batch batch = scheduler.newBatch("Test");
+        batch.add("broken", new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                attempts.incrementAndGet();
+                throw error;
+            }
+        }, listener);
+        batch.start();
+
+        listener.waitForCall();
+        assertSame(error, listener.taskException);
+        assertEquals(2, attempts.get());
+    }
+
+    @Test
+    public void itShouldNotRetryClientErrors() {
+        final AtomicInteger attempts = new AtomicInteger();
+        MockBgTaskListener<String> listener = new MockBgTaskListener<String>();
+
+        DownloadScheduler.Batch batch = scheduler.newBatch("Test");
+        batch.add("missing", new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                attempts.incrementAndGet();
+                throw new FailedHttpResponseException(404, null);
+            }
+        }, listener);
+        batch.start();
+
+        listener.waitForCall();
+        assertTrue(listener.taskException instanceof FailedHttpResponseException);
+        assertEquals(1, attempts.get());
+    }
+
+    @Test
+    public void cancellingTheBatchShouldCancelRunningAndQueuedDownloads() throws InterruptedException {
+        scheduler.setMaxConcurrentDownloads(1);
+        final CountDownLatch started = new CountDownLatch(1);
+        MockBgTaskListener<String> runningListener = new MockBgTaskListener<String>();
+        MockBgTaskListener<String> queuedListener = new MockBgTaskListener<String>();
+
+        DownloadScheduler.Batch batch = scheduler.newBatch("Test");
+        batch.add("slow", new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                started.countDown();
+                Thread.sleep(10000);
+                return "should not get here";
+            }
+        }, runningListener);
+        batch.add("queued", new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return "should not get here";
+            }
+        }, queuedListener);
+        batch.start();
+
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        batch.cancel();
+
+        runningListener.waitForCall();
+        assertTrue(runningListener.cancelled);
+        queuedListener.waitForCall();
+        assertTrue(queuedListener.cancelled);
+    }
+}
@@ -0,0 +1,96 @@
+package fi.helsinki.cs.tmc.utilities;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class MpscRingBufferTest {
+
+    @Test
+    public void roundsCapacityUpToPowerOfTwo() {
+        assertEquals(8, new MpscRingBuffer<Object>(5).capacity());
+        assertEquals(8, new MpscRingBuffer<Object>(8).capacity());
+        assertEquals(1, new MpscRingBuffer<Object>(1).capacity());
+    }
+
+    @Test
+    public void returnsElementsInOrder() {
+        MpscRingBuffer<Integer> buf = new MpscRingBuffer<Integer>(4);
+        assertNull(buf.poll());
+        assertTrue(buf.offer(1));
+        assertTrue(buf.offer(2));
+        assertEquals(2, buf.size());
+        assertEquals(Integer.valueOf(1), buf.poll());
+        assertTrue(buf.offer(3));
+        assertEquals(Integer.valueOf(2), buf.poll());
+        assertEquals(Integer.valueOf(3), buf.poll());
+        assertNull(buf.poll());
+        assertTrue(buf.isEmpty());
+    }
+
+    @Test
+    public void rejectsOffersWhenFull() {
+        MpscRingBuffer<Integer> buf = new MpscRingBuffer<Integer>(2);
+        assertTrue(buf.offer(1));
+        assertTrue(buf.offer(2));
+        assertFalse(buf.offer(3));
+        assertEquals(Integer.valueOf(1), buf.poll());
+        assertTrue(buf.offer(3));
+
+        List<Integer> drained = new ArrayList<Integer>();
+        assertEquals(2, buf.drainTo(drained));
+        assertEquals(2, drained.get(0).intValue());
+        assertEquals(3, drained.get(1).intValue());
+    }
+
+    @Test
+    public void deliversEverythingFromConcurrentProducersInPerProducerOrder() throws InterruptedException {
+        final int producers = 8;
+        final int perProducer = 50000;
+        final MpscRingBuffer<int[]> buf = new MpscRingBuffer<int[]>(1024);
+        final CountDownLatch start = new CountDownLatch(1);
+
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; ++p) {
+            final int producer = p;
+            threads[p] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                    for (int i = 0; i < perProducer; ++i) {
+                        int[] element = new int[] { producer, i };
+                        while (!buf.offer(element)) {
+                            Thread.yield();
+                        }
+                    }
+                }
+            };
+            threads[p].start();
+        }
+
+        int[] nextExpected = new int[producers];
+        int received = 0;
+        start.countDown();
+        while (received < producers * perProducer) {
+            int[] element = buf.poll();
+            if (element == null) {
+                Thread.yield();
+                continue;
+            }
+            assertEquals(nextExpected[element[0]], element[1]);
+            nextExpected[element[0]]++;
+            received++;
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertNull(buf.poll());
+    }
+}
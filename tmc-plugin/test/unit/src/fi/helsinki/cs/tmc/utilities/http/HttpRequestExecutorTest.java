@@ -1,5 +1,6 @@
 package fi.helsinki.cs.tmc.utilities.http;
 
+import fi.helsinki.cs.tmc.testing.Benchmarks;
 import org.apache.http.HttpEntity;
 import org.apache.http.entity.BufferedHttpEntity;
 import java.io.UnsupportedEncodingException;
@@ -9,14 +10,19 @@ import fi.helsinki.cs.tmc.testing.AdHocHttpServer;
 import fi.helsinki.cs.tmc.testing.MockBgTaskListener;
 import fi.helsinki.cs.tmc.utilities.BgTask;
 import java.io.IOException;
+import java.net.SocketTimeoutException;
 import java.net.URI;
 import java.util.concurrent.atomic.AtomicBoolean;
 import org.apache.commons.codec.binary.Base64;
 import org.apache.http.HttpException;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
 import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.NoConnectionReuseStrategy;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
 import org.apache.http.protocol.HttpContext;
 import org.apache.http.protocol.HttpRequestHandler;
 import org.apache.http.util.EntityUtils;
@@ -143,6 +149,71 @@ public class HttpRequestExecutorTest {
         BufferedHttpEntity result = new HttpRequestExecutor(uri.toString()).setTimeout(5000).call();
         assertEquals("Yay", EntityUtils.toString(result, "UTF-8"));
     }
+    
+    @Test
+    public void testReusingConnections() throws Exception {
+        server.setHandler(oneTwoThreeHandler());
+        server.start();
+        
+        for (int i = 0; i < 5; ++i) {
+            BufferedHttpEntity result = new HttpRequestExecutor(server.getBaseUrl()).call();
+            assertArrayEquals(new byte[] { 1, 2, 3 }, EntityUtils.toByteArray(result));
+        }
+        assertEquals(1, server.getConnectionCount());
+    }
+    
+    @Test
+    public void testTimeout() throws Exception {
+        server.setHandler(new HttpRequestHandler() {
+            @Override
+            public void handle(HttpRequest req, HttpResponse res, HttpContext hc) throws HttpException, IOException {
+                try {
+                    Thread.sleep(2000);
+                } catch (InterruptedException ex) {
+                }
+                res.setEntity(byteEntity(new byte[] { 1, 2, 3 }));
+            }
+        });
+        server.start();
+        
+        try {
+            new HttpRequestExecutor(server.getBaseUrl()).setTimeout(200).call();
+            fail("Should have timed out");
+        } catch (IOException ex) {
+            assertTrue(ex.getCause() instanceof SocketTimeoutException);
+        }
+    }
+    
+    @Test
+    public void benchmarkRequestsPerSecond() throws Exception {
+        Benchmarks.assumeEnabled();
+        server.setHandler(oneTwoThreeHandler());
+        server.start();
+        final int requests = 300;
+        
+        // The way every request was made before connections were pooled
+        long start = System.nanoTime();
+        for (int i = 0; i < requests; ++i) {
+            CloseableHttpClient client = HttpClients.custom()
+                    .setConnectionReuseStrategy(new NoConnectionReuseStrategy())
+                    .build();
+            try {
+                EntityUtils.toByteArray(client.execute(new HttpGet(server.getBaseUrl())).getEntity());
+            } finally {
+                client.close();
+            }
+        }
+        double unpooledSeconds = (System.nanoTime() - start) / 1e9;
+        
+        start = System.nanoTime();
+        for (int i = 0; i < requests; ++i) {
+            new HttpRequestExecutor(server.getBaseUrl()).call();
+        }
+        double pooledSeconds = (System.nanoTime() - start) / 1e9;
+        
+        Benchmarks.report(String.format("New client per request: %.0f requests/s", requests / unpooledSeconds));
+        Benchmarks.report(String.format("Shared pooled client: %.0f requests/s", requests / pooledSeconds));
+    }
             
     private HttpRequestHandler oneTwoThreeHandler() {
         return new HttpRequestHandler() {
@@ -0,0 +1,288 @@
+package fi.helsinki.cs.tmc.utilities.http;
+
+import fi.helsinki.cs.tmc.testing.AdHocHttpServer;
+import fi.helsinki.cs.tmc.testing.TempTestDir;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.SocketException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+import org.apache.commons.io.FileUtils;
+import org.apache.http.Header;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class HttpTasksTest {
+
+    private AdHocHttpServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new AdHocHttpServer();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop();
+    }
+
+    @Test
+    public void testStreamingPostUsesChunkedEncoding() throws Exception {
+        final AtomicReference<byte[]> receivedBody = new AtomicReference<byte[]>();
+        final AtomicReference<String> receivedTransferEncoding = new AtomicReference<String>();
+        final AtomicReference<String> receivedCustomHeader = new AtomicReference<String>();
+        server.setHandler(new HttpRequestHandler() {
+            @Override
+            public void handle(HttpRequest req, HttpResponse res, HttpContext hc) throws HttpException, IOException {
+                Header transferEncoding = req.getFirstHeader("Transfer-Encoding");
+                receivedTransferEncoding.set(transferEncoding != null ? transferEncoding.getValue() : null);
+                receivedCustomHeader.set(req.getFirstHeader("X-Foo").getValue());
+                receivedBody.set(EntityUtils.toByteArray(((HttpEntityEnclosingRequest)req).getEntity()));
+                res.setEntity(new StringEntity("ok", "UTF-8"));
+            }
+        });
+        server.start();
+
+        final byte[] chunk = new byte[10000];
+        Arrays.fill(chunk, (byte)7);
+        HttpTasks.StreamingBody body = new HttpTasks.StreamingBody() {
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                for (int i = 0; i < 10; ++i) {
+                    out.write(chunk);
+                }
+            }
+        };
+        Map<String, String> headers = Collections.singletonMap("X-Foo", "bar");
+
+        String response = new HttpTasks().streamingPostForText(server.getBaseUrl(), body, headers).call();
+
+        assertEquals("ok", response);
+        assertEquals("chunked", receivedTransferEncoding.get());
+        assertEquals("bar", receivedCustomHeader.get());
+        assertEquals(100000, receivedBody.get().length);
+        assertEquals(7, receivedBody.get()[99999]);
+    }
+
+    @Test
+    public void testStreamingFileUploadSendsMultipartWhileWritingTheFile() throws Exception {
+        final AtomicReference<String> receivedBody = new AtomicReference<String>();
+        final AtomicReference<String> receivedTransferEncoding = new AtomicReference<String>();
+        server.setHandler(new HttpRequestHandler() {
+            @Override
+            public void handle(HttpRequest req, HttpResponse res, HttpContext hc) throws HttpException, IOException {
+                Header transferEncoding = req.getFirstHeader("Transfer-Encoding");
+                receivedTransferEncoding.set(transferEncoding != null ? transferEncoding.getValue() : null);
+                receivedBody.set(EntityUtils.toString(((HttpEntityEnclosingRequest)req).getEntity(), "ISO-8859-1"));
+                res.setEntity(new StringEntity("ok", "UTF-8"));
+            }
+        });
+        server.start();
+
+        HttpTasks.StreamingBody file = new HttpTasks.StreamingBody() {
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                for (int i = 0; i < 1000; ++i) {
+                    out.write(("line " + i + "\n").getBytes("UTF-8"));
+                }
+            }
+        };
+        Map<String, String> params = Collections.singletonMap("foo", "bar");
+
+        String response = new HttpTasks().streamingUploadFileForTextDownload(server.getBaseUrl(), params, "upload", file).call();
+
+        assertEquals("ok", response);
+        assertEquals("chunked", receivedTransferEncoding.get());
+        String body = receivedBody.get();
+        assertTrue(body.contains("name=\"foo\""));
+        assertTrue(body.contains("bar"));
+        assertTrue(body.contains("name=\"upload\"; filename=\"file\""));
+        assertTrue(body.contains("line 0\nline 1\n"));
+        assertTrue(body.contains("line 999\n"));
+    }
+
+    @Test
+    public void testGetForFileStreamsResponseToFile() throws Exception {
+        final byte[] content = new byte[300000];
+        new Random(1).nextBytes(content);
+        server.setHandler(new HttpRequestHandler() {
+            @Override
+            public void handle(HttpRequest req, HttpResponse res, HttpContext hc) throws HttpException, IOException {
+                res.setEntity(new ByteArrayEntity(content));
+            }
+        });
+        server.start();
+
+        File target = File.createTempFile("HttpTasksTest", ".bin");
+        try {
+            File result = new HttpTasks().getForFile(server.getBaseUrl(), target).call();
+
+            assertEquals(target, result);
+            assertArrayEquals(content, FileUtils.readFileToByteArray(target));
+        } finally {
+            target.delete();
+        }
+    }
+
+    @Test
+    public void testGetForFileDeletesFileOnFailure() throws Exception {
+        server.setHandler(new HttpRequestHandler() {
+            @Override
+            public void handle(HttpRequest req, HttpResponse res, HttpContext hc) throws HttpException, IOException {
+                res.setStatusCode(404);
+                res.setEntity(new StringEntity("not found", "UTF-8"));
+            }
+        });
+        server.start();
+
+        File target = File.createTempFile("HttpTasksTest", ".bin");
+        try {
+            new HttpTasks().getForFile(server.getBaseUrl(), target).call();
+            fail("Expected an exception");
+        } catch (FailedHttpResponseException ex) {
+            assertEquals(404, ex.getStatusCode());
+        }
+        assertFalse(target.exists());
+    }
+
+    @Test
+    public void testGetForTextSendsConditionalRequestsWhenCaching() throws Exception {
+        final AtomicReference<String> receivedIfNoneMatch = new AtomicReference<String>();
+        server.setHandler(new HttpRequestHandler() {
+            @Override
+            public void handle(HttpRequest req, HttpResponse res, HttpContext hc) throws HttpException, IOException {
+                Header ifNoneMatch = req.getFirstHeader("If-None-Match");
+                receivedIfNoneMatch.set(ifNoneMatch != null ? ifNoneMatch.getValue() : null);
+                if (ifNoneMatch != null && ifNoneMatch.getValue().equals("\"v1\"")) {
+                    res.setStatusCode(304);
+                } else {
+                    res.setHeader("ETag", "\"v1\"");
+                    res.setEntity(new StringEntity("the courses", "UTF-8"));
+                }
+            }
+        });
+        server.start();
+
+        TempTestDir tempDir = new TempTestDir();
+        try {
+            HttpCache cache = new HttpCache(tempDir.get());
+            String first = new HttpTasks().setCache(cache).getForText(server.getBaseUrl()).call();
+            assertEquals("the courses", first);
+            assertNull(receivedIfNoneMatch.get());
+
+            String second = new HttpTasks().setCache(cache).getForText(server.getBaseUrl()).call();
+            assertEquals("\"v1\"", receivedIfNoneMatch.get());
+            assertSame(first, second);
+
+            HttpCache reloadedCache = new HttpCache(tempDir.get());
+            receivedIfNoneMatch.set(null);
+            String third = new HttpTasks().setCache(reloadedCache).getForText(server.getBaseUrl()).call();
+            assertEquals("\"v1\"", receivedIfNoneMatch.get());
+            assertEquals("the courses", third);
+        } finally {
+            tempDir.destroy();
+        }
+    }
+
+    @Test
+    public void testGetForResumableFileResumesAnInterruptedDownload() throws Exception {
+        final byte[] content = new byte[100000];
+        new Random(123).nextBytes(content);
+        final AtomicReference<String> receivedRange = new AtomicReference<String>();
+        final AtomicReference<String> receivedIfRange = new AtomicReference<String>();
+        server.setHandler(new HttpRequestHandler() {
+            private boolean dropConnection = true;
+
+            @Override
+            public void handle(HttpRequest req, HttpResponse res, HttpContext hc) throws HttpException, IOException {
+                res.setHeader("ETag", "\"v1\"");
+                Header range = req.getFirstHeader("Range");
+                Header ifRange = req.getFirstHeader("If-Range");
+                receivedRange.set(range != null ? range.getValue() : null);
+                receivedIfRange.set(ifRange != null ? ifRange.getValue() : null);
+                if (range != null && ifRange != null && ifRange.getValue().equals("\"v1\"")) {
+                    int start = Integer.parseInt(range.getValue().replaceAll("[^0-9]", ""));
+                    res.setStatusCode(206);
+                    res.setHeader("Content-Range", "bytes " + start + "-" + (content.length - 1) + "/" + content.length);
+                    res.setEntity(new ByteArrayEntity(Arrays.copyOfRange(content, start, content.length)));
+                } else if (dropConnection) {
+                    dropConnection = false;
+                    res.setEntity(new ByteArrayEntity(content) {
+                        @Override
+                        public void writeTo(OutputStream out) throws IOException {
+                            out.write(content, 0, 40000);
+                            out.flush();
+                            throw new SocketException("Simulated connection drop");
+                        }
+                    });
+                } else {
+                    res.setEntity(new ByteArrayEntity(content));
+                }
+            }
+        });
+        server.start();
+
+        TempTestDir tempDir = new TempTestDir();
+        try {
+            File target = new File(tempDir.get(), "download.zip");
+            try {
+                new HttpTasks().getForResumableFile(server.getBaseUrl(), target).call();
+                fail("Expected the download to fail");
+            } catch (IOException ex) {
+            }
+            assertTrue(target.exists());
+            long resumeFrom = target.length();
+            assertTrue(resumeFrom > 0 && resumeFrom <= 40000);
+
+            File result = new HttpTasks().getForResumableFile(server.getBaseUrl(), target).call();
+
+            assertEquals("bytes=" + resumeFrom + "-", receivedRange.get());
+            assertEquals("\"v1\"", receivedIfRange.get());
+            assertEquals(target, result);
+            assertArrayEquals(content, FileUtils.readFileToByteArray(target));
+            assertEquals(1, tempDir.get().listFiles().length); // Validator file removed
+        } finally {
+            tempDir.destroy();
+        }
+    }
+
+    @Test
+    public void testGetForResumableFileStartsOverIfTheResourceChanged() throws Exception {
+        server.setHandler(new HttpRequestHandler() {
+            @Override
+            public void handle(HttpRequest req, HttpResponse res, HttpContext hc) throws HttpException, IOException {
+                res.setHeader("ETag", "\"v2\"");
+                res.setEntity(new StringEntity("new content", "UTF-8"));
+            }
+        });
+        server.start();
+
+        TempTestDir tempDir = new TempTestDir();
+        try {
+            File target = new File(tempDir.get(), "download.zip");
+            FileUtils.write(target, "old cont");
+            FileUtils.write(new File(target.getPath() + ".validator"), "\"v1\"");
+
+            new HttpTasks().getForResumableFile(server.getBaseUrl(), target).call();
+
+            assertEquals("new content", FileUtils.readFileToString(target, "UTF-8"));
+        } finally {
+            tempDir.destroy();
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package fi.helsinki.cs.tmc.utilities.zip;
+
+import fi.helsinki.cs.tmc.testing.TempTestDir;
+import java.io.File;
+import java.io.IOException;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class FileChecksumCacheTest {
+    private TempTestDir tempDir;
+    private File storeFile;
+
+    @Before
+    public void setUp() throws IOException {
+        tempDir = new TempTestDir();
+        storeFile = new File(tempDir.get(), "crc32.txt");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        tempDir.destroy();
+    }
+
+    private File oldFile(String name, String content) throws IOException {
+        File file = new File(tempDir.get(), name);
+        FileUtils.write(file, content);
+        file.setLastModified(System.currentTimeMillis() - 60000);
+        return file;
+    }
+
+    private void put(FileChecksumCache cache, File file, long crc) {
+        cache.putCrc(file, file.lastModified(), System.currentTimeMillis(), crc);
+    }
+
+    @Test
+    public void itShouldRememberChecksumsAcrossInstances() throws IOException {
+        File file = oldFile("with spaces.txt", "hello");
+        FileChecksumCache cache = new FileChecksumCache(storeFile, 10);
+        put(cache, file, 1234);
+        cache.save();
+
+        FileChecksumCache reloaded = new FileChecksumCache(storeFile, 10);
+        assertEquals(1234, reloaded.getCachedCrc(file));
+    }
+
+    @Test
+    public void itShouldForgetChecksumsOfChangedFiles() throws IOException {
+        File file = oldFile("a.txt", "hello");
+        FileChecksumCache cache = new FileChecksumCache(storeFile, 10);
+        put(cache, file, 1234);
+        cache.save();
+
+        FileUtils.write(file, "hello!");
+        assertEquals(-1, new FileChecksumCache(storeFile, 10).getCachedCrc(file));
+    }
+
+    @Test
+    public void itShouldKeepOnlyTheMostRecentlyUsedChecksums() throws IOException {
+        File a = oldFile("a.txt", "a");
+        File b = oldFile("b.txt", "b");
+        File c = oldFile("c.txt", "c");
+        FileChecksumCache cache = new FileChecksumCache(storeFile, 2);
+        put(cache, a, 1);
+        put(cache, b, 2);
+        cache.getCachedCrc(a);
+        put(cache, c, 3);
+        cache.save();
+
+        FileChecksumCache reloaded = new FileChecksumCache(storeFile, 2);
+        assertEquals(1, reloaded.getCachedCrc(a));
+        assertEquals(-1, reloaded.getCachedCrc(b));
+        assertEquals(3, reloaded.getCachedCrc(c));
+    }
+
+    @Test
+    public void itShouldIgnoreCorruptLines() throws IOException {
+        File file = oldFile("a.txt", "hello");
+        FileUtils.write(storeFile, "garbage\n1 2 x 4 /nowhere\n" +
+                "99 " + file.length() + " " + file.lastModified() + " " + System.currentTimeMillis() + " " + file.getAbsolutePath() + "\n");
+
+        assertEquals(99, new FileChecksumCache(storeFile, 10).getCachedCrc(file));
+    }
+}
@@ -7,6 +7,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
+import java.util.zip.CRC32;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 import org.apache.commons.io.FileUtils;
@@ -263,4 +264,108 @@ public class NbProjectUnzipperTest {
         assertEquals(1, result.skippedFiles.size());
         assertEquals(1, result.deletedFiles.size());
     }
+    
+    private File writeZipToFile() throws IOException {
+        File zipFile = File.createTempFile("NbProjectUnzipperTest", ".zip");
+        zipFile.deleteOnExit();
+        FileUtils.writeByteArrayToFile(zipFile, zipBuffer.toByteArray());
+        return zipFile;
+    }
+    
+    @Test
+    public void itShouldUnzipTheFirstProjectDirectoryFromAZipFile() throws IOException {
+        addFakeProjectToZip("dir1/dir12/project1", "P1");
+        addFakeProjectToZip("dir2/project2", "P2");
+        zipOut.close();
+        
+        NbProjectUnzipper unzipper = new NbProjectUnzipper();
+        Result result = unzipper.unzipProject(writeZipToFile(), inTempDir("my-project"));
+        
+        assertEquals(1, tempDir.get().listFiles().length);
+        String contents = FileUtils.readFileToString(new File(tempDir.getPath() + File.separator + "my-project/src/Hello.java"));
+        assertEquals("Fake Java file of P1", contents);
+        assertEquals(2, result.newFiles.size());
+    }
+    
+    @Test
+    public void itShouldOverwriteChangedFilesFromAZipFileIfPermitted() throws IOException {
+        writeDirToZip("dir1/");
+        writeDirToZip("dir1/nbproject/");
+        writeFileToZip("dir1/one.txt", "one");
+        writeFileToZip("dir1/two.txt", "two");
+        writeFileToZip("dir1/three.txt", "three");
+        zipOut.close();
+        
+        new File(tempDir.getPath() + "/dest").mkdirs();
+        File preserved = new File(tempDir.getPath() + "/dest/one.txt");
+        FileUtils.write(preserved, "This should remain");
+        File overwritten = new File(tempDir.getPath() + "/dest/two.txt");
+        FileUtils.write(overwritten, "This should be overwritten");
+        File same = new File(tempDir.getPath() + "/dest/three.txt");
+        FileUtils.write(same, "three");
+        
+        NbProjectUnzipper.OverwritingDecider overwriting = mock(NbProjectUnzipper.OverwritingDecider.class);
+        when(overwriting.mayOverwrite("one.txt")).thenReturn(false);
+        when(overwriting.mayOverwrite("two.txt")).thenReturn(true);
+        
+        NbProjectUnzipper unzipper = new NbProjectUnzipper(overwriting);
+        Result result = unzipper.unzipProject(writeZipToFile(), inTempDir("dest"));
+        
+        assertEquals("This should remain", FileUtils.readFileToString(preserved));
+        assertEquals("two", FileUtils.readFileToString(overwritten));
+        assertEquals("three", FileUtils.readFileToString(same));
+        assertTrue(result.skippedFiles.contains("one.txt"));
+        assertTrue(result.overwrittenFiles.contains("two.txt"));
+        assertTrue(result.unchangedFiles.contains("three.txt"));
+    }
+    
+    @Test
+    public void itShouldCompareExistingFilesByChecksumWhenGivenACache() throws IOException {
+        writeDirToZip("dir1/");
+        writeDirToZip("dir1/nbproject/");
+        writeFileToZip("dir1/one.txt", "one");
+        writeFileToZip("dir1/two.txt", "two");
+        writeFileToZip("dir1/three.txt", "three");
+        zipOut.close();
+        File zipFile = writeZipToFile();
+        
+        new File(tempDir.getPath() + "/dest").mkdirs();
+        File sameSize = new File(tempDir.getPath() + "/dest/one.txt");
+        FileUtils.write(sameSize, "eno");
+        File otherSize = new File(tempDir.getPath() + "/dest/two.txt");
+        FileUtils.write(otherSize, "This should be overwritten");
+        File same = new File(tempDir.getPath() + "/dest/three.txt");
+        FileUtils.write(same, "three");
+        same.setLastModified(System.currentTimeMillis() - 60000);
+        
+        NbProjectUnzipper.OverwritingDecider overwriting = mock(NbProjectUnzipper.OverwritingDecider.class);
+        when(overwriting.mayOverwrite(anyString())).thenReturn(true);
+        
+        FileChecksumCache cache = new FileChecksumCache();
+        NbProjectUnzipper unzipper = new NbProjectUnzipper(overwriting);
+        unzipper.setChecksumCache(cache);
+        Result result = unzipper.unzipProject(zipFile, inTempDir("dest"));
+        
+        assertEquals("one", FileUtils.readFileToString(sameSize));
+        assertEquals("two", FileUtils.readFileToString(otherSize));
+        assertTrue(result.overwrittenFiles.contains("one.txt"));
+        assertTrue(result.overwrittenFiles.contains("two.txt"));
+        assertTrue(result.unchangedFiles.contains("three.txt"));
+        assertEquals(crc("three"), cache.getCachedCrc(same)); // Recorded when found equal
+        assertEquals(-1, cache.getCachedCrc(sameSize));
+        assertEquals(-1, cache.getCachedCrc(otherSize));
+        
+        FileUtils.write(same, "thre3");
+        same.setLastModified(System.currentTimeMillis() - 60000);
+        assertEquals(-1, cache.getCachedCrc(same)); // Changed since
+        result = unzipper.unzipProject(zipFile, inTempDir("dest"));
+        assertTrue(result.overwrittenFiles.contains("three.txt"));
+        assertEquals("three", FileUtils.readFileToString(same));
+    }
+
+    private long crc(String text) {
+        CRC32 crc = new CRC32();
+        crc.update(text.getBytes());
+        return crc.getValue();
+    }
 }
@@ -1,13 +1,23 @@
 package fi.helsinki.cs.tmc.utilities.zip;
 
+import fi.helsinki.cs.tmc.testing.Benchmarks;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Arrays;
+import java.util.Map;
 import fi.helsinki.cs.tmc.testing.TempTestDir;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.util.Enumeration;
+import java.util.Random;
+import java.util.TreeMap;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -69,6 +79,178 @@ public class RecursiveZipperTest {
         }
     }
 
+    @Test
+    public void itShouldZipOnlySelectedFilesAndTheirDirectories() throws IOException {
+        RecursiveZipper zipper = new RecursiveZipper(new File(mainDir), RecursiveZipper.ZIP_ALL_THE_THINGS);
+        List<String> entries = zipEntryNames(zipper.zipSelectedFiles(Arrays.asList("MyExercise/src/subdir/Included2.txt")));
+
+        assertEquals(Arrays.asList("MyExercise/", "MyExercise/src/", "MyExercise/src/subdir/", "MyExercise/src/subdir/Included2.txt"), entries);
+    }
+
+    @Test
+    public void itShouldListTheFilesItWouldZip() throws IOException {
+        RecursiveZipper.ZippingDecider decider = new RecursiveZipper.ZippingDecider() {
+            @Override
+            public boolean shouldZip(String relativeZipPath) {
+                return !relativeZipPath.equals("MyExercise/excluded/");
+            }
+        };
+        RecursiveZipper zipper = new RecursiveZipper(new File(mainDir), decider);
+        Map<String, File> files = zipper.listFilesToZip();
+
+        assertEquals(4, files.size());
+        assertEquals(new File(mainDir + SLASH + "src" + SLASH + "Included1.txt"), files.get("MyExercise/src/Included1.txt"));
+        assertTrue(files.containsKey("MyExercise/src/subdir/Included2.txt"));
+        assertFalse(files.containsKey("MyExercise/excluded/Foo.txt"));
+    }
+
+    @Test
+    public void itShouldProduceTheSameContentsWithAnEntryCache() throws IOException {
+        FileUtils.write(new File(mainDir + SLASH + "src" + SLASH + "Included1.txt"), "Hello ÄÖ", "UTF-8");
+        RecursiveZipper zipper = new RecursiveZipper(new File(mainDir), RecursiveZipper.ZIP_ALL_THE_THINGS);
+        byte[] plain = zipper.zipProjectSources();
+        zipper.setEntryCache(new ZipEntryCache(1024 * 1024));
+        byte[] cached = zipper.zipProjectSources();
+
+        assertEquals(zipContents(plain), zipContents(cached));
+        assertEquals(zipEntryNames(plain), zipEntryNames(cached));
+        assertEquals(zipEntryNames(cached), zipFileEntryNames(cached));
+    }
+
+    @Test
+    public void itShouldReuseCachedEntriesOfUnchangedFiles() throws IOException {
+        File changing = new File(mainDir + SLASH + "src" + SLASH + "Included1.txt");
+        File unchanged = new File(mainDir + SLASH + "src" + SLASH + "subdir" + SLASH + "Included2.txt");
+        FileUtils.write(changing, "one", "UTF-8");
+        FileUtils.write(unchanged, "two", "UTF-8");
+        for (File file : FileUtils.listFiles(new File(mainDir), null, true)) {
+            file.setLastModified(System.currentTimeMillis() - 60000);
+        }
+
+        ZipEntryCache cache = new ZipEntryCache(1024 * 1024);
+        RecursiveZipper zipper = new RecursiveZipper(new File(mainDir), RecursiveZipper.ZIP_ALL_THE_THINGS);
+        zipper.setEntryCache(cache);
+        zipper.zipProjectSources();
+        long missesAfterFirst = cache.getMisses();
+
+        FileUtils.write(changing, "three", "UTF-8");
+        byte[] second = zipper.zipProjectSources();
+
+        assertEquals(missesAfterFirst + 1, cache.getMisses());
+        assertEquals(missesAfterFirst - 1, cache.getHits());
+        Map<String, String> contents = zipContents(second);
+        assertEquals("three", contents.get("MyExercise/src/Included1.txt"));
+        assertEquals("two", contents.get("MyExercise/src/subdir/Included2.txt"));
+    }
+
+    @Test
+    public void benchmarkRepeatedZippingWithOneChangedFile() throws IOException {
+        Benchmarks.assumeEnabled();
+        File bigDir = new File(mainDir + SLASH + "src" + SLASH + "big");
+        Random random = new Random(1);
+        for (int i = 0; i < 200; ++i) {
+            StringBuilder sb = new StringBuilder();
+            for (int j = 0; j < 300; ++j) {
+                sb.append("        System.out.println(\"").append(random.nextInt()).append("\");\n");
+            }
+            File file = new File(bigDir, "File" + i + ".java");
+            FileUtils.write(file, sb.toString(), "UTF-8");
+            file.setLastModified(System.currentTimeMillis() - 60000);
+        }
+        File changing = new File(bigDir, "File0.java");
+
+        RecursiveZipper zipper = new RecursiveZipper(new File(mainDir), RecursiveZipper.ZIP_ALL_THE_THINGS);
+        long plainTime = timeRepeatedZipping(zipper, changing);
+        zipper.setParallel(true);
+        long parallelTime = timeRepeatedZipping(zipper, changing);
+        zipper.setParallel(false);
+        zipper.setEntryCache(new ZipEntryCache(ZipEntryCache.DEFAULT_MAX_BYTES));
+        long cachedTime = timeRepeatedZipping(zipper, changing);
+
+        Benchmarks.report("Zipping 200 files 20 times with one changed file: " +
+                (plainTime / 1000000) + "ms without cache, " + (parallelTime / 1000000) + "ms in parallel without cache, " +
+                (cachedTime / 1000000) + "ms with cache.");
+        assertEquals(zipContents(zipper.zipProjectSources()).get("MyExercise/src/big/File0.java"), FileUtils.readFileToString(changing, "UTF-8"));
+    }
+
+    @Test
+    public void itShouldWriteTheSameZipToAStream() throws IOException {
+        FileUtils.write(new File(mainDir + SLASH + "src" + SLASH + "Included1.txt"), "Hello", "UTF-8");
+        RecursiveZipper zipper = new RecursiveZipper(new File(mainDir), RecursiveZipper.ZIP_ALL_THE_THINGS);
+        zipper.setEntryCache(new ZipEntryCache(1024 * 1024));
+        zipper.setParallel(true);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        zipper.zipProjectSources(out);
+
+        assertArrayEquals(zipper.zipProjectSources(), out.toByteArray());
+    }
+
+    @Test
+    public void itShouldProduceIdenticalZipsInParallelAndSequentially() throws IOException {
+        Random random = new Random(2);
+        for (int i = 0; i < 50; ++i) {
+            byte[] data = new byte[random.nextInt(20000)];
+            for (int j = 0; j < data.length; ++j) {
+                data[j] = (byte)('a' + random.nextInt(4));
+            }
+            FileUtils.writeByteArrayToFile(new File(mainDir + SLASH + "src" + SLASH + "gen" + (i % 5) + SLASH + "File" + i + ".txt"), data);
+        }
+
+        RecursiveZipper sequential = new RecursiveZipper(new File(mainDir), RecursiveZipper.ZIP_ALL_THE_THINGS);
+        sequential.setEntryCache(new ZipEntryCache(ZipEntryCache.DEFAULT_MAX_BYTES));
+        RecursiveZipper parallel = new RecursiveZipper(new File(mainDir), RecursiveZipper.ZIP_ALL_THE_THINGS);
+        parallel.setParallel(true);
+        RecursiveZipper parallelCached = new RecursiveZipper(new File(mainDir), RecursiveZipper.ZIP_ALL_THE_THINGS);
+        parallelCached.setParallel(true);
+        parallelCached.setEntryCache(new ZipEntryCache(ZipEntryCache.DEFAULT_MAX_BYTES));
+
+        byte[] expected = sequential.zipProjectSources();
+        assertArrayEquals(expected, parallel.zipProjectSources());
+        assertArrayEquals(expected, parallelCached.zipProjectSources());
+        assertArrayEquals(expected, parallelCached.zipProjectSources());
+        assertEquals(zipContents(new RecursiveZipper(new File(mainDir), RecursiveZipper.ZIP_ALL_THE_THINGS).zipProjectSources()), zipContents(expected));
+    }
+
+    private long timeRepeatedZipping(RecursiveZipper zipper, File changing) throws IOException {
+        long start = System.nanoTime();
+        for (int i = 0; i < 20; ++i) {
+            FileUtils.write(changing, "class File0 { int x" + i + "; }", "UTF-8");
+            zipper.zipProjectSources();
+        }
+        return System.nanoTime() - start;
+    }
+
+    private Map<String, String> zipContents(byte[] zipData) throws IOException {
+        Map<String, String> result = new TreeMap<String, String>();
+        ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(zipData));
+        try {
+            ZipEntry zent;
+            while ((zent = zis.getNextEntry()) != null) {
+                result.put(zent.getName(), IOUtils.toString(zis, "UTF-8"));
+            }
+        } finally {
+            zis.close();
+        }
+        return result;
+    }
+
+    private List<String> zipFileEntryNames(byte[] zipData) throws IOException {
+        File file = new File(tempDir.get(), "test.zip");
+        FileUtils.writeByteArrayToFile(file, zipData);
+        ArrayList<String> result = new ArrayList<String>();
+        ZipFile zipFile = new ZipFile(file);
+        try {
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                result.add(entries.nextElement().getName());
+            }
+        } finally {
+            zipFile.close();
+        }
+        return result;
+    }
+
     private List<String> getZipEntries(RecursiveZipper.ZippingDecider decider) throws IOException {
         RecursiveZipper zipper = new RecursiveZipper(new File(mainDir), decider);
         byte[] zipData = zipper.zipProjectSources();